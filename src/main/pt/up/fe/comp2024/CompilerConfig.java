@@ -10,6 +10,9 @@ public class CompilerConfig {
     private static final String INPUT_FILE = "inputFile";
     private static final String OPTIMIZE = "optimize";
     private static final String REGISTER = "registerAllocation";
+    private static final String PEEPHOLE = "peephole";
+    private static final String BACKEND = "backend";
+    private static final String CLOSED_WORLD = "closedWorld";
 
 
     static Map<String, String> shortToLong = new HashMap<>();
@@ -18,6 +21,9 @@ public class CompilerConfig {
         shortToLong.put("i", CompilerConfig.INPUT_FILE);
         shortToLong.put("o", CompilerConfig.OPTIMIZE);
         shortToLong.put("r", CompilerConfig.REGISTER);
+        shortToLong.put("p", CompilerConfig.PEEPHOLE);
+        shortToLong.put("b", CompilerConfig.BACKEND);
+        shortToLong.put("c", CompilerConfig.CLOSED_WORLD);
     }
 
 
@@ -40,6 +46,40 @@ public class CompilerConfig {
         return Integer.parseInt(config.getOrDefault(REGISTER, "-1"));
     }
 
+    /**
+     * Peephole rules to apply to the Jasmin code: "all", "none" or a comma separated list of rule names.
+     * Defaults to all rules when optimizations are enabled.
+     */
+    public static String getPeephole(Map<String, String> config) {
+        return config.getOrDefault(PEEPHOLE, getOptimize(config) ? "all" : "none");
+    }
+
+    /**
+     * Backend that generates the code: "jasmin" (the default) writes Jasmin code, "class" writes the class file directly.
+     */
+    public static String getBackend(Map<String, String> config) {
+        var backend = config.getOrDefault(BACKEND, "jasmin");
+
+        if (!backend.equals("jasmin") && !backend.equals("class")) {
+            throw new RuntimeException("Unknown backend '" + backend + "', expected 'jasmin' or 'class'");
+        }
+
+        return backend;
+    }
+
+    public static boolean isClassFileBackend(Map<String, String> config) {
+        return getBackend(config).equals("class");
+    }
+
+    /**
+     * True if the class being compiled is assumed to be the whole program: no other class extends it, and nothing
+     * outside it calls its methods, except main. Optimizations may then call its methods without virtual dispatch,
+     * and the class is generated as final, so the JVM refuses to load a class that extends it. Off by default.
+     */
+    public static boolean isClosedWorld(Map<String, String> config) {
+        return Boolean.parseBoolean(config.getOrDefault(CLOSED_WORLD, "false"));
+    }
+
 
     public static Map<String, String> getDefault() {
 
@@ -106,6 +146,7 @@ public class CompilerConfig {
         // Verify if values are valid
         getOptimize(config);
         getRegisterAllocation(config);
+        getBackend(config);
 
         return config;
     }
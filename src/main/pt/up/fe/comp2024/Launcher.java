@@ -6,6 +6,8 @@ import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp2024.analysis.JmmAnalysisImpl;
+import pt.up.fe.comp2024.backend.ClassFileBackend;
+import pt.up.fe.comp2024.backend.InProcessRunner;
 import pt.up.fe.comp2024.backend.JasminBackendImpl;
 import pt.up.fe.comp2024.optimization.JmmOptimizationImpl;
 import pt.up.fe.comp2024.parser.JmmParserImpl;
@@ -90,13 +92,35 @@ public class Launcher {
         OllirResult ollirResult = new OllirResult(hardcoded_ollir_code, null);
 
         // Code generation stage
+        if (CompilerConfig.isClassFileBackend(config)) {
+            var classFile = new ClassFileBackend().toClassFile(ollirResult);
+            TestUtils.noErrors(classFile.getReports());
+
+            var outputFile = classFile.write(inputFile.getAbsoluteFile().getParentFile());
+            System.out.println("Wrote " + outputFile);
+
+            printRun(new InProcessRunner().run(classFile));
+            return;
+        }
+
         JasminBackendImpl jasminGen = new JasminBackendImpl();
         JasminResult jasminResult = jasminGen.toJasmin(ollirResult);
         TestUtils.noErrors(jasminResult.getReports());
-        jasminResult.run();
+        printRun(new InProcessRunner().runJasmin(jasminResult.getJasminCode()));
 
         // Print Jasmin code
         System.out.println(jasminResult.getJasminCode());
     }
 
+    private static void printRun(InProcessRunner.Result result) {
+        System.out.print(result.output());
+
+        if (result.timedOut()) {
+            System.out.println(result.leaked() ? "Program did not finish in time and is still running"
+                    : "Program did not finish in time");
+        } else if (result.exception() != null) {
+            result.exception().printStackTrace();
+        }
+    }
+
 }
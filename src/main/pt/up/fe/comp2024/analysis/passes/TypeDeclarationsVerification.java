@@ -450,8 +450,8 @@ public class TypeDeclarationsVerification extends AnalysisVisitor {
             } else{
                 var args = functionCall.getChildren().subList(1, functionCall.getChildren().size());
 
-                String firstArgKind = args.get(0).getKind();
-                boolean allSameKind = args.stream().allMatch(arg -> arg.getKind().equals(firstArgKind));
+                // no arguments at all is an empty int...
+                boolean allSameKind = args.stream().map(JmmNode::getKind).distinct().count() <= 1;
 
                 if(!allSameKind){
                     addTypeError(functionCall, "All varargs arguments must be of the same type");
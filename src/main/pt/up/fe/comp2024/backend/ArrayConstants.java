@@ -0,0 +1,339 @@
+package pt.up.fe.comp2024.backend;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+
+import java.util.*;
+
+/**
+ * Arrays of literals, such as [1, 2, 3], that are kept in a static field of the class.
+ * <p>
+ * The field is allocated and filled once, in the static initializer. Arrays big enough are cloned from it on every
+ * evaluation instead of storing each element again, so each evaluation is still a new array, as in Java. An array that
+ * is only passed to the int... parameter of a method of the class that never changes it, or that has no elements at
+ * all, is the field itself: such calls allocate nothing. Identical arrays share the same field.
+ * <p>
+ * A subclass could override the called method with one that changes the array, so it is only shared if the method
+ * can not be overridden, or in a closed world (see {@link OllirUtils#isOverridable}).
+ */
+public class ArrayConstants {
+
+    // smaller arrays are filled in place, which takes less code than the field, its initializer and the clone
+    private static final int MIN_ELEMENTS = 16;
+
+    private static final String FIELD_PREFIX = "array_constant_";
+
+    /**
+     * A static field that holds an array, and the allocation and stores of the first array of literals it replaces.
+     */
+    public record ArrayConstant(String fieldName, ArrayType type, AssignInstruction allocation, List<AssignInstruction> stores) {
+    }
+
+    private final List<ArrayConstant> constants;
+
+    // allocations of arrays of literals, each with the field that replaces it
+    private final Map<Instruction, ArrayConstant> byAllocation;
+
+    // allocations replaced by the field itself, not by a clone of it
+    private final Set<Instruction> shared;
+
+    /**
+     * When not enabled, no array is kept in a field.
+     */
+    public ArrayConstants(ClassUnit classUnit, boolean enabled, boolean closedWorld) {
+        this.constants = new ArrayList<>();
+        this.byAllocation = new IdentityHashMap<>();
+        this.shared = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        if (!enabled) {
+            return;
+        }
+
+        var fieldNames = new HashSet<String>();
+        classUnit.getFields().forEach(field -> fieldNames.add(field.getFieldName()));
+
+        var byValues = new HashMap<List<String>, ArrayConstant>();
+
+        for (var method : classUnit.getMethods()) {
+            var instructions = method.getInstructions();
+            var labels = JasminGenerator.getLabelIndex(method);
+            var uses = countUses(method);
+
+            for (int i = 0; i < instructions.size(); i++) {
+                var stores = getInitStores(method, i, labels);
+                if (!isLiteralArray(instructions.get(i), stores)) {
+                    continue;
+                }
+
+                var allocation = (AssignInstruction) instructions.get(i);
+                boolean isShared = isReadOnlyArgument(classUnit, method, i + stores.size() + 1, allocation, uses,
+                        stores.isEmpty(), closedWorld);
+                if (!isShared && stores.size() < MIN_ELEMENTS) {
+                    continue;
+                }
+
+                if (isShared) {
+                    shared.add(allocation);
+                }
+
+                var constant = byValues.computeIfAbsent(getValues(allocation, stores), values -> {
+                    var name = FIELD_PREFIX + constants.size();
+                    while (fieldNames.contains(name)) {
+                        name = "_" + name;
+                    }
+
+                    var newConstant = new ArrayConstant(name, (ArrayType) allocation.getDest().getType(), allocation, stores);
+                    constants.add(newConstant);
+                    return newConstant;
+                });
+
+                byAllocation.put(allocation, constant);
+            }
+        }
+    }
+
+    public List<ArrayConstant> getConstants() {
+        return constants;
+    }
+
+    /**
+     * The field that holds the array the instruction allocates, or null if the array is filled in place.
+     */
+    public ArrayConstant get(Instruction allocation) {
+        return byAllocation.get(allocation);
+    }
+
+    /**
+     * True if the allocation is replaced by the field itself rather than a clone of it.
+     */
+    public boolean isShared(Instruction allocation) {
+        return shared.contains(allocation);
+    }
+
+    /**
+     * If the instruction at the index is "t := new(array, n)", the stores to elements of t that follow it, up to the
+     * first instruction that is not one. Stores that read t, or that are the target of a jump, end the list. The labels
+     * are those of each instruction of the method, as given by {@link JasminGenerator#getLabelIndex(Method)}.
+     */
+    public static List<AssignInstruction> getInitStores(Method method, int index, Map<Instruction, List<String>> labels) {
+        var instructions = method.getInstructions();
+
+        if (!(instructions.get(index) instanceof AssignInstruction allocation)
+                || !(allocation.getDest() instanceof Operand array) || array instanceof ArrayOperand
+                || !(allocation.getRhs() instanceof CallInstruction call) || call.getInvocationType() != CallType.NEW
+                || !(call.getReturnType() instanceof ArrayType)) {
+            return List.of();
+        }
+
+        var stores = new ArrayList<AssignInstruction>();
+
+        for (int i = index + 1; i < instructions.size(); i++) {
+            if (!(instructions.get(i) instanceof AssignInstruction store) || labels.containsKey(store)
+                    || !(store.getDest() instanceof ArrayOperand element) || !element.getName().equals(array.getName())
+                    || !(store.getRhs() instanceof SingleOpInstruction value)
+                    || isVariable(value.getSingleOperand(), array.getName())
+                    || element.getIndexOperands().stream().anyMatch(indexOperand -> isVariable(indexOperand, array.getName()))) {
+                break;
+            }
+
+            stores.add(store);
+        }
+
+        return stores;
+    }
+
+    /**
+     * True if the instruction allocates an array and the stores set each of its elements to a literal, in order.
+     */
+    private static boolean isLiteralArray(Instruction allocation, List<AssignInstruction> stores) {
+        if (!(allocation instanceof AssignInstruction assign) || !(assign.getRhs() instanceof CallInstruction newCall)
+                || newCall.getInvocationType() != CallType.NEW || !(newCall.getReturnType() instanceof ArrayType)
+                || assign.getDest() instanceof ArrayOperand) {
+            return false;
+        }
+
+        var call = (CallInstruction) ((AssignInstruction) allocation).getRhs();
+        var size = call.getOperands().get(1);
+        if (!(size instanceof LiteralElement sizeLiteral) || Integer.parseInt(sizeLiteral.getLiteral()) != stores.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < stores.size(); i++) {
+            var element = (ArrayOperand) stores.get(i).getDest();
+            var value = ((SingleOpInstruction) stores.get(i).getRhs()).getSingleOperand();
+
+            if (element.getIndexOperands().size() != 1 || !(element.getIndexOperands().get(0) instanceof LiteralElement index)
+                    || Integer.parseInt(index.getLiteral()) != i || !(value instanceof LiteralElement)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Number of times each variable is used in the method.
+     */
+    private static Map<String, Integer> countUses(Method method) {
+        var uses = new HashMap<String, Integer>();
+
+        for (var inst : method.getInstructions()) {
+            for (var variable : OllirUtils.getUsedVariables(inst)) {
+                uses.merge(variable, 1, Integer::sum);
+            }
+        }
+
+        return uses;
+    }
+
+    /**
+     * True if the array is only read by the call at the index, as the argument of a parameter the called method never
+     * changes nor lets escape. An array without elements can not be changed, so any method may receive it. The uses
+     * are those of each variable of the method, as counted by {@link #countUses(Method)}.
+     */
+    private static boolean isReadOnlyArgument(ClassUnit classUnit, Method method, int index, AssignInstruction allocation,
+                                              Map<String, Integer> uses, boolean isEmpty, boolean closedWorld) {
+        var instructions = method.getInstructions();
+        var array = ((Operand) allocation.getDest()).getName();
+
+        var call = index < instructions.size() ? getCall(instructions.get(index)) : null;
+        if (call == null) {
+            return false;
+        }
+
+        var arguments = call.getArguments();
+        int position = -1;
+        for (int i = 0; i < arguments.size(); i++) {
+            if (isVariable(arguments.get(i), array) && !(arguments.get(i) instanceof ArrayOperand)) {
+                position = i;
+            }
+        }
+
+        // the array must not be used anywhere else, since every evaluation now gets the same one
+        if (uses.getOrDefault(array, 0) != 1 || position < 0) {
+            return false;
+        }
+
+        if (isEmpty) {
+            return true;
+        }
+
+        var callee = getCallee(classUnit, call, closedWorld);
+        return callee != null && isReadOnly(callee, callee.getParams().get(position));
+    }
+
+    private static CallInstruction getCall(Instruction inst) {
+        var rhs = inst instanceof AssignInstruction assign ? assign.getRhs() : inst;
+        return rhs instanceof CallInstruction call ? call : null;
+    }
+
+    /**
+     * The method of the class the call reaches, or null if it is a method of another class, is overloaded, or may be
+     * overridden by a subclass.
+     */
+    private static Method getCallee(ClassUnit classUnit, CallInstruction call, boolean closedWorld) {
+        var type = call.getInvocationType();
+        if ((type != CallType.invokevirtual && type != CallType.invokestatic)
+                || !(call.getMethodName() instanceof LiteralElement literal)) {
+            return null;
+        }
+
+        var caller = call.getCaller();
+        boolean isThisClass = caller.getType().getTypeOfElement() == ElementType.THIS
+                || caller.getType() instanceof ClassType classType && classType.getName().equals(classUnit.getClassName())
+                || caller instanceof Operand operand && operand.getName().equals(classUnit.getClassName());
+        if (!isThisClass) {
+            return null;
+        }
+
+        var name = literal.getLiteral().replace("\"", "");
+        var candidates = classUnit.getMethods().stream()
+                .filter(method -> method.getMethodName().equals(name))
+                .toList();
+
+        if (candidates.size() != 1 || candidates.get(0).getParams().size() != call.getArguments().size()) {
+            return null;
+        }
+
+        var callee = candidates.get(0);
+        if (!callee.isStaticMethod() && OllirUtils.isOverridable(callee, closedWorld)) {
+            return null;
+        }
+
+        return callee;
+    }
+
+    /**
+     * True if the method only reads the elements and the length of the array parameter: it never stores in it, never
+     * assigns the parameter, and never passes, returns or copies the array itself.
+     */
+    private static boolean isReadOnly(Method method, Element param) {
+        if (!(param instanceof Operand operand)) {
+            return false;
+        }
+
+        var name = operand.getName();
+
+        for (var inst : method.getInstructions()) {
+            if (inst instanceof AssignInstruction assign && isVariable(assign.getDest(), name)) {
+                return false;
+            }
+
+            if (Collections.frequency(OllirUtils.getUsedVariables(inst), name) > countReads(inst, name)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Times the instruction reads an element or the length of the array.
+     */
+    private static int countReads(Instruction inst, String array) {
+        var rhs = inst instanceof AssignInstruction assign ? assign.getRhs() : inst;
+
+        if (rhs instanceof CallInstruction call && call.getInvocationType() == CallType.arraylength) {
+            return isVariable(call.getOperands().get(0), array) ? 1 : 0;
+        }
+
+        if (rhs instanceof CondBranchInstruction branch) {
+            return countReads(branch.getCondition(), array);
+        }
+
+        List<Element> elements = List.of();
+        if (rhs instanceof SingleOpInstruction singleOp) {
+            elements = List.of(singleOp.getSingleOperand());
+        } else if (rhs instanceof OpInstruction opInst) {
+            elements = opInst.getOperands();
+        } else if (rhs instanceof CallInstruction call) {
+            elements = call.getOperands();
+        } else if (rhs instanceof PutFieldInstruction putField) {
+            elements = putField.getOperands();
+        } else if (rhs instanceof ReturnInstruction ret && ret.getOperand() != null) {
+            elements = List.of(ret.getOperand());
+        }
+
+        return (int) elements.stream()
+                .filter(element -> element instanceof ArrayOperand arrayOperand && arrayOperand.getName().equals(array))
+                .count();
+    }
+
+    /**
+     * Type and values of an array of literals, which identify it among the others.
+     */
+    private static List<String> getValues(AssignInstruction allocation, List<AssignInstruction> stores) {
+        var values = new ArrayList<String>();
+        values.add(((ArrayType) allocation.getDest().getType()).getElementType().getTypeOfElement().name());
+
+        for (var store : stores) {
+            values.add(((LiteralElement) ((SingleOpInstruction) store.getRhs()).getSingleOperand()).getLiteral());
+        }
+
+        return values;
+    }
+
+    private static boolean isVariable(Element element, String name) {
+        return element instanceof Operand operand && operand.getName().equals(name);
+    }
+}
@@ -0,0 +1,92 @@
+package pt.up.fe.comp2024.backend;
+
+import org.specs.comp.ollir.AccessModifier;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.Stage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a class file straight from an OllirResult, without writing Jasmin code and assembling it.
+ * <p>
+ * Instruction selection and peephole optimizations are the ones of the {@link JasminGenerator}, so both backends
+ * produce the same code.
+ */
+public class ClassFileBackend {
+
+    public ClassFileResult toClassFile(OllirResult ollirResult) {
+        var generator = new JasminGenerator(ollirResult);
+        var classUnit = ollirResult.getOllirClass();
+        var className = classUnit.getClassName();
+
+        var reports = new ArrayList<Report>();
+        byte[] bytes = null;
+
+        try {
+            var superClass = generator.getSuperClass();
+            var writer = new ClassFileWriter(className, superClass, generator.isFinalClass());
+
+            for (var field : classUnit.getFields()) {
+                var access = getAccessFlags(field.getFieldAccessModifier(), field.isStaticField(), field.isFinalField());
+                writer.addField(access, field.getFieldName(), generator.getFieldDescriptor(field));
+            }
+
+            for (var constant : generator.getArrayConstants()) {
+                writer.addField(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC | ClassFileWriter.ACC_FINAL,
+                        constant.fieldName(), generator.getDescriptor(constant.type()));
+            }
+
+            // same default constructor as the Jasmin code
+            writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", List.of(
+                    JasminInstruction.of(Opcode.ALOAD_0),
+                    JasminInstruction.of(Opcode.INVOKESPECIAL, superClass + "/<init>()V"),
+                    JasminInstruction.of(Opcode.RETURN)));
+
+            var staticInitializer = generator.generateStaticInitializer();
+            if (!staticInitializer.isEmpty()) {
+                writer.addMethod(ClassFileWriter.ACC_STATIC, "<clinit>", "()V", staticInitializer);
+            }
+
+            var methods = classUnit.getMethods().stream()
+                    .filter(method -> !method.isConstructMethod())
+                    .toList();
+            var bodies = generator.generateInParallel(methods, generator::generateInstructions);
+
+            for (int i = 0; i < methods.size(); i++) {
+                var method = methods.get(i);
+                var access = getAccessFlags(method.getMethodAccessModifier(), generator.isStaticMethod(method), method.isFinalMethod());
+                writer.addMethod(access, method.getMethodName(), generator.getMethodDescriptor(method), bodies.get(i),
+                        generator.getLocalTypes(method));
+            }
+
+            bytes = writer.toByteArray();
+        } catch (RuntimeException e) {
+            reports.add(Report.newError(Stage.GENERATION, -1, -1, "Could not generate class " + className + ": " + e.getMessage(), e));
+        }
+
+        reports.addAll(generator.getReports());
+        reports.addAll(generator.getPeepholeReports());
+
+        return new ClassFileResult(className, bytes, reports);
+    }
+
+    private static int getAccessFlags(AccessModifier modifier, boolean isStatic, boolean isFinal) {
+        int access = switch (modifier) {
+            case PUBLIC -> ClassFileWriter.ACC_PUBLIC;
+            case PRIVATE -> ClassFileWriter.ACC_PRIVATE;
+            case PROTECTED -> ClassFileWriter.ACC_PROTECTED;
+            default -> 0;
+        };
+
+        if (isStatic) {
+            access |= ClassFileWriter.ACC_STATIC;
+        }
+        if (isFinal) {
+            access |= ClassFileWriter.ACC_FINAL;
+        }
+
+        return access;
+    }
+}
@@ -0,0 +1,57 @@
+package pt.up.fe.comp2024.backend;
+
+import pt.up.fe.comp.jmm.report.Report;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * A class file produced by the {@link ClassFileBackend}.
+ */
+public class ClassFileResult {
+
+    private final String className;
+    private final byte[] bytes;
+    private final List<Report> reports;
+
+    public ClassFileResult(String className, byte[] bytes, List<Report> reports) {
+        this.className = className;
+        this.bytes = bytes;
+        this.reports = reports;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Contents of the class file, or null if it could not be generated (see the reports).
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public List<Report> getReports() {
+        return reports;
+    }
+
+    /**
+     * Writes ClassName.class to the given folder and returns the file.
+     */
+    public File write(File folder) {
+        if (bytes == null) {
+            throw new RuntimeException("Class " + className + " was not generated");
+        }
+
+        var file = new File(folder, className + ".class");
+        try {
+            Files.write(file.toPath(), bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + file, e);
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,154 @@
+package pt.up.fe.comp2024.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the bytes of a class file, with the fields and methods added to it.
+ * <p>
+ * The code of each method is assembled when the method is added, so the constant pool is complete by the time the
+ * class is written. Classes are written in the Java 8 format, with stack map frames, so the JVM verifies them
+ * with the type-checking verifier.
+ */
+public class ClassFileWriter {
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_PROTECTED = 0x0004;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int MAJOR_VERSION = 52;
+
+    private final ConstantPool constantPool;
+    private final String className;
+    private final int thisClass;
+    private final int superClass;
+    private final int access;
+    private final List<byte[]> fields;
+    private final List<byte[]> methods;
+
+    /**
+     * Class and superclass are given by their internal names, such as java/lang/Object.
+     */
+    public ClassFileWriter(String className, String superClass) {
+        this(className, superClass, false);
+    }
+
+    public ClassFileWriter(String className, String superClass, boolean isFinal) {
+        this.access = ACC_PUBLIC | ACC_SUPER | (isFinal ? ACC_FINAL : 0);
+        this.constantPool = new ConstantPool();
+        this.className = className;
+        this.thisClass = constantPool.addClass(className);
+        this.superClass = constantPool.addClass(superClass);
+        this.fields = new ArrayList<>();
+        this.methods = new ArrayList<>();
+    }
+
+    public void addField(int access, String name, String descriptor) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+
+        try {
+            out.writeShort(access);
+            out.writeShort(constantPool.addUtf8(name));
+            out.writeShort(constantPool.addUtf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        fields.add(bytes.toByteArray());
+    }
+
+    public void addMethod(int access, String name, String descriptor, List<JasminInstruction> code) {
+        addMethod(access, name, descriptor, code, Map.of());
+    }
+
+    /**
+     * Adds a method whose registers have the given descriptors, as declared in its var table.
+     */
+    public void addMethod(int access, String name, String descriptor, List<JasminInstruction> code,
+                          Map<Integer, String> localTypes) {
+        var assembler = new MethodAssembler(constantPool, className, name, descriptor, (access & ACC_STATIC) != 0, localTypes);
+        assembler.assemble(code);
+
+        var stackMapTable = assembler.getStackMapTable();
+        int attributesLength = stackMapTable != null ? 6 + stackMapTable.length : 0;
+
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+
+        try {
+            out.writeShort(access);
+            out.writeShort(constantPool.addUtf8(name));
+            out.writeShort(constantPool.addUtf8(descriptor));
+
+            // a single Code attribute, without exception handlers, and with the stack map frames if there are jumps
+            out.writeShort(1);
+            out.writeShort(constantPool.addUtf8("Code"));
+            out.writeInt(12 + assembler.getCode().length + attributesLength);
+            out.writeShort(assembler.getMaxStack());
+            out.writeShort(assembler.getMaxLocals());
+            out.writeInt(assembler.getCode().length);
+            out.write(assembler.getCode());
+            out.writeShort(0);
+
+            if (stackMapTable == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(constantPool.addUtf8("StackMapTable"));
+                out.writeInt(stackMapTable.length);
+                out.write(stackMapTable);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        methods.add(bytes.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+
+            constantPool.write(out);
+
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+
+            // no interfaces
+            out.writeShort(0);
+
+            out.writeShort(fields.size());
+            for (var field : fields) {
+                out.write(field);
+            }
+
+            out.writeShort(methods.size());
+            for (var method : methods) {
+                out.write(method);
+            }
+
+            // no class attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,134 @@
+package pt.up.fe.comp2024.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Constant pool of a class file. Each constant is added once and keeps the index it got the first time.
+ */
+public class ConstantPool {
+
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final Map<String, Integer> indexes;
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream out;
+
+    // the first index is 1
+    private int count;
+
+    public ConstantPool() {
+        this.indexes = new HashMap<>();
+        this.bytes = new ByteArrayOutputStream();
+        this.out = new DataOutputStream(bytes);
+        this.count = 1;
+    }
+
+    public int addUtf8(String value) {
+        return add("U" + value, () -> {
+            out.writeByte(UTF8);
+            out.writeUTF(value);
+        });
+    }
+
+    public int addInteger(int value) {
+        return add("I" + value, () -> {
+            out.writeByte(INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    /**
+     * Class given by its internal name, such as java/lang/Object.
+     */
+    public int addClass(String name) {
+        int nameIndex = addUtf8(name);
+        return add("C" + name, () -> {
+            out.writeByte(CLASS);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    public int addString(String value) {
+        int valueIndex = addUtf8(value);
+        return add("S" + value, () -> {
+            out.writeByte(STRING);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    public int addFieldRef(String owner, String name, String descriptor) {
+        return addMemberRef(FIELD_REF, owner, name, descriptor);
+    }
+
+    public int addMethodRef(String owner, String name, String descriptor) {
+        return addMemberRef(METHOD_REF, owner, name, descriptor);
+    }
+
+    public int addInterfaceMethodRef(String owner, String name, String descriptor) {
+        return addMemberRef(INTERFACE_METHOD_REF, owner, name, descriptor);
+    }
+
+    private int addMemberRef(int tag, String owner, String name, String descriptor) {
+        int classIndex = addClass(owner);
+        int nameAndTypeIndex = addNameAndType(name, descriptor);
+        return add(tag + ":" + owner + "." + name + ":" + descriptor, () -> {
+            out.writeByte(tag);
+            out.writeShort(classIndex);
+            out.writeShort(nameAndTypeIndex);
+        });
+    }
+
+    private int addNameAndType(String name, String descriptor) {
+        int nameIndex = addUtf8(name);
+        int descriptorIndex = addUtf8(descriptor);
+        return add("N" + name + ":" + descriptor, () -> {
+            out.writeByte(NAME_AND_TYPE);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    private int add(String key, Entry entry) {
+        var index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            entry.write();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (count > 0xFFFF) {
+            throw new RuntimeException("Constant pool has more than 65535 entries");
+        }
+
+        indexes.put(key, count);
+        return count++;
+    }
+
+    /**
+     * Writes the constant_pool_count followed by the entries.
+     */
+    public void write(DataOutputStream dest) throws IOException {
+        dest.writeShort(count);
+        bytes.writeTo(dest);
+    }
+
+    @FunctionalInterface
+    private interface Entry {
+        void write() throws IOException;
+    }
+}
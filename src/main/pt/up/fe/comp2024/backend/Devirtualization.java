@@ -0,0 +1,162 @@
+package pt.up.fe.comp2024.backend;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+
+import java.util.*;
+
+/**
+ * Decides which calls to methods of the class being compiled do not need virtual dispatch.
+ * <p>
+ * Only a call to a method no subclass can override always reaches the method the class declares (see
+ * {@link OllirUtils#isOverridable}). Such calls become an invokespecial, and every other call keeps its invokevirtual.
+ * The generated class is public and may be extended, so without the closed world option only calls to private or
+ * final methods qualify, and Java-- has neither: that option is what makes this pass rewrite calls.
+ * <p>
+ * Methods that never use this are generated as static and called with invokestatic, without loading the object. A
+ * method that only uses this to call methods that become static does not need it either. Only private methods may
+ * change, unless in a closed world, where nothing outside the class calls its methods. Even then, methods that could
+ * override a method of the super class keep being instance methods, since the super class may call them.
+ */
+public class Devirtualization {
+
+    // methods of Object a class may override
+    private static final Set<String> OBJECT_METHODS = Set.of("equals", "hashCode", "toString", "finalize", "clone");
+
+    private final String className;
+    private final boolean closedWorld;
+    private final Map<String, Method> methods;
+    private final Set<String> staticMethods;
+
+    /**
+     * When not enabled, every call keeps its instruction.
+     */
+    public Devirtualization(ClassUnit classUnit, boolean enabled, boolean closedWorld) {
+        this.className = classUnit.getClassName();
+        this.closedWorld = closedWorld;
+        this.methods = new HashMap<>();
+        this.staticMethods = new HashSet<>();
+
+        if (!enabled) {
+            return;
+        }
+
+        var overloaded = new HashSet<String>();
+        for (var method : classUnit.getMethods()) {
+            if (method.isConstructMethod()) {
+                continue;
+            }
+
+            if (methods.put(method.getMethodName(), method) != null) {
+                overloaded.add(method.getMethodName());
+            }
+        }
+        overloaded.forEach(methods::remove);
+
+        findStaticMethods(classUnit);
+    }
+
+    /**
+     * True if the instance method is generated as a static one.
+     */
+    public boolean isMadeStatic(Method method) {
+        return !method.isStaticMethod() && staticMethods.contains(method.getMethodName()) &&
+                methods.get(method.getMethodName()) == method;
+    }
+
+    /**
+     * Instruction that calls the method of an invokevirtual: invokestatic, invokespecial or invokevirtual itself.
+     */
+    public Opcode getInvocation(CallInstruction call) {
+        var name = getTarget(call);
+
+        if (name == null) {
+            return Opcode.INVOKEVIRTUAL;
+        }
+
+        if (staticMethods.contains(name)) {
+            return Opcode.INVOKESTATIC;
+        }
+
+        return OllirUtils.isOverridable(methods.get(name), closedWorld) ? Opcode.INVOKEVIRTUAL : Opcode.INVOKESPECIAL;
+    }
+
+    /**
+     * Name of the instance method of this class an invokevirtual reaches, or null if it may reach another one.
+     */
+    private String getTarget(CallInstruction call) {
+        if (call.getInvocationType() != CallType.invokevirtual || !(call.getCaller().getType() instanceof ClassType caller)) {
+            return null;
+        }
+
+        boolean isThisClass = caller.getTypeOfElement() == ElementType.THIS || caller.getName().equals(className);
+        if (!isThisClass || !(call.getMethodName() instanceof LiteralElement literal)) {
+            return null;
+        }
+
+        var method = methods.get(literal.getLiteral().replace("\"", ""));
+        if (method == null || method.isStaticMethod() || method.getParams().size() != call.getArguments().size()) {
+            return null;
+        }
+
+        return method.getMethodName();
+    }
+
+    /**
+     * Starts with every method that may become static and removes the ones that use this, until none does.
+     */
+    private void findStaticMethods(ClassUnit classUnit) {
+        var superClass = classUnit.getSuperClass();
+        boolean extendsObject = superClass == null || superClass.equals("Object") || superClass.equals("java.lang.Object");
+
+        for (var method : methods.values()) {
+            if (method.isStaticMethod()) {
+                continue;
+            }
+
+            boolean isPrivate = method.getMethodAccessModifier() == AccessModifier.PRIVATE;
+            if (isPrivate || (closedWorld && extendsObject && !OBJECT_METHODS.contains(method.getMethodName()))) {
+                staticMethods.add(method.getMethodName());
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = staticMethods.removeIf(name -> usesThis(methods.get(name)));
+        }
+    }
+
+    private boolean usesThis(Method method) {
+        for (var inst : method.getInstructions()) {
+            var uses = Collections.frequency(OllirUtils.getUsedVariables(inst), "this");
+
+            // calling a method that becomes static does not load this
+            var call = getCall(inst);
+            if (call != null && isThis(call.getCaller()) && staticMethods.contains(getTarget(call))) {
+                uses--;
+            }
+
+            if (uses > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static CallInstruction getCall(Instruction inst) {
+        if (inst instanceof CallInstruction call) {
+            return call;
+        }
+
+        if (inst instanceof AssignInstruction assign && assign.getRhs() instanceof CallInstruction call) {
+            return call;
+        }
+
+        return null;
+    }
+
+    private static boolean isThis(Element element) {
+        return element instanceof Operand operand && operand.getName().equals("this");
+    }
+}
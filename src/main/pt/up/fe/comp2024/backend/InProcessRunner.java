@@ -0,0 +1,255 @@
+package pt.up.fe.comp2024.backend;
+
+import jasmin.ClassFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs generated classes inside the current JVM, instead of starting a new one for each program.
+ * <p>
+ * Each run defines the class in a new class loader, so classes with the same name do not clash, calls its main
+ * and captures what it prints. Classes the generated code uses, such as io, are looked up in the given folders and
+ * then in the class path of the compiler.
+ * <p>
+ * System.out is shared by the whole JVM, so it is replaced once by a stream that sends what each thread prints to
+ * the capture of the run that thread belongs to, or to the original System.out for threads outside any run. A program
+ * that does not stop in time can not be killed: its thread is interrupted and, if still alive, reported as leaked,
+ * and its capture is closed so nothing it prints afterwards reaches the output of another run.
+ */
+public class InProcessRunner {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    // compiled classes of the libraries Java-- programs import, when they are not in the class path
+    private static final File LIBRARIES = new File("libs-jmm/compiled");
+
+    // how long a program that timed out gets to stop after being interrupted, before it is reported as leaked
+    private static final long STOP_MILLIS = 100;
+
+    // capture of the run the current thread belongs to; threads a program starts belong to its run too
+    private static final InheritableThreadLocal<Capture> CAPTURE = new InheritableThreadLocal<>();
+
+    private static PrintStream routedOut;
+
+    private final long timeoutMillis;
+    private final URL[] classPath;
+
+    public InProcessRunner() {
+        this(DEFAULT_TIMEOUT_MILLIS, LIBRARIES);
+    }
+
+    public InProcessRunner(long timeoutMillis, File... classPath) {
+        this.timeoutMillis = timeoutMillis;
+
+        var urls = new ArrayList<URL>();
+        for (var folder : classPath) {
+            if (!folder.isDirectory()) {
+                continue;
+            }
+
+            try {
+                urls.add(folder.toURI().toURL());
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        this.classPath = urls.toArray(URL[]::new);
+    }
+
+    /**
+     * What a program printed, and how it ended.
+     */
+    public record Result(String output, Throwable exception, boolean timedOut, boolean leaked) {
+
+        public boolean isSuccess() {
+            return exception == null && !timedOut;
+        }
+    }
+
+    /**
+     * Assembles the Jasmin code in memory and runs it.
+     */
+    public Result runJasmin(String jasminCode, String... args) {
+        var classFile = new ClassFile();
+        var bytes = new ByteArrayOutputStream();
+
+        try {
+            classFile.readJasmin(new StringReader(jasminCode), "", false);
+            if (classFile.errorCount() > 0) {
+                throw new RuntimeException(classFile.errorCount() + " errors while assembling the Jasmin code");
+            }
+            classFile.write(bytes);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not assemble Jasmin code: " + e.getMessage(), e);
+        }
+
+        return run(classFile.getClassName().replace('/', '.'), bytes.toByteArray(), args);
+    }
+
+    public Result run(ClassFileResult classFile, String... args) {
+        if (classFile.getBytes() == null) {
+            throw new RuntimeException("Class " + classFile.getClassName() + " was not generated");
+        }
+
+        return run(classFile.getClassName(), classFile.getBytes(), args);
+    }
+
+    /**
+     * Defines the class from its bytes and calls its main with the arguments.
+     */
+    public Result run(String className, byte[] bytes, String... args) {
+        var loader = new GeneratedClassLoader(classPath, getClass().getClassLoader(), className, bytes);
+        var capture = new Capture();
+        var threads = new ArrayList<Thread>();
+
+        var executor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "run-" + className);
+            thread.setDaemon(true);
+            threads.add(thread);
+            return thread;
+        });
+
+        routeOutput();
+        try {
+            var future = executor.submit(() -> {
+                CAPTURE.set(capture);
+                var main = loader.loadClass(className).getMethod("main", String[].class);
+                main.invoke(null, (Object) args);
+                return null;
+            });
+
+            future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return new Result(capture.close(), null, false, false);
+        } catch (TimeoutException e) {
+            executor.shutdownNow();
+            return new Result(capture.close(), null, true, isLeaked(threads));
+        } catch (ExecutionException e) {
+            var cause = e.getCause() instanceof InvocationTargetException target ? target.getCause() : e.getCause();
+            return new Result(capture.close(), cause, false, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(capture.close(), e, false, false);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits a little for the interrupted thread of the program, and returns true if it is still running.
+     */
+    private static boolean isLeaked(List<Thread> threads) {
+        for (var thread : threads) {
+            try {
+                thread.join(STOP_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces System.out by the stream that routes each thread to its capture, unless it already is.
+     */
+    private static synchronized void routeOutput() {
+        if (System.out == routedOut) {
+            return;
+        }
+
+        var stdout = System.out;
+        routedOut = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                var capture = CAPTURE.get();
+                if (capture != null) {
+                    capture.write(b, off, len);
+                } else {
+                    stdout.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() {
+                if (CAPTURE.get() == null) {
+                    stdout.flush();
+                }
+            }
+        }, true);
+        System.setOut(routedOut);
+    }
+
+    /**
+     * What the threads of one run printed, until the run ends.
+     */
+    private static class Capture {
+
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private boolean closed;
+
+        synchronized void write(byte[] b, int off, int len) {
+            if (!closed) {
+                output.write(b, off, len);
+            }
+        }
+
+        /**
+         * Drops anything written from now on, and returns what was written until now.
+         */
+        synchronized String close() {
+            closed = true;
+            return output.toString();
+        }
+    }
+
+    private static class GeneratedClassLoader extends URLClassLoader {
+
+        private final String className;
+        private final byte[] bytes;
+
+        GeneratedClassLoader(URL[] classPath, ClassLoader parent, String className, byte[] bytes) {
+            super(classPath, parent);
+            this.className = className;
+            this.bytes = bytes;
+        }
+
+        // the generated class comes first, even if the parent has a class with the same name
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(className)) {
+                return super.loadClass(name, resolve);
+            }
+
+            synchronized (getClassLoadingLock(name)) {
+                var loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    loaded = defineClass(name, bytes, 0, bytes.length);
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+    }
+}
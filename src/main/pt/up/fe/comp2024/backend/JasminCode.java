@@ -0,0 +1,57 @@
+package pt.up.fe.comp2024.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instructions of a method body, in the order the generator appends them.
+ * <p>
+ * The code only becomes text when the method is rendered, once every optimization is done.
+ */
+public class JasminCode {
+
+    private final List<JasminInstruction> instructions;
+
+    public JasminCode() {
+        this.instructions = new ArrayList<>();
+    }
+
+    public JasminCode add(Opcode opcode, String... args) {
+        instructions.add(JasminInstruction.of(opcode, args));
+        return this;
+    }
+
+    public JasminCode add(Opcode opcode, int arg) {
+        return add(opcode, String.valueOf(arg));
+    }
+
+    /**
+     * Load or store of a local variable, in its shortest form.
+     */
+    public JasminCode local(Opcode opcode, int reg) {
+        instructions.add(JasminInstruction.local(opcode, reg));
+        return this;
+    }
+
+    public JasminCode label(String name) {
+        instructions.add(JasminInstruction.label(name));
+        return this;
+    }
+
+    public List<JasminInstruction> getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Jasmin text of the instructions, one per line, with instructions indented and labels not.
+     */
+    public static String render(List<JasminInstruction> instructions, String indent) {
+        var code = new StringBuilder();
+
+        for (var inst : instructions) {
+            code.append(inst.isLabel() ? "" : indent).append(inst).append("\n");
+        }
+
+        return code.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package pt.up.fe.comp2024.backend;
+
+import org.specs.comp.ollir.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM names and descriptors of the types used by a class.
+ * <p>
+ * Class names are resolved with the imports of the class: "Foo" becomes "a/b/Foo" if the class imports a.b.Foo.
+ * The table is built once, and descriptors of classes are kept after the first time they are asked for, so every
+ * lookup takes constant time. Lookups can be done from several threads.
+ */
+public class JasminDescriptors {
+
+    private static final String STRING = "Ljava/lang/String;";
+
+    private final String className;
+
+    // simple and qualified names of the imported classes and of the class itself
+    private final Map<String, String> internalNames;
+
+    private final Map<String, String> classDescriptors;
+
+    public JasminDescriptors(ClassUnit classUnit) {
+        this.className = classUnit.getClassName();
+        this.internalNames = new HashMap<>();
+        this.classDescriptors = new ConcurrentHashMap<>();
+
+        for (var qualifiedName : classUnit.getImports()) {
+            var internalName = qualifiedName.replace('.', '/');
+            var simpleName = qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+
+            internalNames.put(simpleName, internalName);
+            internalNames.put(qualifiedName, internalName);
+        }
+
+        internalNames.put(className, className);
+    }
+
+    /**
+     * Internal name of a class, such as java/lang/Object, given its simple or qualified name.
+     */
+    public String getInternalName(String name) {
+        var internalName = internalNames.get(name);
+        return internalName != null ? internalName : name.replace('.', '/');
+    }
+
+    /**
+     * Field descriptor of an OLLIR type, such as I, [I or Ljava/lang/String;.
+     */
+    public String getDescriptor(Type type) {
+        return switch (type.getTypeOfElement()) {
+            case INT32 -> "I";
+            case BOOLEAN -> "Z";
+            case VOID -> "V";
+            case STRING -> STRING;
+            case THIS -> getClassDescriptor(className);
+            case OBJECTREF, CLASS -> getClassDescriptor(((ClassType) type).getName());
+            case ARRAYREF -> getArrayDescriptor((ArrayType) type);
+        };
+    }
+
+    /**
+     * Method descriptor, such as (I[Ljava/lang/String;)V, of the given parameters and return type.
+     */
+    public String getMethodDescriptor(List<Element> params, Type returnType) {
+        var descriptor = new StringBuilder("(");
+
+        for (var param : params) {
+            descriptor.append(getDescriptor(param.getType()));
+        }
+
+        return descriptor.append(")").append(getDescriptor(returnType)).toString();
+    }
+
+    /**
+     * Internal name of the class of the elements of an array of objects, used by anewarray.
+     */
+    public String getElementClass(ArrayType type) {
+        var elementType = type.getElementType();
+
+        return switch (elementType.getTypeOfElement()) {
+            case STRING -> "java/lang/String";
+            case THIS -> className;
+            case OBJECTREF, CLASS -> getInternalName(((ClassType) elementType).getName());
+            default -> throw new IllegalArgumentException("Not an array of objects: " + type);
+        };
+    }
+
+    private String getClassDescriptor(String name) {
+        return classDescriptors.computeIfAbsent(name, key -> "L" + getInternalName(key) + ";");
+    }
+
+    private String getArrayDescriptor(ArrayType type) {
+        var element = getDescriptor(type.getElementType());
+        var dimensions = Math.max(1, type.getNumDimensions());
+
+        return "[".repeat(dimensions) + element;
+    }
+}
@@ -4,15 +4,20 @@ import org.specs.comp.ollir.*;
 import org.specs.comp.ollir.tree.TreeNode;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2024.CompilerConfig;
+import pt.up.fe.comp2024.optimization.OllirUtils;
 import pt.up.fe.specs.util.classmap.FunctionClassMap;
 import pt.up.fe.specs.util.exceptions.NotImplementedException;
-import pt.up.fe.specs.util.utilities.StringLines;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.function.BinaryOperator;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.function.Function;
 
 import static org.specs.comp.ollir.OperandType.INT32;
 import static pt.up.fe.comp2024.JavammLexer.NEW;
@@ -20,44 +25,107 @@ import static pt.up.fe.comp2024.JavammLexer.NEW;
 /**
  * Generates Jasmin code from an OllirResult.
  * <p>
- * One JasminGenerator instance per OllirResult.
+ * One JasminGenerator instance per OllirResult. Methods are generated in parallel, each by a generator of its own.
  */
 public class JasminGenerator {
 
     private static final String NL = "\n";
     private static final String TAB = "   ";
 
+    /**
+     * How a comparison whose value is stored is computed from a &lt; b: whether the operands are swapped and whether the
+     * result is flipped. Comparisons without a rule go through a jump.
+     */
+    private record BranchlessRule(boolean swap, boolean negate) {
+    }
+
+    private static final Map<OperationType, BranchlessRule> BRANCHLESS_COMPARISONS = new EnumMap<>(Map.of(
+            OperationType.LTH, new BranchlessRule(false, false),
+            OperationType.GTH, new BranchlessRule(true, false),
+            OperationType.GTE, new BranchlessRule(false, true),
+            OperationType.LTE, new BranchlessRule(true, true)));
+
     private final OllirResult ollirResult;
 
+    private final JasminDescriptors descriptors;
+
+    private final Devirtualization devirtualization;
+
+    // generated as final in a closed world, so the JVM enforces that no class extends it
+    private final boolean isFinalClass;
+
+    private final ArrayConstants arrayConstants;
+
     List<Report> reports;
 
     String code;
 
     Method currentMethod;
 
-    private final FunctionClassMap<TreeNode, String> generators;
+    // the generators of instructions and operands append to the code of the current method
+    private final FunctionClassMap<TreeNode, JasminCode> generators;
+
+    private JasminCode methodCode;
+
+    // labels of the instructions of the current method
+    private Map<Instruction, List<String>> labels;
+
+    private final JasminPeephole peephole;
+
+    // numbers the labels the generator creates itself
+    private int labelCounter;
 
     public JasminGenerator(OllirResult ollirResult) {
         this.ollirResult = ollirResult;
+        this.descriptors = new JasminDescriptors(ollirResult.getOllirClass());
 
         reports = new ArrayList<>();
         code = null;
         currentMethod = null;
 
-        this.generators = new FunctionClassMap<>();
-        generators.put(ClassUnit.class, this::generateClassUnit);
-        generators.put(Method.class, this::generateMethod);
+        var config = ollirResult.getConfig() != null ? ollirResult.getConfig() : Collections.<String, String>emptyMap();
+        peephole = JasminPeephole.fromConfig(config);
+        isFinalClass = ollirResult.getOllirClass().isFinalClass()
+                || (CompilerConfig.getOptimize(config) && CompilerConfig.isClosedWorld(config));
+        devirtualization = new Devirtualization(ollirResult.getOllirClass(), CompilerConfig.getOptimize(config),
+                CompilerConfig.isClosedWorld(config));
+        arrayConstants = new ArrayConstants(ollirResult.getOllirClass(), CompilerConfig.getOptimize(config),
+                CompilerConfig.isClosedWorld(config));
+
+        this.generators = newGenerators();
+    }
+
+    /**
+     * Generator of a single method, which shares everything about the class with the given generator and keeps the
+     * state of the method for itself.
+     */
+    private JasminGenerator(JasminGenerator classGenerator) {
+        this.ollirResult = classGenerator.ollirResult;
+        this.descriptors = classGenerator.descriptors;
+        this.reports = classGenerator.reports;
+        this.peephole = classGenerator.peephole;
+        this.devirtualization = classGenerator.devirtualization;
+        this.isFinalClass = classGenerator.isFinalClass;
+        this.arrayConstants = classGenerator.arrayConstants;
+
+        this.generators = newGenerators();
+    }
+
+    private FunctionClassMap<TreeNode, JasminCode> newGenerators() {
+        var generators = new FunctionClassMap<TreeNode, JasminCode>();
         generators.put(CondBranchInstruction.class, this::generateBranch);
         generators.put(AssignInstruction.class, this::generateAssign);
         generators.put(SingleOpInstruction.class, this::generateSingleOp);
         generators.put(LiteralElement.class, this::generateLiteral);
         generators.put(Operand.class, this::generateOperand);
         generators.put(BinaryOpInstruction.class, this::generateBinaryOp);
+        generators.put(UnaryOpInstruction.class, this::generateUnaryOp);
         generators.put(GotoInstruction.class, this::generateGoto);
         generators.put(ReturnInstruction.class, this::generateReturn);
         generators.put(CallInstruction.class, this::generateCall);
         generators.put(PutFieldInstruction.class, this::generatePutField);
         generators.put(GetFieldInstruction.class, this::generateGetField);
+        return generators;
     }
 
 
@@ -69,12 +137,27 @@ public class JasminGenerator {
 
         // This way, build is idempotent
         if (code == null) {
-            code = generators.apply(ollirResult.getOllirClass());
+            code = generateClassUnit(ollirResult.getOllirClass());
+            reports.addAll(getPeepholeReports());
         }
 
         return code;
     }
 
+    /**
+     * How many times each peephole rule fired in the methods generated so far.
+     */
+    public List<Report> getPeepholeReports() {
+        var peepholeReports = new ArrayList<Report>();
+
+        for (var rule : peephole.getStatistics().entrySet()) {
+            peepholeReports.add(Report.newLog(Stage.GENERATION, -1, -1,
+                    "Peephole rule " + rule.getKey() + " fired " + rule.getValue() + " times", null));
+        }
+
+        return peepholeReports;
+    }
+
 
     private String generateClassUnit(ClassUnit classUnit) {
 
@@ -82,29 +165,18 @@ public class JasminGenerator {
 
         // generate class name
         var className = ollirResult.getOllirClass().getClassName();
-        code.append(".class public ").append(className).append(NL).append(NL);
+        code.append(".class public ").append(isFinalClass ? "final " : "").append(className).append(NL).append(NL);
 
         // TODO: Hardcoded to Object, needs to be expanded
 
-        String superclass = classUnit.getSuperClass() != null ?
-                classUnit.getSuperClass().toString():
-                "java/lang/Object";
+        String superclass = getSuperClass();
         String superCode = ".super " + superclass;
 
         code.append(superCode).append(NL);
 
 
-        String c;
-
         for (var field : ollirResult.getOllirClass().getFields()) {
-            switch(field.getFieldType().getTypeOfElement()) {
-                case INT32 -> c = "I";
-                case OBJECTREF -> c = buggyGetObjImports(field);
-                case BOOLEAN -> c = "Z";
-                case VOID -> c = "V";
-                case STRING -> c = "Ljava/lang/String;";
-                default -> c = "";
-            }
+            String c = getFieldDescriptor(field);
 
             String access;
 
@@ -125,6 +197,11 @@ public class JasminGenerator {
 
         }
 
+        for (var constant : arrayConstants.getConstants()) {
+            code.append(".field private static final ").append(constant.fieldName()).append(" ")
+                    .append(descriptors.getDescriptor(constant.type())).append(NL);
+        }
+
         // generate a single constructor method
         var defaultConstructor = """
                 ;default constructor
@@ -137,96 +214,130 @@ public class JasminGenerator {
                 """;
         code.append(defaultConstructor);
 
-        // generate code for all other methods
-        for (var method : ollirResult.getOllirClass().getMethods()) {
+        var staticInitializer = generateStaticInitializer();
+        if (!staticInitializer.isEmpty()) {
+            code.append("\n.method static <clinit>()V").append(NL);
+            appendLimits(code, staticInitializer, "()V", true);
+            code.append(JasminCode.render(staticInitializer, TAB));
+            code.append(".end method\n");
+        }
 
-            // Ignore constructor, since there is always one constructor
-            // that receives no arguments, and has been already added
-            // previously
-            if (method.isConstructMethod()) {
-                continue;
-            }
+        // generate code for all other methods, in parallel, and join them in the order they were declared.
+        // Ignore constructor, since there is always one constructor
+        // that receives no arguments, and has been already added
+        // previously
+        var methods = ollirResult.getOllirClass().getMethods().stream()
+                .filter(method -> !method.isConstructMethod())
+                .toList();
 
-            code.append(generators.apply(method));
+        for (var generatedMethod : generateInParallel(methods, this::generateMethod)) {
+            code.append(generatedMethod);
         }
 
         return code.toString();
     }
 
-    //buggyGetObjImports, auxForPutandGet, returnTypeObj são funções feitas para os casos em que os tipos de fields, return types ... são OBJECTREF
-    private String buggyGetObjImports(Field field) {
-        var aux_string = field.getFieldType().toString();
-        int indexPrimeiroPar = aux_string.indexOf('(');
-        int indexSegundoPar = aux_string.lastIndexOf(')');
-        String complexField = "";
-        String aux = "";
+    /**
+     * True if the class is generated as final.
+     */
+    public boolean isFinalClass() {
+        return isFinalClass;
+    }
 
-        if (indexPrimeiroPar != -1 && indexSegundoPar != -1 && indexPrimeiroPar < indexSegundoPar) {
-            aux = aux_string.substring(indexPrimeiroPar + 1, indexSegundoPar);
-        } else {
-            return "";
-        }
+    public String getSuperClass() {
+        var superClass = ollirResult.getOllirClass().getSuperClass();
+        return superClass != null ? descriptors.getInternalName(superClass) : "java/lang/Object";
+    }
 
-        for (var complexImport : ollirResult.getOllirClass().getImports()) {
-            if (complexImport.substring(complexImport.lastIndexOf(".") + 1 ).equals(aux)) {
-                complexField = ("L" + complexImport).replace(".","/");
-            }
-        }
+    public String getFieldDescriptor(Field field) {
+        return descriptors.getDescriptor(field.getFieldType());
+    }
 
-        return complexField;
+    public String getDescriptor(Type type) {
+        return descriptors.getDescriptor(type);
     }
 
-    private String auxForPutandGet(Operand field) {
-        var aux_string = field.getType().toString();
-        int indexPrimeiroPar = aux_string.indexOf('(');
-        int indexSegundoPar = aux_string.lastIndexOf(')');
-        String complexField = "";
-        String aux = "";
+    public String getMethodDescriptor(Method method) {
+        return descriptors.getMethodDescriptor(method.getParams(), method.getReturnType());
+    }
 
-        if (indexPrimeiroPar != -1 && indexSegundoPar != -1 && indexPrimeiroPar < indexSegundoPar) {
-            aux = aux_string.substring(indexPrimeiroPar + 1, indexSegundoPar);
-        } else {
-            return "";
+    /**
+     * Applies the generation to each method on the common fork-join pool, and returns the results in the order of the
+     * methods. Generation of a method only reads the class, and each method gets its own generator.
+     */
+    public <T> List<T> generateInParallel(List<Method> methods, Function<Method, T> generation) {
+        return methods.parallelStream().map(generation).toList();
+    }
+
+    /**
+     * Fields that hold arrays of literals, which the class must declare.
+     */
+    public List<ArrayConstants.ArrayConstant> getArrayConstants() {
+        return arrayConstants.getConstants();
+    }
+
+    /**
+     * Body of the static initializer, which fills the fields of the arrays of literals, or an empty list if the class
+     * has none.
+     */
+    public List<JasminInstruction> generateStaticInitializer() {
+        if (arrayConstants.getConstants().isEmpty()) {
+            return List.of();
         }
 
-        for (var complexImport : ollirResult.getOllirClass().getImports()) {
-            if (complexImport.substring(complexImport.lastIndexOf(".") + 1 ).equals(aux)) {
-                complexField = (complexImport).replace(".","/");
-            }
+        var generator = new JasminGenerator(this);
+        generator.methodCode = new JasminCode();
+
+        for (var constant : arrayConstants.getConstants()) {
+            generator.generators.apply(constant.allocation().getRhs());
+            generator.generateElementStores(constant.stores());
+            generator.methodCode.add(Opcode.PUTSTATIC, getArrayConstantRef(constant), descriptors.getDescriptor(constant.type()));
         }
 
-        return complexField;
+        return generator.methodCode.add(Opcode.RETURN).getInstructions();
     }
 
-    private String returnTypeObj(Type returnType) {
-        var returnTypeCode = "";
-        var aux_string = returnType.toString();
-
+    private String getArrayConstantRef(ArrayConstants.ArrayConstant constant) {
+        return descriptors.getInternalName(ollirResult.getOllirClass().getClassName()) + "/" + constant.fieldName();
+    }
 
-        int indexPrimeiroPar = aux_string.indexOf('(');
-        int indexSegundoPar = aux_string.lastIndexOf(')');
+    /**
+     * Descriptor of the type of each register of the method, as declared in its var table.
+     */
+    public Map<Integer, String> getLocalTypes(Method method) {
+        var types = new HashMap<Integer, String>();
 
-        String aux = "";
+        for (var variable : method.getVarTable().entrySet()) {
+            if (isMadeStatic(method) && variable.getKey().equals("this")) {
+                continue;
+            }
 
-        if (indexPrimeiroPar != -1 && indexSegundoPar != -1 && indexPrimeiroPar < indexSegundoPar) {
-            aux = aux_string.substring(indexPrimeiroPar + 1, indexSegundoPar);
-        } else {
-            return "";
+            types.put(getRegister(method, variable.getKey()), descriptors.getDescriptor(variable.getValue().getVarType()));
         }
 
-        for (var complexImport : ollirResult.getOllirClass().getImports()) {
-            if (complexImport.substring(complexImport.lastIndexOf(".") + 1 ).equals(aux)) {
-                returnTypeCode = (complexImport).replace(".","/");
-            }
-        }
-        return ("L" + returnTypeCode);
+        return types;
     }
 
+    /**
+     * True if the method is static, or is generated as static because it never uses this.
+     */
+    public boolean isStaticMethod(Method method) {
+        return method.isStaticMethod() || isMadeStatic(method);
+    }
 
-    private String generateMethod(Method method) {
+    private boolean isMadeStatic(Method method) {
+        return devirtualization.isMadeStatic(method);
+    }
 
-        // set method
-        currentMethod = method;
+    /**
+     * Register of a variable. Methods made static do not have this in register 0, so their variables move down one.
+     */
+    private int getRegister(Method method, String name) {
+        var reg = method.getVarTable().get(name).getVirtualReg();
+        return isMadeStatic(method) ? reg - 1 : reg;
+    }
+
+    private String generateMethod(Method method) {
 
         var code = new StringBuilder();
 
@@ -235,69 +346,14 @@ public class JasminGenerator {
                 method.getMethodAccessModifier().name().toLowerCase() + " " :
                 "";
 
-        String method_restriction;
-        if (method.isFinalMethod()) { method_restriction = "final "; }
-        else if (method.isStaticMethod()) { method_restriction = "static "; } else { method_restriction = ""; }
+        String method_restriction = (isStaticMethod(method) ? "static " : "") + (method.isFinalMethod() ? "final " : "");
 
         var methodName = method.getMethodName();
 
         // TODO: Hardcoded param types and return type, needs to be expanded
         code.append("\n.method ").append(modifier).append(method_restriction).append(methodName).append("(");
 
-        //gets the parameters types
-        for (Element argument : method.getParams()) {
-            switch(argument.getType().getTypeOfElement()) {
-                case INT32:
-                    code.append("I");
-                    break;
-                case BOOLEAN:
-                    code.append("Z");
-                    break;
-                case VOID:
-                    code.append("V");
-                    break;
-                case STRING:
-                    code.append("Ljava/lang/String;");
-                    break;
-                case ARRAYREF:
-                    code.append(buggyGetArrayType(argument.getType().getTypeOfElement().toString()));
-                    break;
-                case OBJECTREF:
-                    code.append(returnTypeObj(argument.getType()));
-                    break;
-                default:
-                    break;
-            }
-        }
-
-        code.append(")");
-
-        var returnType = method.getReturnType().getTypeOfElement();
-        var tipodoarray = method.getReturnType().toString();
-
-        switch (returnType) {
-            case INT32:
-                code.append("I\n");
-                break;
-            case BOOLEAN:
-                code.append("Z\n");
-                break;
-            case VOID:
-                code.append("V\n");
-                break;
-            case STRING:
-                code.append("Ljava/lang/String;\n");
-                break;
-            case ARRAYREF:
-                code.append(buggyGetArrayType(tipodoarray));
-                code.append("\n");
-                break;
-            case OBJECTREF:
-                code.append(returnTypeObj(method.getReturnType()));
-                code.append("\n");
-                break;
-            default:code.append("\n");
-        }
+        code.append(getMethodDescriptor(method).substring(1)).append(NL);
 
         var nolabels = method.getLabels();
         //if (nolabels.size() > 0) {
@@ -306,406 +362,401 @@ public class JasminGenerator {
         //    }
         //}
 
-        // hardcoded. Does not interfere with simple cases
-        var varTableVars = new String(String.valueOf(method.getVarTable().keySet().size()));
+        var instructions = generateInstructions(method);
 
-        var varTableVars2 = (method.getVarTable().keySet().size()) * 2;
-
-        var varTableVars2str = new String(String.valueOf(varTableVars2));
-
-        // Add limits
-        //code.append(TAB).append(".limit stack ").append(varTableVars).append(NL);
-        //code.append(TAB).append(".limit locals ").append(varTableVars2str).append(NL);
-
-        code.append(TAB).append(".limit stack 99").append(NL);
-        code.append(TAB).append(".limit locals 99").append(NL);
-        for (var inst : method.getInstructions()) {
-
-            for (var branches : method.getLabels().values()) {
-                if (inst == branches) {
-                    var lista_de_labels = method.getLabels();
-                    for (var lab : lista_de_labels.entrySet()) {
-                        if (lab.getValue() == inst) {
-                            var a=lista_de_labels.get(lab);
-                            code.append(lab.getKey().toString()).append(":\n");
-                        }
-                    }
-                }
-            }
-            var instCode = StringLines.getLines(generators.apply(inst)).stream()
-                    .collect(Collectors.joining(NL + TAB, TAB, NL));
-
-            if ((inst.getInstType() == InstructionType.CALL)&&(((CallInstruction) inst).getReturnType().getTypeOfElement() != ElementType.VOID)) {
-                code.append("pop\n");
-            }
-
-            code.append(instCode);
-        }
+        appendLimits(code, instructions, getMethodDescriptor(method), isStaticMethod(method));
+        code.append(JasminCode.render(instructions, TAB));
 
         code.append(".end method\n");
 
-        // unset method
-        currentMethod = null;
-
         return code.toString();
     }
 
-
-
-    private String generateCall(CallInstruction callInstruction) {
-        var code  = new StringBuilder();
-        var operand = (Operand) callInstruction.getOperands().get(0);
-
-        var invocationType = callInstruction.getInvocationType();
-
-        switch (invocationType) {
-            case arraylength -> code.append(lenghtOFarray(callInstruction)).append(("\n"));
-            case NEW -> code.append(handleNewCalls(callInstruction)).append(("\n"));
-            //case NEW -> code.append("new ").append(operand.getName()).append("\n");
-            case invokespecial -> code.append(invokeSpecial(callInstruction));
-            case invokevirtual -> code.append(invokeVirtual(callInstruction));
-            case invokestatic -> code.append(invokeStatic(callInstruction));
-        }
-
-        return code.toString();
+    /**
+     * The .limit stack and .limit locals directives of a method, computed from its instructions as the class file
+     * backend does.
+     */
+    private static void appendLimits(StringBuilder code, List<JasminInstruction> instructions, String descriptor,
+                                     boolean isStatic) {
+        code.append(TAB).append(".limit stack ").append(MethodAssembler.computeMaxStack(instructions)).append(NL);
+        code.append(TAB).append(".limit locals ").append(MethodAssembler.computeMaxLocals(instructions, descriptor, isStatic))
+                .append(NL);
     }
 
-    //dont know if array is the only exception
-    private String handleNewCalls(CallInstruction neww) {
-        var operand_name = (Operand) neww.getOperands().get(0);
-        var aux_new_normal = operand_name.getName();
 
-        var aux_new = neww.getReturnType().getTypeOfElement().toString();
 
-        var aux_new_arrayref = neww.getReturnType().toString();
+    /**
+     * Labels and instructions of the body of the method, after peephole optimizations.
+     * The method is generated by a new generator, so different methods can be generated at the same time.
+     */
+    public List<JasminInstruction> generateInstructions(Method method) {
+        return new JasminGenerator(this).generateBody(method);
+    }
 
-        if (aux_new.equals("ARRAYREF")) {
-            var arraylength = neww.getOperands().get(1);
-            var arrayrefType = "";
+    private List<JasminInstruction> generateBody(Method method) {
+        currentMethod = method;
+        methodCode = new JasminCode();
 
-            //da o load necessario para o newarray, o count
-            arrayrefType = arrayrefType + (generators.apply(arraylength)) + "\n";
-            switch (aux_new_arrayref) {
-                case "INT32[]" -> { arrayrefType = arrayrefType + "newarray int"; }
-                case "BOOLEAN[]" -> { arrayrefType = arrayrefType + "newarray boolean"; } //DONT KNOW IF THIS IS RIGHT
-                case "OBJECTREF[]" -> { arrayrefType= arrayrefType + returnTypeObj(neww.getReturnType()).substring(0, returnTypeObj(neww.getReturnType()).length() - 1); } //DONT KNOW IF THIS IS RIGHT
-                case "STRING[]", "ARRAYREF" -> { arrayrefType = arrayrefType + "newarray java/lang/String"; } //DONT KNOW IF THIS IS RIGHT
+        var useCounts = new HashMap<String, Integer>();
+        for (var inst : method.getInstructions()) {
+            for (var name : OllirUtils.getUsedVariables(inst)) {
+                useCounts.merge(name, 1, Integer::sum);
             }
-            return arrayrefType;
         }
-        else return "new " + aux_new_normal;
-    }
-    private String lenghtOFarray(CallInstruction callInstruction) {
-        var code = "";
-
-        var debug = callInstruction.getOperands().get(0);
 
+        labels = getLabelIndex(method);
 
-        //arrayref
-        code= code + (generators.apply(callInstruction.getOperands().get(0)));
-
-        //recebe arrayref e devolve o tamanho do array
-        code = code + ("arraylength") + "\n";
-
-        return code;
-    }
+        var instructions = method.getInstructions();
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction inst = instructions.get(i);
 
-    private String invokeSpecial(CallInstruction callInstruction) {
-        var code = new StringBuilder();
+            for (var label : labels.getOrDefault(inst, List.of())) {
+                methodCode.label(label);
+            }
 
-        code.append(generators.apply(callInstruction.getOperands().get(0)));
+            var stores = ArrayConstants.getInitStores(method, i, labels);
+            if (!stores.isEmpty() || arrayConstants.get(inst) != null) {
+                generateArrayInit((AssignInstruction) inst, stores);
+                i += stores.size();
+                continue;
+            }
 
-        var debug = generators.apply(callInstruction.getOperands().get(0));
-        var caller = (ClassType) callInstruction.getCaller().getType();
+            var increment = i + 1 < instructions.size() ? getIncrementThroughTemp(inst, instructions.get(i + 1), useCounts) : null;
+            if (increment != null) {
+                inst = increment;
+                i++;
+            }
 
-        var complexImportexist = "";
+            generators.apply(inst);
 
-        for (var complexImport : ollirResult.getOllirClass().getImports()) {
-            if (complexImport.substring(complexImport.lastIndexOf(".") + 1 ).equals(caller.getName())) {
-                complexImportexist = complexImport;
+            // the value returned by a call that is not assigned is discarded
+            if ((inst.getInstType() == InstructionType.CALL)&&(((CallInstruction) inst).getReturnType().getTypeOfElement() != ElementType.VOID)) {
+                methodCode.add(Opcode.POP);
             }
         }
-        complexImportexist = complexImportexist.replace(".","/");
-
-        if (complexImportexist != "") {
-            code.append("invokespecial ").append(complexImportexist).append("/<init>");
-        }
-        else {
-            code.append("invokespecial ").append(ollirResult.getOllirClass().getClassName()).append("/<init>");
-        }
 
-        //code.append("invokespecial ").append(ollirResult.getOllirClass().getClassName()).append("/<init>");
+        var jasminCode = methodCode.getInstructions();
+        peephole.optimize(jasminCode);
 
+        return jasminCode;
+    }
 
-        code.append("(");
+    /**
+     * Labels of each instruction of the method, so they are found without going through all the labels.
+     */
+    static Map<Instruction, List<String>> getLabelIndex(Method method) {
+        var index = new IdentityHashMap<Instruction, List<String>>();
 
-        for (Element el : callInstruction.getArguments()) {
-            switch (el.getType().getTypeOfElement()) {
-                case INT32 -> code.append("I\npop");
-                case BOOLEAN -> code.append("Z\npop");
-                case VOID -> code.append("V");
-                case STRING -> code.append("Ljava/lang/String;\npop");
-                case OBJECTREF -> code.append(returnTypeObj(el.getType()));
-            }
+        for (var label : method.getLabels().entrySet()) {
+            index.computeIfAbsent(label.getValue(), inst -> new ArrayList<>()).add(label.getKey());
         }
 
-        code.append(")");
-
-        var returnType = callInstruction.getReturnType().getTypeOfElement();
+        return index;
+    }
 
-        switch (returnType) {
-            case OBJECTREF -> code.append(returnTypeObj(callInstruction.getReturnType()));
-            case INT32 -> code.append("I");
-            case BOOLEAN -> code.append("Z");
-            case VOID -> code.append("V");
-            case STRING -> code.append("Ljava/lang/String;");
+    /**
+     * "t := new(array, n)" and the stores that fill t right after it, as a single sequence that keeps the array on the
+     * stack with dup instead of loading t for each element. Arrays of literals kept in a field are cloned from it,
+     * or are the field itself when only read.
+     */
+    private void generateArrayInit(AssignInstruction allocation, List<AssignInstruction> stores) {
+        var constant = arrayConstants.get(allocation);
+
+        if (constant != null) {
+            var descriptor = descriptors.getDescriptor(constant.type());
+            methodCode.add(Opcode.GETSTATIC, getArrayConstantRef(constant), descriptor);
+
+            if (!arrayConstants.isShared(allocation)) {
+                methodCode.add(Opcode.INVOKEVIRTUAL, descriptor + "/clone()Ljava/lang/Object;")
+                        .add(Opcode.CHECKCAST, descriptor);
+            }
+        } else {
+            generators.apply(allocation.getRhs());
+            generateElementStores(stores);
         }
 
-        return code.append("\n").toString();
+        var array = (Operand) allocation.getDest();
+        methodCode.local(Opcode.ASTORE, getRegister(currentMethod, array.getName()));
     }
 
-    private String invokeVirtual(CallInstruction callInstruction) {
-
-        var code = new StringBuilder();
-
-        var caller = (ClassType) callInstruction.getCaller().getType();
-
-        var debug = callInstruction.getOperands().get(0);
-
-        code.append(generators.apply(callInstruction.getOperands().get(0)));
-
-        for (Element virtualElement : callInstruction.getArguments())
-            code.append(generators.apply(virtualElement));
-
-        var complexImportexist = "";
+    /**
+     * Stores each value in the array on top of the stack, and leaves the array there.
+     */
+    private void generateElementStores(List<AssignInstruction> stores) {
+        for (var store : stores) {
+            var element = (ArrayOperand) store.getDest();
 
-        for (var complexImport : ollirResult.getOllirClass().getImports()) {
-            if (complexImport.substring(complexImport.lastIndexOf(".") + 1 ).equals(caller.getName())) {
-                complexImportexist = complexImport;
-            }
+            methodCode.add(Opcode.DUP);
+            generators.apply(element.getIndexOperands().get(0));
+            generators.apply(store.getRhs());
+            methodCode.add(getArrayStore(element.getType()));
         }
-        complexImportexist = complexImportexist.replace(".","/");
-
-        if (complexImportexist != "") {
-            code.append("invokevirtual ").append(complexImportexist).append("/");
-        }
-        else {
-            code.append("invokevirtual ").append(caller.getName()).append("/");
-        }
-
-        //code.append("invokevirtual ").append(caller.getName()).append("/");
+    }
 
-        var literal = (LiteralElement) callInstruction.getOperands().get(1);
+    private JasminCode generateCall(CallInstruction callInstruction) {
+        var invocationType = callInstruction.getInvocationType();
 
-        code.append(literal.getLiteral().replace("\"", ""));
+        switch (invocationType) {
+            case arraylength -> lenghtOFarray(callInstruction);
+            case NEW -> handleNewCalls(callInstruction);
+            case invokespecial -> invokeSpecial(callInstruction);
+            case invokevirtual -> invokeVirtual(callInstruction);
+            case invokestatic -> invokeStatic(callInstruction);
+        }
 
-        code.append("(");
+        return methodCode;
+    }
 
-        for (Element el : callInstruction.getArguments()) {
-            var debug3 = el.getType().getTypeOfElement();
-            var debug2 = el.getType();
-            switch (el.getType().getTypeOfElement()) {
-                case INT32 -> code.append("I");
-                case BOOLEAN -> code.append("Z");
-                case VOID -> code.append("V");
-                case STRING -> code.append("Ljava/lang/String;");
-                case OBJECTREF -> code.append("[").append(returnTypeObj(el.getType()));
-                case ARRAYREF -> code.append(buggyGetArrayType(el.getType().toString()));
-            }
+    private void handleNewCalls(CallInstruction neww) {
+        if (!(neww.getReturnType() instanceof ArrayType arrayType)) {
+            var className = (Operand) neww.getOperands().get(0);
+            methodCode.add(Opcode.NEW, descriptors.getInternalName(className.getName()));
+            return;
         }
 
-        code.append(")");
-
-        var returnType = callInstruction.getReturnType().getTypeOfElement();
-        var returnTypeObj = callInstruction.getReturnType();
+        //da o load necessario para o newarray, o count
+        generators.apply(neww.getOperands().get(1));
 
-        switch (returnType) {
-            case INT32 -> code.append("I");
-            case BOOLEAN -> code.append("Z");
-            case VOID -> code.append("V\npop");
-            case OBJECTREF -> code.append(returnTypeObj(returnTypeObj));
-            case STRING -> code.append("Ljava/lang/String;");
-            case ARRAYREF -> code.append(buggyGetArrayType(returnTypeObj.toString()));
+        switch (arrayType.getElementType().getTypeOfElement()) {
+            case INT32 -> methodCode.add(Opcode.NEWARRAY, "int");
+            case BOOLEAN -> methodCode.add(Opcode.NEWARRAY, "boolean");
+            default -> methodCode.add(Opcode.ANEWARRAY, descriptors.getElementClass(arrayType));
         }
-
-        return code.append("\n").toString();
     }
 
-    private String invokeStatic(CallInstruction callInstruction) {
-
-        var code = new StringBuilder();
+    private void lenghtOFarray(CallInstruction callInstruction) {
+        //arrayref
+        generators.apply(callInstruction.getOperands().get(0));
 
-        var caller = (Operand) callInstruction.getOperands().get(0);
+        //recebe arrayref e devolve o tamanho do array
+        methodCode.add(Opcode.ARRAYLENGTH);
+    }
 
-        for (Element staticElement : callInstruction.getArguments())
-            code.append(generators.apply(staticElement));
+    private void invokeSpecial(CallInstruction callInstruction) {
+        generators.apply(callInstruction.getOperands().get(0));
 
-        var complexImportexist = "";
+        var caller = (ClassType) callInstruction.getCaller().getType();
 
-        for (var complexImport : ollirResult.getOllirClass().getImports()) {
-            if (complexImport.substring(complexImport.lastIndexOf(".") + 1 ).equals(caller.getName())) {
-                complexImportexist = complexImport;
-            }
-        }
+        methodCode.add(Opcode.INVOKESPECIAL, getMethodRef(caller.getName(), "<init>", callInstruction));
+    }
 
-        complexImportexist = complexImportexist.replace(".", "/");
+    private void invokeVirtual(CallInstruction callInstruction) {
+        var caller = (ClassType) callInstruction.getCaller().getType();
+        var invocation = devirtualization.getInvocation(callInstruction);
 
-        if (complexImportexist != "") {
-            code.append("invokestatic ").append(complexImportexist).append("/");
-        }
-        else {
-            code.append("invokestatic ").append(caller.getName()).append("/");
+        // a method made static does not receive the object
+        if (invocation != Opcode.INVOKESTATIC) {
+            generators.apply(callInstruction.getOperands().get(0));
         }
-        //code.append("invokestatic ").append(caller.getName()).append("/");
 
-        var literal = (LiteralElement) callInstruction.getOperands().get(1);
-
-        code.append(literal.getLiteral().replace("\"", ""));
+        for (Element virtualElement : callInstruction.getArguments())
+            generators.apply(virtualElement);
 
-        code.append("(");
+        var literal = (LiteralElement) callInstruction.getOperands().get(1);
 
-        for (Element el : callInstruction.getArguments()) {
-            switch (el.getType().getTypeOfElement()) {
-                case INT32 -> code.append("I");
-                case BOOLEAN -> code.append("Z");
-                case VOID -> code.append("V");
-                case OBJECTREF -> code.append(returnTypeObj(el.getType()));
-                case STRING -> code.append("Ljava/lang/String;");
-            }
-        }
+        methodCode.add(invocation, getMethodRef(caller.getName(), literal.getLiteral().replace("\"", ""), callInstruction));
+    }
 
-        code.append(")");
+    private void invokeStatic(CallInstruction callInstruction) {
+        var caller = (Operand) callInstruction.getOperands().get(0);
 
-        var returnType = callInstruction.getReturnType().getTypeOfElement();
+        for (Element staticElement : callInstruction.getArguments())
+            generators.apply(staticElement);
 
-        switch (returnType) {
-            case INT32 -> code.append("I");
-            case BOOLEAN -> code.append("Z");
-            case VOID -> code.append("V");
-            case OBJECTREF -> code.append(returnTypeObj(callInstruction.getReturnType()));
-            case STRING -> code.append("Ljava/lang/String;");
-        }
+        var literal = (LiteralElement) callInstruction.getOperands().get(1);
 
-        return code.append("\n").toString();
+        methodCode.add(Opcode.INVOKESTATIC, getMethodRef(caller.getName(), literal.getLiteral().replace("\"", ""), callInstruction));
     }
 
+    /**
+     * Reference to a method in the form invoke instructions take, such as a/b/Foo/bar(I)V.
+     */
+    private String getMethodRef(String className, String methodName, CallInstruction callInstruction) {
+        return descriptors.getInternalName(className) + "/" + methodName +
+                descriptors.getMethodDescriptor(callInstruction.getArguments(), callInstruction.getReturnType());
+    }
 
-    private String generatePutField(PutFieldInstruction putFieldInstruction) {
-        var code = new StringBuilder();
-
+    private JasminCode generatePutField(PutFieldInstruction putFieldInstruction) {
         var first_op = putFieldInstruction.getOperands().get(0);
         var callerType = (ClassType) first_op.getType();
         var field = (Operand) putFieldInstruction.getOperands().get(1);
         var third_op = putFieldInstruction.getOperands().get(2);
-        var p = putFieldInstruction.getOperands().get(1);
-
-        code.append(generators.apply(first_op)).append(generators.apply(third_op));
 
-        code.append("putfield ").append(callerType.getName()).append("/").append(field.getName()).append(" ");
-
-        switch (field.getType().getTypeOfElement()) {
-            case INT32 -> code.append("I");
-            case BOOLEAN -> code.append("Z");
-            case OBJECTREF -> code.append("L").append(auxForPutandGet(field));
-            case VOID -> code.append("V");
-            case STRING -> code.append("Ljava/lang/String;");
-        }
+        generators.apply(first_op);
+        generators.apply(third_op);
 
-        return code.toString();
+        return methodCode.add(Opcode.PUTFIELD, descriptors.getInternalName(callerType.getName()) + "/" + field.getName(),
+                descriptors.getDescriptor(field.getType()));
     }
 
-    private String generateGetField(GetFieldInstruction getFieldInstruction) {
-        var code = new StringBuilder();
-
+    private JasminCode generateGetField(GetFieldInstruction getFieldInstruction) {
         var first_op = getFieldInstruction.getOperands().get(0);
         var callerType = (ClassType) first_op.getType();
         var field = (Operand) getFieldInstruction.getOperands().get(1);
 
-        code.append(generators.apply(first_op));
-
-        code.append("getfield ").append(callerType.getName()).append("/").append(field.getName()).append(" ");
+        generators.apply(first_op);
 
-        switch (field.getType().getTypeOfElement()) {
-            case INT32 -> code.append("I");
-            case BOOLEAN -> code.append("Z");
-            case VOID -> code.append("V");
-            case OBJECTREF -> code.append("L").append(auxForPutandGet(field));
-            case STRING -> code.append("Ljava/lang/String;");
-        }
-
-        return code.append("\n").toString();
+        return methodCode.add(Opcode.GETFIELD, descriptors.getInternalName(callerType.getName()) + "/" + field.getName(),
+                descriptors.getDescriptor(field.getType()));
     }
 
-    private String generateBranch(CondBranchInstruction branchIn) {
-        //exemplo SimpleControlFlow - Inst Branch -> Inst BINARYOPER -> Operand b.INT32 GTE -> Operand a.INT32 -> LABEL ELSE_0
-        // a branch instruction é seguida de outro instruction de tipo BinaryOper ou UnaryOper ou NOPER??
-        var branch = "";
-        var secondInstruction = branchIn.getCondition().getInstType();
+    private JasminCode generateBranch(CondBranchInstruction branchIn) {
+        generateJump(branchIn.getCondition(), true, branchIn.getLabel());
+        return methodCode;
+    }
 
-        for (var child : branchIn.getCondition().getChildren()) {
-            if (child instanceof Operation) {
-                var a = ((Operation) child).getOpType();
+    /**
+     * Jumps to the label if the condition has the given value, without pushing the boolean first.
+     * Comparisons become a single if_icmp, or an if against zero when one of the operands is the literal 0.
+     * &amp;&amp; and || only look at the second operand when the first one does not decide the jump.
+     */
+    private void generateJump(Instruction condition, boolean when, String label) {
+        if (condition instanceof SingleOpInstruction singleOp) {
+            generateJump(singleOp.getSingleOperand(), when, label);
+            return;
+        }
+
+        if (condition instanceof UnaryOpInstruction unaryOp) {
+            // NOTB, or NOT on a boolean
+            generateJump(unaryOp.getOperand(), !when, label);
+            return;
+        }
+
+        if (!(condition instanceof BinaryOpInstruction binaryOp)) {
+            generators.apply(condition);
+            methodCode.add(when ? Opcode.IFNE : Opcode.IFEQ, label);
+            return;
+        }
+
+        var left = binaryOp.getLeftOperand();
+        var right = binaryOp.getRightOperand();
+        var opType = binaryOp.getOperation().getOpType();
+
+        switch (opType) {
+            case LTH, GTH, LTE, GTE, EQ, NEQ -> {
+                var comparison = when ? opType : negateComparison(opType);
+
+                if (isZero(right)) {
+                    generators.apply(left);
+                    methodCode.add(compareWithZero(comparison), label);
+                } else if (isZero(left)) {
+                    // 0 < b is b > 0
+                    generators.apply(right);
+                    methodCode.add(compareWithZero(swapComparison(comparison)), label);
+                } else {
+                    generators.apply(left);
+                    generators.apply(right);
+                    methodCode.add(compare(comparison), label);
+                }
+            }
+            case ANDB, ORB -> {
+                // a && b jumps when true only if both are, and jumps when false as soon as one is false
+                var decidesFirst = (opType == OperationType.ANDB) != when;
+                if (decidesFirst) {
+                    generateJump(left, when, label);
+                    generateJump(right, when, label);
+                } else {
+                    var skip = newLabel("skip");
+                    generateJump(left, !when, skip);
+                    generateJump(right, when, label);
+                    methodCode.label(skip);
+                }
+            }
+            default -> {
+                generators.apply(condition);
+                methodCode.add(when ? Opcode.IFNE : Opcode.IFEQ, label);
             }
         }
+    }
 
-        if(secondInstruction.toString() == "BINARYOPER") {
-
-            var tipo_de_comp = ((BinaryOpInstruction)(branchIn.getCondition())).getOperation().getOpType();
-
-            var primeiro = ((BinaryOpInstruction)(branchIn.getCondition())).getLeftOperand();
-            var segundo = ((BinaryOpInstruction)(branchIn.getCondition())).getRightOperand();
-
-            branch = branch + (generators.apply(primeiro)) + (generators.apply(segundo));
-
-            var next = branchIn.getLabel().toString();
-
-            branch = branch + dealWithOperation(tipo_de_comp) + " " + next + "\n";
-
-            return branch;
+    private void generateJump(Element condition, boolean when, String label) {
+        if (condition instanceof LiteralElement literal) {
+            // the branch is either always or never taken
+            if ((Integer.parseInt(literal.getLiteral()) != 0) == when) {
+                methodCode.add(Opcode.GOTO, label);
+            }
+            return;
         }
 
-        //else if (secondInstruction.toString() == "UNARYOPER") {
-        else {
-            //var debug = branchIn.getCondition();
-            var unicop = ((SingleOpInstruction)(branchIn.getCondition())).getSingleOperand();
+        generators.apply(condition);
+        methodCode.add(when ? Opcode.IFNE : Opcode.IFEQ, label);
+    }
 
-            var simple_branch = (generators.apply(unicop));
+    /**
+     * Pushes 1 if the condition is true and 0 otherwise.
+     */
+    private JasminCode generateBoolean(Instruction condition) {
+        var isTrue = newLabel("true");
+        var end = newLabel("end");
 
-            var debug = branchIn.getLabel().toString();
+        generateJump(condition, true, isTrue);
 
-            simple_branch = simple_branch + "ifeq " + branchIn.getLabel().toString() + "\n";
+        return methodCode.add(Opcode.ICONST_0)
+                .add(Opcode.GOTO, end)
+                .label(isTrue)
+                .add(Opcode.ICONST_1)
+                .label(end);
+    }
 
-            return simple_branch;
-        }
+    private String newLabel(String prefix) {
+        return "j_" + prefix + "_" + labelCounter++;
+    }
 
+    private static boolean isZero(Element element) {
+        return element instanceof LiteralElement literal && literal.getLiteral().equals("0");
     }
 
-    private String dealWithOperation(OperationType operationType) {
-        return switch (operationType) {
-            case ADD -> "iadd";
-            case SUB -> "isub";
-            case MUL -> "imul";
-            case DIV -> "idiv";
-            case ANDB -> "iand";
-            case NOTB -> "ifeq";
-            case LTH -> "if_icmplt";
-            case LTE -> "if_icmple";
-            case GTE -> "if_icmpge";
-            case GTH -> "if_icmpgt";
-            default -> throw new NotImplementedException(operationType);
+    private static Opcode compare(OperationType opType) {
+        return switch (opType) {
+            case LTH -> Opcode.IF_ICMPLT;
+            case GTH -> Opcode.IF_ICMPGT;
+            case LTE -> Opcode.IF_ICMPLE;
+            case GTE -> Opcode.IF_ICMPGE;
+            case EQ -> Opcode.IF_ICMPEQ;
+            case NEQ -> Opcode.IF_ICMPNE;
+            default -> throw new NotImplementedException(opType);
         };
     }
 
-    private String generateGoto(GotoInstruction gotoInst) {
-        return "goto " + gotoInst.getLabel() + "\n";
+    private static Opcode compareWithZero(OperationType opType) {
+        return switch (opType) {
+            case LTH -> Opcode.IFLT;
+            case GTH -> Opcode.IFGT;
+            case LTE -> Opcode.IFLE;
+            case GTE -> Opcode.IFGE;
+            case EQ -> Opcode.IFEQ;
+            case NEQ -> Opcode.IFNE;
+            default -> throw new NotImplementedException(opType);
+        };
     }
 
-    private String generateAssign(AssignInstruction assign) {
-        var code = new StringBuilder();
+    private static OperationType negateComparison(OperationType opType) {
+        return switch (opType) {
+            case LTH -> OperationType.GTE;
+            case GTE -> OperationType.LTH;
+            case GTH -> OperationType.LTE;
+            case LTE -> OperationType.GTH;
+            case EQ -> OperationType.NEQ;
+            case NEQ -> OperationType.EQ;
+            default -> throw new NotImplementedException(opType);
+        };
+    }
 
-        // generate code for loading what's on the right
-        code.append(generators.apply(assign.getRhs()));
+    private static OperationType swapComparison(OperationType opType) {
+        return switch (opType) {
+            case LTH -> OperationType.GTH;
+            case GTH -> OperationType.LTH;
+            case LTE -> OperationType.GTE;
+            case GTE -> OperationType.LTE;
+            default -> opType;
+        };
+    }
+
+    private JasminCode generateGoto(GotoInstruction gotoInst) {
+        return methodCode.add(Opcode.GOTO, gotoInst.getLabel());
+    }
 
+    private JasminCode generateAssign(AssignInstruction assign) {
         // store value in the stack in destination
         var lhs = assign.getDest();
 
@@ -716,131 +767,255 @@ public class JasminGenerator {
         var operand = (Operand) lhs;
 
         // get register
-        var reg = currentMethod.getVarTable().get(operand.getName()).getVirtualReg();
+        var reg = getRegister(currentMethod, operand.getName());
         var typeOfElement = operand.getType().getTypeOfElement();
 
+        // a[i] = value
+        if (operand instanceof ArrayOperand element) {
+            generateElementAddress(element);
+            generators.apply(assign.getRhs());
+            return methodCode.add(getArrayStore(element.getType()));
+        }
+
+        // i = i + c
+        var increment = getIncrement(assign.getRhs(), operand);
+        if (increment != null) {
+            return methodCode.add(Opcode.IINC, String.valueOf(reg), String.valueOf(increment));
+        }
+
+        // generate code for loading what's on the right
+        generators.apply(assign.getRhs());
+
         switch(typeOfElement) {
-            case ARRAYREF,OBJECTREF,THIS -> code.append("astore ").append(reg).append(NL);
-            case INT32, BOOLEAN -> code.append("istore ").append(reg).append(NL);
+            case ARRAYREF,OBJECTREF,THIS,STRING -> methodCode.local(Opcode.ASTORE, reg);
+            case INT32, BOOLEAN -> methodCode.local(Opcode.ISTORE, reg);
         }
 
-        // TODO: Hardcoded for int type, needs to be expanded
+        return methodCode;
+    }
 
-        return code.toString();
+    /**
+     * The constant added to the variable by "var + c", "c + var" or "var - c", if it fits in an iinc.
+     */
+    private Integer getIncrement(Instruction rhs, Operand variable) {
+        if (variable instanceof ArrayOperand || variable.getType().getTypeOfElement() != ElementType.INT32
+                || !(rhs instanceof BinaryOpInstruction binaryOp)) {
+            return null;
+        }
+
+        var left = binaryOp.getLeftOperand();
+        var right = binaryOp.getRightOperand();
+
+        Integer increment = switch (binaryOp.getOperation().getOpType()) {
+            case ADD -> isVariable(left, variable) ? getIntLiteral(right)
+                    : isVariable(right, variable) ? getIntLiteral(left) : null;
+            case SUB -> {
+                var value = isVariable(left, variable) ? getIntLiteral(right) : null;
+                yield value == null ? null : -value;
+            }
+            default -> null;
+        };
+
+        return increment != null && increment >= Byte.MIN_VALUE && increment <= Byte.MAX_VALUE ? increment : null;
+    }
+
+    private static boolean isVariable(Element element, Operand variable) {
+        return element instanceof Operand operand && !(element instanceof ArrayOperand)
+                && operand.getName().equals(variable.getName());
+    }
+
+    private static Integer getIntLiteral(Element element) {
+        if (!(element instanceof LiteralElement literal) || element.getType().getTypeOfElement() != ElementType.INT32) {
+            return null;
+        }
+
+        return Integer.parseInt(literal.getLiteral());
+    }
+
+    /**
+     * "t := i + c; i := t" where t is not read anywhere else is generated as "i := i + c", so it becomes an iinc.
+     */
+    private AssignInstruction getIncrementThroughTemp(Instruction inst, Instruction next, Map<String, Integer> useCounts) {
+        if (!(inst instanceof AssignInstruction tempAssign) || !(next instanceof AssignInstruction assign)
+                || !(assign.getDest() instanceof Operand dest) || dest instanceof ArrayOperand
+                || !(assign.getRhs() instanceof SingleOpInstruction copy)
+                || !(tempAssign.getDest() instanceof Operand temp) || temp instanceof ArrayOperand
+                || !isVariable(copy.getSingleOperand(), temp) || useCounts.getOrDefault(temp.getName(), 0) != 1
+                || labels.containsKey(next)) {
+            return null;
+        }
+
+        return getIncrement(tempAssign.getRhs(), dest) != null ? OllirUtils.withDest(tempAssign, dest) : null;
     }
 
-    private String generateSingleOp(SingleOpInstruction singleOp) {
+    private JasminCode generateSingleOp(SingleOpInstruction singleOp) {
         return generators.apply(singleOp.getSingleOperand());
     }
 
-    private String generateLiteral(LiteralElement literal) {
+    private JasminCode generateLiteral(LiteralElement literal) {
 
-        var code = new StringBuilder();
+        var type = literal.getType().getTypeOfElement();
+
+        if (type != ElementType.INT32 && type != ElementType.BOOLEAN) {
+            return methodCode.add(Opcode.LDC, literal.getLiteral());
+        }
 
-        String type = literal.getType().toString();
+        int val = Integer.parseInt(literal.getLiteral());
 
-        if (!type.equals("INT32") && !type.equals("BOOL")) {
-            code.append("ldc ").append(literal.getLiteral()).append(NL);
+        if (val == -1) {
+            methodCode.add(Opcode.ICONST_M1);
+        }
+        else if (val >= 0 && val <= 5) {
+            methodCode.add(Opcode.valueOf("ICONST_" + val));
+        }
+        else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+            methodCode.add(Opcode.BIPUSH, val);
+        }
+        else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+            methodCode.add(Opcode.SIPUSH, val);
         }
         else {
-            int val = Integer.parseInt(literal.getLiteral());
-
-            if (val >= 0 && val <= 5) {
-                code.append("iconst_").append(val).append(NL);
-            }
-            else if (val >= -127 && val <= 127) {
-                code.append("bipush ").append(val).append(NL);
-            }
-            else if (val >= -32767 && val <= 32767) {
-                code.append("sipush ").append(val).append(NL);
-            }
-            else {
-                code.append("ldc ").append(val).append(NL);
-            }
+            methodCode.add(Opcode.LDC, val);
         }
 
-        return code.toString();
+        return methodCode;
     }
 
-    private String generateOperand(Operand operand) {
-        // get register
-        var reg = currentMethod.getVarTable().get(operand.getName()).getVirtualReg();
+    private JasminCode generateOperand(Operand operand) {
+        var type = operand.getType().getTypeOfElement();
+        if (type == ElementType.THIS) {
+            return methodCode.add(Opcode.ALOAD_0);
+        }
 
-        String code = "";
+        if (operand instanceof ArrayOperand element) {
+            generateElementAddress(element);
+            return methodCode.add(getArrayLoad(element.getType()));
+        }
 
-        var type = operand.getType().getTypeOfElement();
+        // get register
+        var reg = getRegister(currentMethod, operand.getName());
 
         switch (type) {
-            case INT32, BOOLEAN -> code = "iload " + reg + NL;
-            case STRING, OBJECTREF, ARRAYREF -> code = "aload " + reg + NL;
-            case THIS -> code = "aload_0" + NL;
+            case INT32, BOOLEAN -> methodCode.local(Opcode.ILOAD, reg);
+            case STRING, OBJECTREF, ARRAYREF -> methodCode.local(Opcode.ALOAD, reg);
         }
 
+        return methodCode;
+    }
 
-        return code;
+    /**
+     * Pushes the array and the index of an element.
+     */
+    private void generateElementAddress(ArrayOperand element) {
+        methodCode.local(Opcode.ALOAD, getRegister(currentMethod, element.getName()));
+        generators.apply(element.getIndexOperands().get(0));
     }
 
-    private String generateBinaryOp(BinaryOpInstruction binaryOp) {
-        var code = new StringBuilder();
+    private static Opcode getArrayLoad(Type elementType) {
+        return switch (elementType.getTypeOfElement()) {
+            case INT32 -> Opcode.IALOAD;
+            case BOOLEAN -> Opcode.BALOAD;
+            default -> Opcode.AALOAD;
+        };
+    }
+
+    private static Opcode getArrayStore(Type elementType) {
+        return switch (elementType.getTypeOfElement()) {
+            case INT32 -> Opcode.IASTORE;
+            case BOOLEAN -> Opcode.BASTORE;
+            default -> Opcode.AASTORE;
+        };
+    }
+
+    private JasminCode generateBinaryOp(BinaryOpInstruction binaryOp) {
+        var opType = binaryOp.getOperation().getOpType();
+
+        var rule = BRANCHLESS_COMPARISONS.get(opType);
+        if (rule != null) {
+            return generateLessThan(binaryOp, rule);
+        }
+
+        // == and != only produce a value through a jump
+        switch (opType) {
+            case EQ, NEQ -> {
+                return generateBoolean(binaryOp);
+            }
+        }
 
         // load values on the left and on the right
-        code.append(generators.apply(binaryOp.getLeftOperand()));
-        code.append(generators.apply(binaryOp.getRightOperand()));
+        generators.apply(binaryOp.getLeftOperand());
+        generators.apply(binaryOp.getRightOperand());
 
         // apply operation
-        var op = switch (binaryOp.getOperation().getOpType()) {
-            case ADD -> "iadd";
-            case SUB -> "isub ";
-            case MUL -> "imul";
-            case DIV -> "idiv ";
-            case ANDB -> "iand";
-            case ORB -> "ior";
-            case NOTB -> "ifeq";
-            case EQ -> "if_icmpeq";
-            case LTH -> "if_icmplt";
-            case GTE -> "if_icmpge";
-            default -> throw new NotImplementedException(binaryOp.getOperation().getOpType());
+        var op = switch (opType) {
+            case ADD -> Opcode.IADD;
+            case SUB -> Opcode.ISUB;
+            case MUL -> Opcode.IMUL;
+            case DIV -> Opcode.IDIV;
+            case ANDB, AND -> Opcode.IAND;
+            case ORB, OR -> Opcode.IOR;
+            case XOR -> Opcode.IXOR;
+            case SHL -> Opcode.ISHL;
+            case SHR -> Opcode.ISHR;
+            case SHRR -> Opcode.IUSHR;
+            default -> throw new NotImplementedException(opType);
         };
 
-        code.append(op).append(NL);
+        return methodCode.add(op);
+    }
 
-        return code.toString();
+    private JasminCode generateUnaryOp(UnaryOpInstruction unaryOp) {
+        var opType = unaryOp.getOperation().getOpType();
+
+        return switch (opType) {
+            case NOTB, NOT -> {
+                generators.apply(unaryOp.getOperand());
+                yield methodCode.add(Opcode.ICONST_1).add(Opcode.IXOR);
+            }
+            default -> throw new NotImplementedException(opType);
+        };
     }
 
-    private String generateReturn(ReturnInstruction returnInst) {
-        var code = new StringBuilder();
+    /**
+     * Pushes the value of a comparison as a &lt; b, with the operands in the order of the rule, flipped if the rule
+     * negates it. a &lt; b is the sign bit of a - b, computed on longs so the subtraction cannot overflow, or the sign
+     * bit of a itself when b is 0.
+     */
+    private JasminCode generateLessThan(BinaryOpInstruction comparison, BranchlessRule rule) {
+        var left = rule.swap() ? comparison.getRightOperand() : comparison.getLeftOperand();
+        var right = rule.swap() ? comparison.getLeftOperand() : comparison.getRightOperand();
 
-        // TODO: Hardcoded to int return type, needs to be expanded
+        generators.apply(left);
 
+        if (isZero(right)) {
+            methodCode.add(Opcode.BIPUSH, Integer.SIZE - 1).add(Opcode.IUSHR);
+        } else {
+            methodCode.add(Opcode.I2L);
+            generators.apply(right);
+            methodCode.add(Opcode.I2L)
+                    .add(Opcode.LSUB)
+                    .add(Opcode.BIPUSH, Long.SIZE - 1)
+                    .add(Opcode.LUSHR)
+                    .add(Opcode.L2I);
+        }
+
+        return rule.negate() ? methodCode.add(Opcode.ICONST_1).add(Opcode.IXOR) : methodCode;
+    }
+
+    private JasminCode generateReturn(ReturnInstruction returnInst) {
         switch (returnInst.getElementType()) {
             case INT32,BOOLEAN -> {
-                code.append(generators.apply(returnInst.getOperand()));
-                code.append("\nireturn").append("\n");
-            }
-            case VOID -> code.append("\nreturn").append("\n");
-            case STRING,ARRAYREF -> {
-                code.append(generators.apply(returnInst.getOperand()));
-                code.append("\nareturn").append("\n");
+                generators.apply(returnInst.getOperand());
+                methodCode.add(Opcode.IRETURN);
             }
-            case OBJECTREF -> {
-                var aux_string = generators.apply(returnInst.getOperand());
-                code.append(aux_string);
-                code.append("\nareturn").append("\n");
+            case VOID -> methodCode.add(Opcode.RETURN);
+            case STRING,ARRAYREF,OBJECTREF -> {
+                generators.apply(returnInst.getOperand());
+                methodCode.add(Opcode.ARETURN);
             }
         }
-        return code.toString();
-    }
 
-    //não está muito bem feito
-    private String buggyGetArrayType(String type) {
-        switch (type) {
-            case "INT32[]" -> { return "[I"; }
-            case "BOOLEAN[]" -> { return "[Z"; }
-            case "OBJECTREF[]" -> { return "[L"; }
-            case "STRING[]" -> { return "Ljava/lang/String;"; }
-            case "ARRAYREF" -> { return "[Ljava/lang/String;"; }
-            default -> { return ""; }
-        }
+        return methodCode;
     }
 
 }
\ No newline at end of file
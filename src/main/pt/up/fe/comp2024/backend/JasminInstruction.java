@@ -0,0 +1,72 @@
+package pt.up.fe.comp2024.backend;
+
+import java.util.List;
+
+/**
+ * A line of the body of a Jasmin method: either a label or an instruction with its arguments.
+ */
+public class JasminInstruction {
+
+    private final String label;
+    private final Opcode opcode;
+    private final List<String> args;
+
+    private JasminInstruction(String label, Opcode opcode, List<String> args) {
+        this.label = label;
+        this.opcode = opcode;
+        this.args = args;
+    }
+
+    public static JasminInstruction label(String name) {
+        return new JasminInstruction(name, null, List.of());
+    }
+
+    public static JasminInstruction of(Opcode opcode, String... args) {
+        return new JasminInstruction(null, opcode, List.of(args));
+    }
+
+    /**
+     * Load or store of a local variable, using the one byte form (e.g. iload_2) for the first four registers.
+     */
+    public static JasminInstruction local(Opcode opcode, int reg) {
+        if (opcode.getKind() != Opcode.Kind.LOCAL) {
+            throw new IllegalArgumentException(opcode + " does not access a local variable");
+        }
+
+        return reg <= 3 ? of(Opcode.valueOf(opcode.name() + "_" + reg)) : of(opcode, String.valueOf(reg));
+    }
+
+    public boolean isLabel() {
+        return label != null;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public List<String> getArgs() {
+        return args;
+    }
+
+    public String getArg(int index) {
+        return args.get(index);
+    }
+
+    public boolean is(Opcode opcode) {
+        return opcode == this.opcode;
+    }
+
+    @Override
+    public String toString() {
+        if (isLabel()) {
+            return label + ":";
+        }
+
+        var mnemonic = opcode.getMnemonic();
+        return args.isEmpty() ? mnemonic : mnemonic + " " + String.join(" ", args);
+    }
+}
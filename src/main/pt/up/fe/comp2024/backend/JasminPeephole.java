@@ -0,0 +1,89 @@
+package pt.up.fe.comp2024.backend;
+
+import pt.up.fe.comp2024.CompilerConfig;
+
+import java.util.*;
+
+/**
+ * Peephole optimizer over the instructions of a Jasmin method.
+ * <p>
+ * The rules to apply come from the "peephole" option: "all", "none" or a comma separated list of rule names
+ * (see {@link PeepholeRule}). Without the option, all rules are applied when optimizations are enabled. The number
+ * of times each rule fired is kept for the whole class, and methods of the class may be optimized at the same time.
+ */
+public class JasminPeephole {
+
+    private final Set<PeepholeRule> rules;
+    private final Map<PeepholeRule, Integer> statistics;
+
+    public JasminPeephole(Set<PeepholeRule> rules) {
+        this.rules = rules.isEmpty() ? EnumSet.noneOf(PeepholeRule.class) : EnumSet.copyOf(rules);
+        this.statistics = Collections.synchronizedMap(new EnumMap<>(PeepholeRule.class));
+    }
+
+    public static JasminPeephole fromConfig(Map<String, String> config) {
+        var option = CompilerConfig.getPeephole(config);
+
+        if (option.equalsIgnoreCase("all")) {
+            return new JasminPeephole(EnumSet.allOf(PeepholeRule.class));
+        }
+
+        var rules = EnumSet.noneOf(PeepholeRule.class);
+        if (option.equalsIgnoreCase("none") || option.isBlank()) {
+            return new JasminPeephole(rules);
+        }
+
+        for (var name : option.split(",")) {
+            try {
+                rules.add(PeepholeRule.valueOf(name.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Unknown peephole rule '" + name.trim() + "', expected one of "
+                        + Arrays.toString(PeepholeRule.values()));
+            }
+        }
+
+        return new JasminPeephole(rules);
+    }
+
+    public boolean isEnabled() {
+        return !rules.isEmpty();
+    }
+
+    /**
+     * Applies the rules until none of them changes the code.
+     */
+    public void optimize(List<JasminInstruction> code) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            // found once per round instead of looking for the label of each jump
+            var jumpTargets = PeepholeRule.getJumpTargets(code);
+
+            for (int i = 0; i < code.size(); i++) {
+                for (var rule : rules) {
+                    if (i < code.size() && rule.apply(code, i, jumpTargets)) {
+                        statistics.merge(rule, 1, Integer::sum);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of times each rule changed the code, only for rules that did.
+     */
+    public Map<PeepholeRule, Integer> getStatistics() {
+        // the EnumMap copy constructor rejects an empty map that is not an EnumMap
+        var copy = new EnumMap<PeepholeRule, Integer>(PeepholeRule.class);
+        synchronized (statistics) {
+            copy.putAll(statistics);
+        }
+        return copy;
+    }
+}
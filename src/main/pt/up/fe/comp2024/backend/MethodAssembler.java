@@ -0,0 +1,469 @@
+package pt.up.fe.comp2024.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the instructions of a method into the bytes of its Code attribute.
+ * <p>
+ * Offsets are computed first, so jumps can be encoded in a single pass. The maximum stack depth follows every
+ * path through the code, and the number of locals is the highest register used, counting the parameters.
+ * Code no path reaches is left out, and the types at jump targets go to a {@link StackMapTable}.
+ */
+public class MethodAssembler {
+
+    private final ConstantPool constantPool;
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+    private final boolean isStatic;
+    private final Map<Integer, String> localTypes;
+
+    private byte[] code;
+    private int maxStack;
+    private int maxLocals;
+    private byte[] stackMapTable;
+
+    /**
+     * The local types are the descriptors of the registers of the method, used where the types of a local differ
+     * between the paths that reach an instruction.
+     */
+    public MethodAssembler(ConstantPool constantPool, String className, String methodName, String descriptor,
+                           boolean isStatic, Map<Integer, String> localTypes) {
+        this.constantPool = constantPool;
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+        this.isStatic = isStatic;
+        this.localTypes = localTypes;
+    }
+
+    public byte[] getCode() {
+        return code;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    /**
+     * Contents of the StackMapTable attribute, or null if the method has no jumps.
+     */
+    public byte[] getStackMapTable() {
+        return stackMapTable;
+    }
+
+    public void assemble(List<JasminInstruction> instructions) {
+        instructions = getReachableCode(instructions);
+
+        var offsets = new int[instructions.size()];
+        var labels = new HashMap<String, Integer>();
+
+        int offset = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            var inst = instructions.get(i);
+            offsets[i] = offset;
+
+            if (inst.isLabel()) {
+                labels.put(inst.getLabel(), offset);
+            } else {
+                offset += getSize(inst);
+            }
+        }
+
+        if (offset > 0xFFFF) {
+            throw new RuntimeException("Method code is larger than 65535 bytes");
+        }
+
+        var bytes = new ByteArrayOutputStream(offset);
+        var out = new DataOutputStream(bytes);
+
+        try {
+            for (int i = 0; i < instructions.size(); i++) {
+                var inst = instructions.get(i);
+                if (!inst.isLabel()) {
+                    write(inst, offsets[i], labels, out);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        code = bytes.toByteArray();
+        maxStack = computeMaxStack(instructions);
+        maxLocals = computeMaxLocals(instructions, descriptor, isStatic);
+
+        var frames = new StackMapTable(constantPool, className, methodName, descriptor, isStatic, localTypes, maxLocals);
+        stackMapTable = frames.build(instructions, offsets);
+    }
+
+    /**
+     * Labels and the instructions some path from the start reaches. The verifier would need a frame for dead code too.
+     */
+    private static List<JasminInstruction> getReachableCode(List<JasminInstruction> instructions) {
+        var labels = getLabelIndexes(instructions);
+        var reached = new boolean[instructions.size() + 1];
+
+        var worklist = new ArrayDeque<Integer>();
+        reached[0] = true;
+        worklist.add(0);
+
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            if (i >= instructions.size()) {
+                continue;
+            }
+
+            var inst = instructions.get(i);
+            var successors = new ArrayList<Integer>();
+
+            if (!inst.isLabel() && inst.getOpcode().getKind() == Opcode.Kind.JUMP) {
+                successors.add(labels.get(inst.getArg(0)));
+            }
+            if (inst.isLabel() || !inst.getOpcode().isUnconditionalExit()) {
+                successors.add(i + 1);
+            }
+
+            for (var successor : successors) {
+                if (successor != null && !reached[successor]) {
+                    reached[successor] = true;
+                    worklist.add(successor);
+                }
+            }
+        }
+
+        var reachable = new ArrayList<JasminInstruction>();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (reached[i] || instructions.get(i).isLabel()) {
+                reachable.add(instructions.get(i));
+            }
+        }
+
+        return reachable;
+    }
+
+    private static Map<String, Integer> getLabelIndexes(List<JasminInstruction> instructions) {
+        var labels = new HashMap<String, Integer>();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i).isLabel()) {
+                labels.put(instructions.get(i).getLabel(), i);
+            }
+        }
+        return labels;
+    }
+
+    private int getSize(JasminInstruction inst) {
+        var opcode = inst.getOpcode();
+
+        return switch (opcode.getKind()) {
+            case NONE -> 1;
+            case BYTE, ARRAY_TYPE -> 2;
+            case SHORT, JUMP, FIELD, CLASS -> 3;
+            case CONSTANT -> getConstantIndex(inst) <= 0xFF ? 2 : 3;
+            case LOCAL -> getSlot(inst) <= 0xFF ? 2 : 4;
+            case IINC -> isShortIinc(inst) ? 3 : 6;
+            case METHOD -> opcode == Opcode.INVOKEINTERFACE ? 5 : 3;
+        };
+    }
+
+    private void write(JasminInstruction inst, int offset, Map<String, Integer> labels, DataOutputStream out) throws IOException {
+        var opcode = inst.getOpcode();
+
+        switch (opcode.getKind()) {
+            case NONE -> out.writeByte(opcode.getCode());
+            case BYTE -> {
+                out.writeByte(opcode.getCode());
+                out.writeByte(Integer.parseInt(inst.getArg(0)));
+            }
+            case SHORT -> {
+                out.writeByte(opcode.getCode());
+                out.writeShort(Integer.parseInt(inst.getArg(0)));
+            }
+            case CONSTANT -> {
+                int index = getConstantIndex(inst);
+                if (index <= 0xFF) {
+                    out.writeByte(opcode.getCode());
+                    out.writeByte(index);
+                } else {
+                    out.writeByte(Opcode.LDC_W);
+                    out.writeShort(index);
+                }
+            }
+            case LOCAL -> {
+                int slot = getSlot(inst);
+                if (slot <= 0xFF) {
+                    out.writeByte(opcode.getCode());
+                    out.writeByte(slot);
+                } else {
+                    out.writeByte(Opcode.WIDE);
+                    out.writeByte(opcode.getCode());
+                    out.writeShort(slot);
+                }
+            }
+            case IINC -> {
+                int slot = getSlot(inst);
+                int increment = Integer.parseInt(inst.getArg(1));
+                if (isShortIinc(inst)) {
+                    out.writeByte(opcode.getCode());
+                    out.writeByte(slot);
+                    out.writeByte(increment);
+                } else {
+                    out.writeByte(Opcode.WIDE);
+                    out.writeByte(opcode.getCode());
+                    out.writeShort(slot);
+                    out.writeShort(increment);
+                }
+            }
+            case JUMP -> {
+                var target = labels.get(inst.getArg(0));
+                if (target == null) {
+                    throw new RuntimeException("Unknown label '" + inst.getArg(0) + "'");
+                }
+
+                int jump = target - offset;
+                if (jump < Short.MIN_VALUE || jump > Short.MAX_VALUE) {
+                    throw new RuntimeException("Jump to '" + inst.getArg(0) + "' is too far");
+                }
+
+                out.writeByte(opcode.getCode());
+                out.writeShort(jump);
+            }
+            case FIELD -> {
+                var member = inst.getArg(0);
+                int slash = member.lastIndexOf('/');
+
+                out.writeByte(opcode.getCode());
+                out.writeShort(constantPool.addFieldRef(member.substring(0, slash), member.substring(slash + 1), inst.getArg(1)));
+            }
+            case METHOD -> {
+                var member = inst.getArg(0);
+                int paren = member.indexOf('(');
+                int slash = member.lastIndexOf('/', paren);
+
+                var owner = member.substring(0, slash);
+                var name = member.substring(slash + 1, paren);
+                var methodDescriptor = member.substring(paren);
+
+                out.writeByte(opcode.getCode());
+                if (opcode == Opcode.INVOKEINTERFACE) {
+                    out.writeShort(constantPool.addInterfaceMethodRef(owner, name, methodDescriptor));
+                    out.writeByte(1 + getArgumentWords(methodDescriptor));
+                    out.writeByte(0);
+                } else {
+                    out.writeShort(constantPool.addMethodRef(owner, name, methodDescriptor));
+                }
+            }
+            case CLASS -> {
+                out.writeByte(opcode.getCode());
+                out.writeShort(constantPool.addClass(inst.getArg(0)));
+            }
+            case ARRAY_TYPE -> {
+                out.writeByte(opcode.getCode());
+                out.writeByte(getArrayType(inst.getArg(0)));
+            }
+        }
+    }
+
+    private int getConstantIndex(JasminInstruction inst) {
+        var value = String.join(" ", inst.getArgs());
+
+        if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+            return constantPool.addString(value.substring(1, value.length() - 1));
+        }
+
+        return constantPool.addInteger(Integer.parseInt(value));
+    }
+
+    private static int getSlot(JasminInstruction inst) {
+        return Integer.parseInt(inst.getArg(0));
+    }
+
+    private static boolean isShortIinc(JasminInstruction inst) {
+        int increment = Integer.parseInt(inst.getArg(1));
+        return getSlot(inst) <= 0xFF && increment >= Byte.MIN_VALUE && increment <= Byte.MAX_VALUE;
+    }
+
+    private static int getArrayType(String type) {
+        return switch (type) {
+            case "boolean" -> 4;
+            case "char" -> 5;
+            case "byte" -> 8;
+            case "short" -> 9;
+            case "int" -> 10;
+            case "long" -> 11;
+            default -> throw new RuntimeException("Unknown array type '" + type + "'");
+        };
+    }
+
+    /**
+     * Follows every path from the start of the method, keeping the stack depth before each instruction.
+     */
+    static int computeMaxStack(List<JasminInstruction> instructions) {
+        var labels = getLabelIndexes(instructions);
+
+        var depths = new int[instructions.size() + 1];
+        Arrays.fill(depths, -1);
+
+        var worklist = new ArrayDeque<Integer>();
+        depths[0] = 0;
+        worklist.add(0);
+
+        int max = 0;
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            int depth = depths[i];
+
+            if (i >= instructions.size()) {
+                continue;
+            }
+
+            var inst = instructions.get(i);
+            if (inst.isLabel()) {
+                propagate(depths, worklist, i + 1, depth);
+                continue;
+            }
+
+            var opcode = inst.getOpcode();
+            depth += getPush(inst, opcode) - getPop(inst, opcode);
+            max = Math.max(max, depth);
+
+            if (opcode.getKind() == Opcode.Kind.JUMP) {
+                propagate(depths, worklist, labels.get(inst.getArg(0)), depth);
+            }
+            if (!opcode.isUnconditionalExit()) {
+                propagate(depths, worklist, i + 1, depth);
+            }
+        }
+
+        return max;
+    }
+
+    private static void propagate(int[] depths, ArrayDeque<Integer> worklist, int index, int depth) {
+        if (depth > depths[index]) {
+            depths[index] = depth;
+            worklist.add(index);
+        }
+    }
+
+    private static int getPop(JasminInstruction inst, Opcode opcode) {
+        if (opcode.getPop() >= 0) {
+            return opcode.getPop();
+        }
+
+        return switch (opcode) {
+            case GETSTATIC -> 0;
+            case PUTSTATIC -> getWords(inst.getArg(1));
+            case GETFIELD -> 1;
+            case PUTFIELD -> 1 + getWords(inst.getArg(1));
+            default -> {
+                var member = inst.getArg(0);
+                var methodDescriptor = member.substring(member.indexOf('('));
+                yield getArgumentWords(methodDescriptor) + (opcode == Opcode.INVOKESTATIC ? 0 : 1);
+            }
+        };
+    }
+
+    private static int getPush(JasminInstruction inst, Opcode opcode) {
+        if (opcode.getPush() >= 0) {
+            return opcode.getPush();
+        }
+
+        return switch (opcode) {
+            case GETSTATIC, GETFIELD -> getWords(inst.getArg(1));
+            case PUTSTATIC, PUTFIELD -> 0;
+            default -> {
+                var member = inst.getArg(0);
+                yield getWords(member.substring(member.indexOf(')') + 1));
+            }
+        };
+    }
+
+    /**
+     * Number of registers the instructions use, at least those of this, if not static, and of the arguments of the
+     * method descriptor.
+     */
+    static int computeMaxLocals(List<JasminInstruction> instructions, String descriptor, boolean isStatic) {
+        int max = getArgumentWords(descriptor) + (isStatic ? 0 : 1);
+
+        for (var inst : instructions) {
+            if (inst.isLabel()) {
+                continue;
+            }
+
+            var opcode = inst.getOpcode();
+            int slot = switch (opcode.getKind()) {
+                case LOCAL, IINC -> getSlot(inst);
+                default -> opcode.getImplicitSlot();
+            };
+
+            if (slot >= 0) {
+                boolean isLong = opcode.getMnemonic().startsWith("l");
+                max = Math.max(max, slot + (isLong ? 2 : 1));
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Number of words taken by the arguments of a method descriptor such as (I[ILjava/lang/String;)V.
+     */
+    static int getArgumentWords(String methodDescriptor) {
+        int words = 0;
+
+        for (var argument : getArgumentDescriptors(methodDescriptor)) {
+            words += getWords(argument);
+        }
+
+        return words;
+    }
+
+    /**
+     * Descriptors of the arguments of a method descriptor, such as I, [I and Ljava/lang/String; for
+     * (I[ILjava/lang/String;)V.
+     */
+    static List<String> getArgumentDescriptors(String methodDescriptor) {
+        var arguments = new ArrayList<String>();
+        int i = 1;
+
+        while (i < methodDescriptor.length() && methodDescriptor.charAt(i) != ')') {
+            int start = i;
+            while (methodDescriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (methodDescriptor.charAt(i) == 'L') {
+                i = methodDescriptor.indexOf(';', i);
+                if (i < 0) {
+                    throw new RuntimeException("Invalid method descriptor '" + methodDescriptor + "'");
+                }
+            }
+            i++;
+
+            arguments.add(methodDescriptor.substring(start, i));
+        }
+
+        return arguments;
+    }
+
+    /**
+     * Number of words taken by a value of the given type descriptor.
+     */
+    static int getWords(String typeDescriptor) {
+        return switch (typeDescriptor) {
+            case "V" -> 0;
+            case "J", "D" -> 2;
+            default -> 1;
+        };
+    }
+}
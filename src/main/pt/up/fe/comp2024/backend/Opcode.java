@@ -0,0 +1,179 @@
+package pt.up.fe.comp2024.backend;
+
+/**
+ * JVM instructions the backend can emit, with their encoding and effect on the operand stack.
+ * <p>
+ * Stack effects are in words (long values take two). Instructions whose effect depends on a descriptor (calls and
+ * field accesses) have a pop and push of -1 and are handled by the assembler.
+ */
+public enum Opcode {
+
+    NOP(0x00, Kind.NONE, 0, 0),
+    ACONST_NULL(0x01, Kind.NONE, 0, 1),
+    ICONST_M1(0x02, Kind.NONE, 0, 1),
+    ICONST_0(0x03, Kind.NONE, 0, 1),
+    ICONST_1(0x04, Kind.NONE, 0, 1),
+    ICONST_2(0x05, Kind.NONE, 0, 1),
+    ICONST_3(0x06, Kind.NONE, 0, 1),
+    ICONST_4(0x07, Kind.NONE, 0, 1),
+    ICONST_5(0x08, Kind.NONE, 0, 1),
+    BIPUSH(0x10, Kind.BYTE, 0, 1),
+    SIPUSH(0x11, Kind.SHORT, 0, 1),
+    LDC(0x12, Kind.CONSTANT, 0, 1),
+
+    ILOAD(0x15, Kind.LOCAL, 0, 1),
+    LLOAD(0x16, Kind.LOCAL, 0, 2),
+    ALOAD(0x19, Kind.LOCAL, 0, 1),
+    ILOAD_0(0x1a, 0, 0, 1), ILOAD_1(0x1b, 1, 0, 1), ILOAD_2(0x1c, 2, 0, 1), ILOAD_3(0x1d, 3, 0, 1),
+    LLOAD_0(0x1e, 0, 0, 2), LLOAD_1(0x1f, 1, 0, 2), LLOAD_2(0x20, 2, 0, 2), LLOAD_3(0x21, 3, 0, 2),
+    ALOAD_0(0x2a, 0, 0, 1), ALOAD_1(0x2b, 1, 0, 1), ALOAD_2(0x2c, 2, 0, 1), ALOAD_3(0x2d, 3, 0, 1),
+    IALOAD(0x2e, Kind.NONE, 2, 1),
+    AALOAD(0x32, Kind.NONE, 2, 1),
+    BALOAD(0x33, Kind.NONE, 2, 1),
+
+    ISTORE(0x36, Kind.LOCAL, 1, 0),
+    LSTORE(0x37, Kind.LOCAL, 2, 0),
+    ASTORE(0x3a, Kind.LOCAL, 1, 0),
+    ISTORE_0(0x3b, 0, 1, 0), ISTORE_1(0x3c, 1, 1, 0), ISTORE_2(0x3d, 2, 1, 0), ISTORE_3(0x3e, 3, 1, 0),
+    LSTORE_0(0x3f, 0, 2, 0), LSTORE_1(0x40, 1, 2, 0), LSTORE_2(0x41, 2, 2, 0), LSTORE_3(0x42, 3, 2, 0),
+    ASTORE_0(0x4b, 0, 1, 0), ASTORE_1(0x4c, 1, 1, 0), ASTORE_2(0x4d, 2, 1, 0), ASTORE_3(0x4e, 3, 1, 0),
+    IASTORE(0x4f, Kind.NONE, 3, 0),
+    AASTORE(0x53, Kind.NONE, 3, 0),
+    BASTORE(0x54, Kind.NONE, 3, 0),
+
+    POP(0x57, Kind.NONE, 1, 0),
+    POP2(0x58, Kind.NONE, 2, 0),
+    DUP(0x59, Kind.NONE, 1, 2),
+    DUP_X1(0x5a, Kind.NONE, 2, 3),
+    DUP2(0x5c, Kind.NONE, 2, 4),
+    SWAP(0x5f, Kind.NONE, 2, 2),
+
+    IADD(0x60, Kind.NONE, 2, 1),
+    LADD(0x61, Kind.NONE, 4, 2),
+    ISUB(0x64, Kind.NONE, 2, 1),
+    LSUB(0x65, Kind.NONE, 4, 2),
+    IMUL(0x68, Kind.NONE, 2, 1),
+    IDIV(0x6c, Kind.NONE, 2, 1),
+    IREM(0x70, Kind.NONE, 2, 1),
+    INEG(0x74, Kind.NONE, 1, 1),
+    ISHL(0x78, Kind.NONE, 2, 1),
+    ISHR(0x7a, Kind.NONE, 2, 1),
+    LSHR(0x7b, Kind.NONE, 3, 2),
+    IUSHR(0x7c, Kind.NONE, 2, 1),
+    LUSHR(0x7d, Kind.NONE, 3, 2),
+    IAND(0x7e, Kind.NONE, 2, 1),
+    IOR(0x80, Kind.NONE, 2, 1),
+    IXOR(0x82, Kind.NONE, 2, 1),
+    IINC(0x84, Kind.IINC, 0, 0),
+    I2L(0x85, Kind.NONE, 1, 2),
+    L2I(0x88, Kind.NONE, 2, 1),
+
+    IFEQ(0x99, Kind.JUMP, 1, 0),
+    IFNE(0x9a, Kind.JUMP, 1, 0),
+    IFLT(0x9b, Kind.JUMP, 1, 0),
+    IFGE(0x9c, Kind.JUMP, 1, 0),
+    IFGT(0x9d, Kind.JUMP, 1, 0),
+    IFLE(0x9e, Kind.JUMP, 1, 0),
+    IF_ICMPEQ(0x9f, Kind.JUMP, 2, 0),
+    IF_ICMPNE(0xa0, Kind.JUMP, 2, 0),
+    IF_ICMPLT(0xa1, Kind.JUMP, 2, 0),
+    IF_ICMPGE(0xa2, Kind.JUMP, 2, 0),
+    IF_ICMPGT(0xa3, Kind.JUMP, 2, 0),
+    IF_ICMPLE(0xa4, Kind.JUMP, 2, 0),
+    IF_ACMPEQ(0xa5, Kind.JUMP, 2, 0),
+    IF_ACMPNE(0xa6, Kind.JUMP, 2, 0),
+    GOTO(0xa7, Kind.JUMP, 0, 0),
+    IRETURN(0xac, Kind.NONE, 1, 0),
+    ARETURN(0xb0, Kind.NONE, 1, 0),
+    RETURN(0xb1, Kind.NONE, 0, 0),
+
+    GETSTATIC(0xb2, Kind.FIELD, -1, -1),
+    PUTSTATIC(0xb3, Kind.FIELD, -1, -1),
+    GETFIELD(0xb4, Kind.FIELD, -1, -1),
+    PUTFIELD(0xb5, Kind.FIELD, -1, -1),
+    INVOKEVIRTUAL(0xb6, Kind.METHOD, -1, -1),
+    INVOKESPECIAL(0xb7, Kind.METHOD, -1, -1),
+    INVOKESTATIC(0xb8, Kind.METHOD, -1, -1),
+    INVOKEINTERFACE(0xb9, Kind.METHOD, -1, -1),
+    NEW(0xbb, Kind.CLASS, 0, 1),
+    NEWARRAY(0xbc, Kind.ARRAY_TYPE, 1, 1),
+    ANEWARRAY(0xbd, Kind.CLASS, 1, 1),
+    ARRAYLENGTH(0xbe, Kind.NONE, 1, 1),
+    ATHROW(0xbf, Kind.NONE, 1, 0),
+    CHECKCAST(0xc0, Kind.CLASS, 1, 1),
+    INSTANCEOF(0xc1, Kind.CLASS, 1, 1),
+    IFNULL(0xc6, Kind.JUMP, 1, 0),
+    IFNONNULL(0xc7, Kind.JUMP, 1, 0);
+
+    /**
+     * What the arguments of the instruction are.
+     */
+    public enum Kind {
+        NONE, BYTE, SHORT, CONSTANT, LOCAL, IINC, JUMP, FIELD, METHOD, CLASS, ARRAY_TYPE
+    }
+
+    public static final int WIDE = 0xc4;
+    public static final int LDC_W = 0x13;
+
+    private final int code;
+    private final Kind kind;
+    private final int slot;
+    private final int pop;
+    private final int push;
+
+    Opcode(int code, Kind kind, int pop, int push) {
+        this(code, kind, -1, pop, push);
+    }
+
+    /**
+     * Loads and stores with the register in the opcode, such as iload_1.
+     */
+    Opcode(int code, int slot, int pop, int push) {
+        this(code, Kind.NONE, slot, pop, push);
+    }
+
+    Opcode(int code, Kind kind, int slot, int pop, int push) {
+        this.code = code;
+        this.kind = kind;
+        this.slot = slot;
+        this.pop = pop;
+        this.push = push;
+    }
+
+    public String getMnemonic() {
+        return name().toLowerCase();
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Register used by the one byte forms of loads and stores, -1 for other instructions.
+     */
+    public int getImplicitSlot() {
+        return slot;
+    }
+
+    public int getPop() {
+        return pop;
+    }
+
+    public int getPush() {
+        return push;
+    }
+
+    /**
+     * True if the next instruction is never executed after this one.
+     */
+    public boolean isUnconditionalExit() {
+        return switch (this) {
+            case GOTO, RETURN, IRETURN, ARETURN, ATHROW -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,294 @@
+package pt.up.fe.comp2024.backend;
+
+import java.util.*;
+
+/**
+ * Rewrites of short instruction sequences of a Jasmin method, applied by {@link JasminPeephole}.
+ * <p>
+ * Each rule looks at the instructions starting at a given index and, if they match, changes the list in place.
+ * Labels are never removed, so a pattern never spans a label unless the rule says so.
+ */
+public enum PeepholeRule {
+
+    /**
+     * "xstore n; xload n" becomes "dup; xstore n".
+     */
+    STORE_LOAD {
+        @Override
+        boolean apply(List<JasminInstruction> code, int index) {
+            var store = code.get(index);
+            var load = next(code, index);
+            if (load == null) {
+                return false;
+            }
+
+            for (var kind : new Opcode[][]{{Opcode.ISTORE, Opcode.ILOAD}, {Opcode.ASTORE, Opcode.ALOAD}}) {
+                int slot = getSlot(store, kind[0]);
+                if (slot >= 0 && getSlot(load, kind[1]) == slot) {
+                    code.set(index + 1, store);
+                    code.set(index, JasminInstruction.of(Opcode.DUP));
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    },
+
+    /**
+     * A value pushed and popped right away is never pushed.
+     */
+    PUSH_POP {
+        @Override
+        boolean apply(List<JasminInstruction> code, int index) {
+            var push = code.get(index);
+            var pop = next(code, index);
+
+            if (pop == null || !pop.is(Opcode.POP) || !isPush(push)) {
+                return false;
+            }
+
+            code.remove(index + 1);
+            code.remove(index);
+            return true;
+        }
+    },
+
+    /**
+     * "iconst_0; ifeq L" becomes "goto L", and "iconst_1; ifeq L" disappears (likewise for ifne).
+     */
+    CONSTANT_BRANCH {
+        @Override
+        boolean apply(List<JasminInstruction> code, int index) {
+            var constant = code.get(index);
+            var branch = next(code, index);
+
+            if (branch == null || !(branch.is(Opcode.IFEQ) || branch.is(Opcode.IFNE))
+                    || !(constant.is(Opcode.ICONST_0) || constant.is(Opcode.ICONST_1))) {
+                return false;
+            }
+
+            var taken = constant.is(Opcode.ICONST_0) == branch.is(Opcode.IFEQ);
+
+            code.remove(index + 1);
+            if (taken) {
+                code.set(index, JasminInstruction.of(Opcode.GOTO, branch.getArg(0)));
+            } else {
+                code.remove(index);
+            }
+            return true;
+        }
+    },
+
+    /**
+     * A goto to a label placed right after it is removed.
+     */
+    GOTO_NEXT {
+        @Override
+        boolean apply(List<JasminInstruction> code, int index) {
+            var jump = code.get(index);
+            if (!jump.is(Opcode.GOTO)) {
+                return false;
+            }
+
+            for (int i = index + 1; i < code.size() && code.get(i).isLabel(); i++) {
+                if (code.get(i).getLabel().equals(jump.getArg(0))) {
+                    code.remove(index);
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    },
+
+    /**
+     * A jump to a label that is followed by "goto M" jumps to M instead, or to the end of the chain of gotos M starts.
+     * Jumps into a chain of gotos that loops back on itself are left as they are.
+     */
+    JUMP_CHAIN {
+        @Override
+        boolean apply(List<JasminInstruction> code, int index) {
+            return apply(code, index, getJumpTargets(code));
+        }
+
+        @Override
+        boolean apply(List<JasminInstruction> code, int index, Map<String, String> jumpTargets) {
+            var jump = code.get(index);
+            if (!isJump(jump)) {
+                return false;
+            }
+
+            var target = jumpTargets.get(jump.getArg(0));
+            if (target == null) {
+                return false;
+            }
+
+            code.set(index, JasminInstruction.of(jump.getOpcode(), target));
+            return true;
+        }
+    },
+
+    /**
+     * "if&lt;cond&gt; L1; goto L2; L1:" becomes "if&lt;!cond&gt; L2; L1:".
+     */
+    INVERTED_BRANCH {
+        @Override
+        boolean apply(List<JasminInstruction> code, int index) {
+            var branch = code.get(index);
+            var inverse = branch.isLabel() ? null : INVERSE_BRANCHES.get(branch.getOpcode());
+
+            if (inverse == null || index + 2 >= code.size()) {
+                return false;
+            }
+
+            var jump = code.get(index + 1);
+            var label = code.get(index + 2);
+
+            if (!jump.is(Opcode.GOTO) || !label.isLabel() || !label.getLabel().equals(branch.getArg(0))) {
+                return false;
+            }
+
+            code.set(index, JasminInstruction.of(inverse, jump.getArg(0)));
+            code.remove(index + 1);
+            return true;
+        }
+    },
+
+    /**
+     * Instructions after a goto or a return are removed, up to the next label.
+     */
+    DEAD_CODE {
+        @Override
+        boolean apply(List<JasminInstruction> code, int index) {
+            var inst = code.get(index);
+            if (!isUnconditionalExit(inst) || index + 1 >= code.size() || code.get(index + 1).isLabel()) {
+                return false;
+            }
+
+            while (index + 1 < code.size() && !code.get(index + 1).isLabel()) {
+                code.remove(index + 1);
+            }
+            return true;
+        }
+    };
+
+    private static final Map<Opcode, Opcode> INVERSE_BRANCHES = Map.ofEntries(
+            Map.entry(Opcode.IFEQ, Opcode.IFNE), Map.entry(Opcode.IFNE, Opcode.IFEQ),
+            Map.entry(Opcode.IFLT, Opcode.IFGE), Map.entry(Opcode.IFGE, Opcode.IFLT),
+            Map.entry(Opcode.IFGT, Opcode.IFLE), Map.entry(Opcode.IFLE, Opcode.IFGT),
+            Map.entry(Opcode.IF_ICMPEQ, Opcode.IF_ICMPNE), Map.entry(Opcode.IF_ICMPNE, Opcode.IF_ICMPEQ),
+            Map.entry(Opcode.IF_ICMPLT, Opcode.IF_ICMPGE), Map.entry(Opcode.IF_ICMPGE, Opcode.IF_ICMPLT),
+            Map.entry(Opcode.IF_ICMPGT, Opcode.IF_ICMPLE), Map.entry(Opcode.IF_ICMPLE, Opcode.IF_ICMPGT),
+            Map.entry(Opcode.IF_ACMPEQ, Opcode.IF_ACMPNE), Map.entry(Opcode.IF_ACMPNE, Opcode.IF_ACMPEQ),
+            Map.entry(Opcode.IFNULL, Opcode.IFNONNULL), Map.entry(Opcode.IFNONNULL, Opcode.IFNULL));
+
+    /**
+     * Tries the rule on the instructions starting at the index. Returns true if the list was changed.
+     */
+    abstract boolean apply(List<JasminInstruction> code, int index);
+
+    /**
+     * Same as {@link #apply(List, int)}, with the jump targets of the code computed beforehand by
+     * {@link #getJumpTargets(List)}. They may be outdated by changes made since, but still lead to the same place.
+     */
+    boolean apply(List<JasminInstruction> code, int index, Map<String, String> jumpTargets) {
+        return apply(code, index);
+    }
+
+    /**
+     * For each label followed by a goto, the label at the end of the chain of gotos it starts. Labels whose chain
+     * loops back on itself are left out, since there is no end to jump to.
+     */
+    static Map<String, String> getJumpTargets(List<JasminInstruction> code) {
+        var gotos = new HashMap<String, String>();
+        var labels = new ArrayList<String>();
+
+        for (var inst : code) {
+            if (inst.isLabel()) {
+                labels.add(inst.getLabel());
+                continue;
+            }
+
+            if (inst.is(Opcode.GOTO)) {
+                labels.forEach(label -> gotos.put(label, inst.getArg(0)));
+            }
+            labels.clear();
+        }
+
+        var targets = new HashMap<String, String>();
+        for (var label : gotos.keySet()) {
+            var visited = new HashSet<String>();
+            var target = label;
+
+            while (gotos.containsKey(target) && visited.add(target)) {
+                target = gotos.get(target);
+            }
+
+            if (!gotos.containsKey(target)) {
+                targets.put(label, target);
+            }
+        }
+
+        return targets;
+    }
+
+    /**
+     * The instruction right after the index, or null if it is a label or there is none.
+     */
+    private static JasminInstruction next(List<JasminInstruction> code, int index) {
+        if (index + 1 >= code.size() || code.get(index + 1).isLabel()) {
+            return null;
+        }
+
+        return code.get(index + 1);
+    }
+
+    /**
+     * Local variable slot of "xload n" or "xload_n" (likewise for stores), or -1 if the instruction is not of that kind.
+     */
+    static int getSlot(JasminInstruction inst, Opcode local) {
+        if (inst.isLabel()) {
+            return -1;
+        }
+
+        var opcode = inst.getOpcode();
+        if (opcode == local) {
+            return Integer.parseInt(inst.getArg(0));
+        }
+
+        if (opcode.getImplicitSlot() >= 0 && opcode.name().startsWith(local.name() + "_")) {
+            return opcode.getImplicitSlot();
+        }
+
+        return -1;
+    }
+
+    static boolean isJump(JasminInstruction inst) {
+        return !inst.isLabel() && inst.getOpcode().getKind() == Opcode.Kind.JUMP;
+    }
+
+    private static boolean isPush(JasminInstruction inst) {
+        if (inst.isLabel()) {
+            return false;
+        }
+
+        if (getSlot(inst, Opcode.ILOAD) >= 0 || getSlot(inst, Opcode.ALOAD) >= 0) {
+            return true;
+        }
+
+        return switch (inst.getOpcode()) {
+            case ICONST_M1, ICONST_0, ICONST_1, ICONST_2, ICONST_3, ICONST_4, ICONST_5,
+                    BIPUSH, SIPUSH, LDC, DUP, ACONST_NULL -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isUnconditionalExit(JasminInstruction inst) {
+        if (inst.isLabel()) {
+            return false;
+        }
+
+        return inst.getOpcode().isUnconditionalExit();
+    }
+}
@@ -0,0 +1,550 @@
+package pt.up.fe.comp2024.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Computes the StackMapTable attribute of a method: the types of the locals and of the operand stack before every
+ * instruction that is the target of a jump or follows an unconditional one.
+ * <p>
+ * Types come from simulating the instructions along every path through the code. Where paths with different object
+ * types meet, a local takes the type the var table declares for its register, and a value on the stack becomes an
+ * Object. With these frames the JVM checks the code in a single pass instead of inferring the types itself.
+ */
+public class StackMapTable {
+
+    /**
+     * Type of a local or of a value on the stack, as the verifier sees it. Long values take a single entry.
+     */
+    public record VerificationType(int tag, String className, int offset) {
+
+        public static final VerificationType TOP = new VerificationType(0, null, -1);
+        public static final VerificationType INTEGER = new VerificationType(1, null, -1);
+        public static final VerificationType LONG = new VerificationType(4, null, -1);
+        public static final VerificationType NULL = new VerificationType(5, null, -1);
+        public static final VerificationType UNINITIALIZED_THIS = new VerificationType(6, null, -1);
+
+        private static final int OBJECT = 7;
+        private static final int UNINITIALIZED = 8;
+
+        /**
+         * Object of a class given by its internal name, or an array given by its descriptor.
+         */
+        public static VerificationType object(String className) {
+            return new VerificationType(OBJECT, className, -1);
+        }
+
+        /**
+         * Object created by the new at the given offset, before its constructor is called.
+         */
+        public static VerificationType uninitialized(int offset) {
+            return new VerificationType(UNINITIALIZED, null, offset);
+        }
+
+        public static VerificationType fromDescriptor(String descriptor) {
+            return switch (descriptor.charAt(0)) {
+                case 'I', 'Z', 'B', 'C', 'S' -> INTEGER;
+                case 'J' -> LONG;
+                case 'L' -> object(descriptor.substring(1, descriptor.length() - 1));
+                case '[' -> object(descriptor);
+                default -> throw new RuntimeException("No verification type for descriptor '" + descriptor + "'");
+            };
+        }
+
+        public boolean isReference() {
+            return tag == OBJECT || tag == NULL.tag;
+        }
+    }
+
+    private final ConstantPool constantPool;
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+    private final boolean isStatic;
+    private final Map<Integer, String> localTypes;
+    private final int maxLocals;
+
+    /**
+     * The local types are the descriptors of the registers declared in the var table of the method.
+     */
+    public StackMapTable(ConstantPool constantPool, String className, String methodName, String descriptor,
+                         boolean isStatic, Map<Integer, String> localTypes, int maxLocals) {
+        this.constantPool = constantPool;
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+        this.isStatic = isStatic;
+        this.localTypes = localTypes;
+        this.maxLocals = maxLocals;
+    }
+
+    /**
+     * Contents of the attribute for the instructions at the given offsets, or null if the method needs no frames.
+     */
+    public byte[] build(List<JasminInstruction> instructions, int[] offsets) {
+        var labels = new HashMap<String, Integer>();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i).isLabel()) {
+                labels.put(instructions.get(i).getLabel(), i);
+            }
+        }
+
+        var states = simulate(instructions, offsets, labels);
+
+        // frames are needed at jump targets and after instructions that never fall through
+        var frames = new TreeMap<Integer, Frame>();
+        for (int i = 0; i < instructions.size(); i++) {
+            var inst = instructions.get(i);
+            if (inst.isLabel()) {
+                continue;
+            }
+
+            if (inst.getOpcode().getKind() == Opcode.Kind.JUMP) {
+                addFrame(frames, instructions, offsets, states, labels.get(inst.getArg(0)));
+            }
+            if (inst.getOpcode().isUnconditionalExit()) {
+                addFrame(frames, instructions, offsets, states, i + 1);
+            }
+        }
+
+        if (frames.isEmpty()) {
+            return null;
+        }
+
+        return write(frames);
+    }
+
+    private static void addFrame(Map<Integer, Frame> frames, List<JasminInstruction> instructions, int[] offsets,
+                                 Frame[] states, int index) {
+        while (index < instructions.size() && instructions.get(index).isLabel()) {
+            index++;
+        }
+
+        if (index < instructions.size() && states[index] != null) {
+            frames.put(offsets[index], states[index]);
+        }
+    }
+
+    /**
+     * Follows every path from the start of the method, merging the types before each instruction.
+     */
+    private Frame[] simulate(List<JasminInstruction> instructions, int[] offsets, Map<String, Integer> labels) {
+        var states = new Frame[instructions.size() + 1];
+        states[0] = getInitialFrame();
+
+        var worklist = new ArrayDeque<Integer>();
+        worklist.add(0);
+
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            if (i >= instructions.size()) {
+                continue;
+            }
+
+            var frame = new Frame(states[i]);
+            var inst = instructions.get(i);
+
+            if (inst.isLabel()) {
+                propagate(states, worklist, i + 1, frame);
+                continue;
+            }
+
+            execute(inst, offsets[i], frame);
+
+            if (inst.getOpcode().getKind() == Opcode.Kind.JUMP) {
+                propagate(states, worklist, labels.get(inst.getArg(0)), frame);
+            }
+            if (!inst.getOpcode().isUnconditionalExit()) {
+                propagate(states, worklist, i + 1, frame);
+            }
+        }
+
+        return states;
+    }
+
+    private void propagate(Frame[] states, ArrayDeque<Integer> worklist, int index, Frame frame) {
+        var merged = states[index] == null ? new Frame(frame) : merge(states[index], frame);
+
+        if (states[index] == null || !merged.equals(states[index])) {
+            states[index] = merged;
+            worklist.add(index);
+        }
+    }
+
+    private Frame getInitialFrame() {
+        var frame = new Frame(maxLocals);
+        int slot = 0;
+
+        if (!isStatic) {
+            frame.store(slot++, methodName.equals("<init>") ?
+                    VerificationType.UNINITIALIZED_THIS :
+                    VerificationType.object(className));
+        }
+
+        for (var argument : MethodAssembler.getArgumentDescriptors(descriptor)) {
+            frame.store(slot, VerificationType.fromDescriptor(argument));
+            slot += MethodAssembler.getWords(argument);
+        }
+
+        return frame;
+    }
+
+    private Frame merge(Frame first, Frame second) {
+        if (first.stack.size() != second.stack.size()) {
+            throw new RuntimeException("Paths reach the same instruction with stacks of different heights");
+        }
+
+        var merged = new Frame(first);
+
+        for (int slot = 0; slot < maxLocals; slot++) {
+            merged.locals[slot] = merge(first.locals[slot], second.locals[slot], localTypes.get(slot));
+        }
+
+        for (int i = 0; i < merged.stack.size(); i++) {
+            var type = merge(first.stack.get(i), second.stack.get(i), null);
+            if (type == VerificationType.TOP) {
+                throw new RuntimeException("Paths reach the same instruction with values of different types on the stack");
+            }
+            merged.stack.set(i, type);
+        }
+
+        return merged;
+    }
+
+    private static VerificationType merge(VerificationType first, VerificationType second, String declared) {
+        if (first.equals(second)) {
+            return first;
+        }
+
+        if (!first.isReference() || !second.isReference()) {
+            return VerificationType.TOP;
+        }
+
+        if (first.equals(VerificationType.NULL)) {
+            return second;
+        }
+        if (second.equals(VerificationType.NULL)) {
+            return first;
+        }
+
+        if (declared != null && (declared.startsWith("L") || declared.startsWith("["))) {
+            return VerificationType.fromDescriptor(declared);
+        }
+
+        return VerificationType.object("java/lang/Object");
+    }
+
+    private void execute(JasminInstruction inst, int offset, Frame frame) {
+        var opcode = inst.getOpcode();
+
+        switch (opcode) {
+            case NOP, GOTO, RETURN, IINC -> {
+            }
+            case ACONST_NULL -> frame.push(VerificationType.NULL);
+            case ICONST_M1, ICONST_0, ICONST_1, ICONST_2, ICONST_3, ICONST_4, ICONST_5, BIPUSH, SIPUSH,
+                    ILOAD, ILOAD_0, ILOAD_1, ILOAD_2, ILOAD_3 -> frame.push(VerificationType.INTEGER);
+            case LDC -> frame.push(inst.getArg(0).startsWith("\"") ?
+                    VerificationType.object("java/lang/String") :
+                    VerificationType.INTEGER);
+            case LLOAD, LLOAD_0, LLOAD_1, LLOAD_2, LLOAD_3 -> frame.push(VerificationType.LONG);
+            case ALOAD, ALOAD_0, ALOAD_1, ALOAD_2, ALOAD_3 -> frame.push(frame.locals[getSlot(inst)]);
+            case IALOAD, BALOAD -> {
+                frame.pop(2);
+                frame.push(VerificationType.INTEGER);
+            }
+            case AALOAD -> {
+                frame.pop();
+                frame.push(getElementType(frame.pop()));
+            }
+            case ISTORE, ISTORE_0, ISTORE_1, ISTORE_2, ISTORE_3 -> {
+                frame.pop();
+                frame.store(getSlot(inst), VerificationType.INTEGER);
+            }
+            case LSTORE, LSTORE_0, LSTORE_1, LSTORE_2, LSTORE_3 -> {
+                frame.pop();
+                frame.store(getSlot(inst), VerificationType.LONG);
+            }
+            case ASTORE, ASTORE_0, ASTORE_1, ASTORE_2, ASTORE_3 -> frame.store(getSlot(inst), frame.pop());
+            case IASTORE, AASTORE, BASTORE -> frame.pop(3);
+            case POP -> frame.pop();
+            case POP2 -> {
+                if (!frame.pop().equals(VerificationType.LONG)) {
+                    frame.pop();
+                }
+            }
+            case DUP -> frame.push(frame.peek());
+            case DUP_X1 -> {
+                var first = frame.pop();
+                var second = frame.pop();
+                frame.push(first);
+                frame.push(second);
+                frame.push(first);
+            }
+            case DUP2 -> {
+                var first = frame.pop();
+                if (first.equals(VerificationType.LONG)) {
+                    frame.push(first);
+                    frame.push(first);
+                } else {
+                    var second = frame.pop();
+                    frame.push(second);
+                    frame.push(first);
+                    frame.push(second);
+                    frame.push(first);
+                }
+            }
+            case SWAP -> {
+                var first = frame.pop();
+                var second = frame.pop();
+                frame.push(first);
+                frame.push(second);
+            }
+            case IADD, ISUB, IMUL, IDIV, IREM, ISHL, ISHR, IUSHR, IAND, IOR, IXOR -> {
+                frame.pop(2);
+                frame.push(VerificationType.INTEGER);
+            }
+            case INEG, L2I, ARRAYLENGTH, INSTANCEOF -> {
+                frame.pop();
+                frame.push(VerificationType.INTEGER);
+            }
+            case LADD, LSUB, LSHR, LUSHR -> {
+                frame.pop(2);
+                frame.push(VerificationType.LONG);
+            }
+            case I2L -> {
+                frame.pop();
+                frame.push(VerificationType.LONG);
+            }
+            case IFEQ, IFNE, IFLT, IFGE, IFGT, IFLE, IFNULL, IFNONNULL, IRETURN, ARETURN, ATHROW, PUTSTATIC ->
+                    frame.pop();
+            case IF_ICMPEQ, IF_ICMPNE, IF_ICMPLT, IF_ICMPGE, IF_ICMPGT, IF_ICMPLE, IF_ACMPEQ, IF_ACMPNE, PUTFIELD ->
+                    frame.pop(2);
+            case GETSTATIC -> frame.push(VerificationType.fromDescriptor(inst.getArg(1)));
+            case GETFIELD -> {
+                frame.pop();
+                frame.push(VerificationType.fromDescriptor(inst.getArg(1)));
+            }
+            case INVOKEVIRTUAL, INVOKESPECIAL, INVOKESTATIC, INVOKEINTERFACE -> invoke(inst, frame);
+            case NEW -> frame.push(VerificationType.uninitialized(offset));
+            case NEWARRAY -> {
+                frame.pop();
+                frame.push(VerificationType.object(getPrimitiveArray(inst.getArg(0))));
+            }
+            case ANEWARRAY -> {
+                frame.pop();
+                var element = inst.getArg(0);
+                frame.push(VerificationType.object(element.startsWith("[") ? "[" + element : "[L" + element + ";"));
+            }
+            case CHECKCAST -> {
+                frame.pop();
+                frame.push(VerificationType.object(inst.getArg(0)));
+            }
+            default -> throw new RuntimeException("No stack map rule for " + opcode.getMnemonic());
+        }
+    }
+
+    private void invoke(JasminInstruction inst, Frame frame) {
+        var member = inst.getArg(0);
+        int paren = member.indexOf('(');
+        int slash = member.lastIndexOf('/', paren);
+        var methodDescriptor = member.substring(paren);
+
+        frame.pop(MethodAssembler.getArgumentDescriptors(methodDescriptor).size());
+
+        if (!inst.is(Opcode.INVOKESTATIC)) {
+            var receiver = frame.pop();
+
+            // the constructor initializes every copy of the new object
+            if (inst.is(Opcode.INVOKESPECIAL) && member.substring(slash + 1, paren).equals("<init>")) {
+                var initialized = receiver.equals(VerificationType.UNINITIALIZED_THIS) ?
+                        VerificationType.object(className) :
+                        VerificationType.object(member.substring(0, slash));
+                frame.replace(receiver, initialized);
+            }
+        }
+
+        var returnType = methodDescriptor.substring(methodDescriptor.indexOf(')') + 1);
+        if (!returnType.equals("V")) {
+            frame.push(VerificationType.fromDescriptor(returnType));
+        }
+    }
+
+    private static VerificationType getElementType(VerificationType array) {
+        if (array.equals(VerificationType.NULL)) {
+            return VerificationType.NULL;
+        }
+
+        return VerificationType.fromDescriptor(array.className().substring(1));
+    }
+
+    private static String getPrimitiveArray(String type) {
+        return switch (type) {
+            case "boolean" -> "[Z";
+            case "char" -> "[C";
+            case "byte" -> "[B";
+            case "short" -> "[S";
+            case "int" -> "[I";
+            case "long" -> "[J";
+            default -> throw new RuntimeException("Unknown array type '" + type + "'");
+        };
+    }
+
+    private static int getSlot(JasminInstruction inst) {
+        int slot = inst.getOpcode().getImplicitSlot();
+        return slot >= 0 ? slot : Integer.parseInt(inst.getArg(0));
+    }
+
+    /**
+     * Writes each frame in its shortest form: same_frame or same_locals_1_stack_item when the locals did not change
+     * since the previous frame, full_frame otherwise.
+     */
+    private byte[] write(SortedMap<Integer, Frame> frames) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+
+        try {
+            out.writeShort(frames.size());
+
+            int previousOffset = -1;
+            var previousLocals = getInitialFrame().getLocalEntries();
+
+            for (var entry : frames.entrySet()) {
+                int offset = entry.getKey();
+                var frame = entry.getValue();
+
+                int delta = previousOffset < 0 ? offset : offset - previousOffset - 1;
+                var locals = frame.getLocalEntries();
+                boolean sameLocals = locals.equals(previousLocals) && delta <= 63;
+
+                if (sameLocals && frame.stack.isEmpty()) {
+                    out.writeByte(delta);
+                } else if (sameLocals && frame.stack.size() == 1) {
+                    out.writeByte(64 + delta);
+                    writeType(frame.stack.get(0), out);
+                } else {
+                    out.writeByte(255);
+                    out.writeShort(delta);
+                    out.writeShort(locals.size());
+                    for (var type : locals) {
+                        writeType(type, out);
+                    }
+                    out.writeShort(frame.stack.size());
+                    for (var type : frame.stack) {
+                        writeType(type, out);
+                    }
+                }
+
+                previousOffset = offset;
+                previousLocals = locals;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void writeType(VerificationType type, DataOutputStream out) throws IOException {
+        out.writeByte(type.tag());
+
+        if (type.tag() == VerificationType.OBJECT) {
+            out.writeShort(constantPool.addClass(type.className()));
+        } else if (type.tag() == VerificationType.UNINITIALIZED) {
+            out.writeShort(type.offset());
+        }
+    }
+
+    /**
+     * Types of the locals and of the stack before an instruction.
+     */
+    private static class Frame {
+
+        private final VerificationType[] locals;
+        private final List<VerificationType> stack;
+
+        Frame(int maxLocals) {
+            this.locals = new VerificationType[maxLocals];
+            this.stack = new ArrayList<>();
+            Arrays.fill(locals, VerificationType.TOP);
+        }
+
+        Frame(Frame other) {
+            this.locals = other.locals.clone();
+            this.stack = new ArrayList<>(other.stack);
+        }
+
+        void push(VerificationType type) {
+            stack.add(type);
+        }
+
+        VerificationType pop() {
+            if (stack.isEmpty()) {
+                throw new RuntimeException("Instruction pops from an empty stack");
+            }
+            return stack.remove(stack.size() - 1);
+        }
+
+        void pop(int count) {
+            for (int i = 0; i < count; i++) {
+                pop();
+            }
+        }
+
+        VerificationType peek() {
+            return stack.get(stack.size() - 1);
+        }
+
+        void store(int slot, VerificationType type) {
+            // a long in the previous register is broken by the store
+            if (slot > 0 && locals[slot - 1].equals(VerificationType.LONG)) {
+                locals[slot - 1] = VerificationType.TOP;
+            }
+
+            locals[slot] = type;
+            if (type.equals(VerificationType.LONG)) {
+                locals[slot + 1] = VerificationType.TOP;
+            }
+        }
+
+        void replace(VerificationType from, VerificationType to) {
+            for (int i = 0; i < locals.length; i++) {
+                if (locals[i].equals(from)) {
+                    locals[i] = to;
+                }
+            }
+            stack.replaceAll(type -> type.equals(from) ? to : type);
+        }
+
+        /**
+         * Locals as the frame encodes them: a long takes a single entry and trailing unused registers are left out.
+         */
+        List<VerificationType> getLocalEntries() {
+            int end = locals.length;
+            while (end > 0 && locals[end - 1].equals(VerificationType.TOP)) {
+                end--;
+            }
+
+            var entries = new ArrayList<VerificationType>();
+            for (int slot = 0; slot < end; slot++) {
+                entries.add(locals[slot]);
+                if (locals[slot].equals(VerificationType.LONG)) {
+                    slot++;
+                }
+            }
+
+            return entries;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Frame frame && Arrays.equals(locals, frame.locals) && stack.equals(frame.stack);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(locals) + stack.hashCode();
+        }
+    }
+}
@@ -3,8 +3,21 @@ package pt.up.fe.comp2024.optimization;
 import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
 import pt.up.fe.comp.jmm.ollir.JmmOptimization;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2024.CompilerConfig;
+import pt.up.fe.comp2024.optimization.passes.BlockLayout;
+import pt.up.fe.comp2024.optimization.passes.ConditionFusion;
+import pt.up.fe.comp2024.optimization.passes.FieldScalarReplacement;
+import pt.up.fe.comp2024.optimization.passes.LocalValueNumbering;
+import pt.up.fe.comp2024.optimization.passes.LoopInvariantCodeMotion;
+import pt.up.fe.comp2024.optimization.passes.MethodInlining;
+import pt.up.fe.comp2024.optimization.passes.SparseConditionalConstantPropagation;
+import pt.up.fe.comp2024.optimization.passes.StrengthReduction;
+import pt.up.fe.comp2024.optimization.passes.TailCallElimination;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 
 public class JmmOptimizationImpl implements JmmOptimization {
 
@@ -14,13 +27,52 @@ public class JmmOptimizationImpl implements JmmOptimization {
         var visitor = new OllirGeneratorVisitor(semanticsResult.getSymbolTable());
         var ollirCode = visitor.visit(semanticsResult.getRootNode());
 
-        return new OllirResult(semanticsResult, ollirCode, Collections.emptyList());
+        return new OllirResult(semanticsResult, ollirCode, new ArrayList<>());
     }
 
     @Override
     public OllirResult optimize(OllirResult ollirResult) {
 
-        //TODO: Do your OLLIR-based optimizations here
+        if (!CompilerConfig.getOptimize(ollirResult.getConfig())) {
+            return ollirResult;
+        }
+
+        boolean closedWorld = CompilerConfig.isClosedWorld(ollirResult.getConfig());
+
+        // passes are created for each class, they keep state while visiting a method
+        List<OllirPass> ollirPasses = List.of(
+                new TailCallElimination(closedWorld),
+                new MethodInlining(closedWorld),
+                new SparseConditionalConstantPropagation(),
+                new StrengthReduction(),
+                new LocalValueNumbering(),
+                new LoopInvariantCodeMotion(),
+                new FieldScalarReplacement(),
+                new ConditionFusion(),
+                new BlockLayout());
+
+        var classUnit = ollirResult.getOllirClass();
+
+        for (var ollirPass : ollirPasses) {
+            var passName = ollirPass.getClass().getSimpleName();
+            int changed = 0;
+
+            for (var method : classUnit.getMethods()) {
+                try {
+                    changed += ollirPass.optimize(method);
+                } catch (Exception e) {
+                    ollirResult.getReports().add(Report.newError(Stage.OPTIMIZATION,
+                            -1,
+                            -1,
+                            "Problem while executing optimization pass '" + passName + "' on method '" + method.getMethodName() + "'",
+                            e)
+                    );
+                }
+            }
+
+            ollirResult.getReports().add(Report.newLog(Stage.OPTIMIZATION, -1, -1,
+                    passName + ": " + changed + " instructions optimized", null));
+        }
 
         return ollirResult;
     }
@@ -10,6 +10,7 @@ import pt.up.fe.specs.util.SpecsSystem;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static pt.up.fe.comp2024.ast.Kind.*;
 
@@ -20,8 +21,13 @@ public class OllirExprGeneratorVisitor extends PreorderJmmVisitor<Void, OllirExp
 
     private static final String SPACE = " ";
     private static final String ASSIGN = ":=";
+    private static final String BOOL_TYPE = ".bool";
     private final String END_STMT = ";\n";
 
+    // comparison that is true when the given one is false
+    private static final Map<String, String> INVERSE_COMPARISONS = Map.of(
+            "<", ">=", ">", "<=", "<=", ">", ">=", "<", "==", "!=", "!=", "==");
+
     private final JmmSymbolTable table;
 
     public OllirExprGeneratorVisitor(JmmSymbolTable table) {
@@ -35,6 +41,10 @@ public class OllirExprGeneratorVisitor extends PreorderJmmVisitor<Void, OllirExp
         addVisit(INTEGER_LITERAL, this::visitInteger);
         addVisit(FUNCTION_CALL, this::visitFunctionCall);
         addVisit(PARENTHESIS, this::visitParenthesis);
+        addVisit(NOT, this::visitNot);
+        addVisit(ARRAY_INIT, this::visitArrayInit);
+        addVisit(ACCESS_ARRAY, this::visitAccessArray);
+        addVisit(LENGTH, this::visitLength);
 
         setDefaultVisit(this::defaultVisit);
     }
@@ -53,6 +63,10 @@ public class OllirExprGeneratorVisitor extends PreorderJmmVisitor<Void, OllirExp
 
 
     private OllirExprResult visitBinExpr(JmmNode node, Void unused) {
+        if (node.get("name").equals("&&")) {
+            return visitAnd(node);
+        }
+
         var lhs = visit(node.getJmmChild(0));
         var rhs = visit(node.getJmmChild(1));
 
@@ -77,16 +91,177 @@ public class OllirExprGeneratorVisitor extends PreorderJmmVisitor<Void, OllirExp
     }
 
 
+    /**
+     * a &amp;&amp; b takes the value of a, and only when a is true evaluates b and takes its value instead.
+     */
+    private OllirExprResult visitAnd(JmmNode node) {
+        var lhs = visit(node.getJmmChild(0));
+        var rhs = visit(node.getJmmChild(1));
+
+        String code = OptUtils.getTemp() + BOOL_TYPE;
+        String endLabel = OptUtils.getLabel("and_end");
+
+        StringBuilder computation = new StringBuilder();
+
+        computation.append(lhs.getComputation());
+        computation.append(code).append(SPACE).append(ASSIGN).append(BOOL_TYPE).append(SPACE)
+                .append(lhs.getCode()).append(END_STMT);
+        computation.append("if (!").append(BOOL_TYPE).append(SPACE).append(code).append(") goto ")
+                .append(endLabel).append(END_STMT);
+
+        computation.append(rhs.getComputation());
+        computation.append(code).append(SPACE).append(ASSIGN).append(BOOL_TYPE).append(SPACE)
+                .append(rhs.getCode()).append(END_STMT);
+        computation.append(endLabel).append(":\n");
+
+        return new OllirExprResult(code, computation.toString());
+    }
+
+    private OllirExprResult visitNot(JmmNode node, Void unused) {
+        var operand = visit(node.getJmmChild(0));
+
+        String code = OptUtils.getTemp() + BOOL_TYPE;
+
+        StringBuilder computation = new StringBuilder(operand.getComputation());
+        computation.append(code).append(SPACE).append(ASSIGN).append(BOOL_TYPE).append(SPACE)
+                .append("!").append(BOOL_TYPE).append(SPACE).append(operand.getCode()).append(END_STMT);
+
+        return new OllirExprResult(code, computation.toString());
+    }
+
+    /**
+     * [e1, e2, ...] evaluates every element, then allocates the array and stores them in order. The stores follow
+     * the allocation with nothing in between, so the backend can fill the array while it is still on the stack.
+     */
+    private OllirExprResult visitArrayInit(JmmNode node, Void unused) {
+        return packArray(node.getChildren());
+    }
+
+    /**
+     * a[i] reads the element into a temporary, since OLLIR only indexes variables.
+     */
+    private OllirExprResult visitAccessArray(JmmNode node, Void unused) {
+        var array = visit(node.getJmmChild(0));
+        var index = visit(node.getJmmChild(1));
+
+        String elementType = OptUtils.toOllirType(new Type(TypeUtils.getIntTypeName(), false));
+        String code = OptUtils.getTemp() + elementType;
+
+        StringBuilder computation = new StringBuilder();
+        computation.append(array.getComputation()).append(index.getComputation());
+        computation.append(code).append(SPACE).append(ASSIGN).append(elementType).append(SPACE)
+                .append(OptUtils.getName(array.getCode())).append("[").append(index.getCode()).append("]")
+                .append(elementType).append(END_STMT);
+
+        return new OllirExprResult(code, computation.toString());
+    }
+
+    private OllirExprResult visitLength(JmmNode node, Void unused) {
+        var array = visit(node.getJmmChild(0));
+
+        String intType = OptUtils.toOllirType(new Type(TypeUtils.getIntTypeName(), false));
+        String code = OptUtils.getTemp() + intType;
+
+        StringBuilder computation = new StringBuilder(array.getComputation());
+        computation.append(code).append(SPACE).append(ASSIGN).append(intType).append(SPACE)
+                .append("arraylength(").append(array.getCode()).append(")").append(intType).append(END_STMT);
+
+        return new OllirExprResult(code, computation.toString());
+    }
+
+    /**
+     * An int array with the values of the expressions, built like an array literal.
+     */
+    private OllirExprResult packArray(List<JmmNode> values) {
+        String elementType = OptUtils.toOllirType(new Type(TypeUtils.getIntTypeName(), false));
+        String arrayType = OptUtils.toOllirType(new Type(TypeUtils.getIntTypeName(), true));
+
+        var elements = new ArrayList<OllirExprResult>();
+        StringBuilder computation = new StringBuilder();
+
+        for (var value : values) {
+            var element = visit(value);
+            elements.add(element);
+            computation.append(element.getComputation());
+        }
+
+        String array = OptUtils.getTemp();
+        String code = array + arrayType;
+
+        computation.append(code).append(SPACE).append(ASSIGN).append(arrayType).append(SPACE)
+                .append("new(array, ").append(elements.size()).append(elementType).append(")")
+                .append(arrayType).append(END_STMT);
+
+        for (int i = 0; i < elements.size(); i++) {
+            computation.append(array).append("[").append(i).append(elementType).append("]").append(elementType)
+                    .append(SPACE).append(ASSIGN).append(elementType).append(SPACE)
+                    .append(elements.get(i).getCode()).append(END_STMT);
+        }
+
+        return new OllirExprResult(code, computation.toString());
+    }
+
+    /**
+     * Code that jumps to the label when the condition has the given value, and falls through otherwise.
+     * &amp;&amp; tests its operands one at a time, so the right one is only evaluated when the left one is true,
+     * and comparisons become the condition of the jump itself.
+     */
+    public String generateJump(JmmNode condition, boolean when, String label) {
+        if (PARENTHESIS.check(condition)) {
+            return generateJump(condition.getJmmChild(0), when, label);
+        }
+
+        if (NOT.check(condition)) {
+            return generateJump(condition.getJmmChild(0), !when, label);
+        }
+
+        if (BINARY_OP.check(condition) && condition.get("name").equals("&&")) {
+            var lhs = condition.getJmmChild(0);
+            var rhs = condition.getJmmChild(1);
+
+            if (!when) {
+                return generateJump(lhs, false, label) + generateJump(rhs, false, label);
+            }
+
+            // when the left operand is false, the jump is not taken and the right one is skipped
+            String skipLabel = OptUtils.getLabel("and_skip");
+            return generateJump(lhs, false, skipLabel) + generateJump(rhs, true, label) + skipLabel + ":\n";
+        }
+
+        StringBuilder code = new StringBuilder();
+
+        if (BINARY_OP.check(condition) && INVERSE_COMPARISONS.containsKey(condition.get("name"))) {
+            var lhs = visit(condition.getJmmChild(0));
+            var rhs = visit(condition.getJmmChild(1));
+            var op = when ? condition.get("name") : INVERSE_COMPARISONS.get(condition.get("name"));
+
+            code.append(lhs.getComputation()).append(rhs.getComputation());
+            code.append("if (").append(lhs.getCode()).append(SPACE).append(op).append(BOOL_TYPE).append(SPACE)
+                    .append(rhs.getCode()).append(") goto ").append(label).append(END_STMT);
+
+            return code.toString();
+        }
+
+        var value = visit(condition);
+        code.append(value.getComputation());
+        code.append("if (").append(when ? "" : "!" + BOOL_TYPE + SPACE).append(value.getCode()).append(") goto ")
+                .append(label).append(END_STMT);
+
+        return code.toString();
+    }
+
     private OllirExprResult visitVarRef(JmmNode node, Void unused) {
         
         var id = node.get("name");
-        Type tipo = TypeUtils.getExprType(node, table);
-        String a = tipo.getName();
-
 
-        String typeCode = OptUtils.toOllirType2(a);
+        // boolean literals
+        if (id.equals("true") || id.equals("false")) {
+            return new OllirExprResult((id.equals("true") ? "1" : "0") + BOOL_TYPE);
+        }
 
-        String code = id + typeCode;
+        // fields read in main have no type
+        Type tipo = TypeUtils.getExprType(node, table);
+        String code = id + OptUtils.toOllirType(tipo);
         return new OllirExprResult(code);
     }
 
@@ -114,13 +289,24 @@ public class OllirExprGeneratorVisitor extends PreorderJmmVisitor<Void, OllirExp
             returnType = OptUtils.toOllirType(table.getReturnType(functionCall.get("name")));
         }
 
+        var arguments = functionCall.getChildren().subList(1, functionCall.getNumChildren());
+        int varargsIndex = getImports.contains(callerName) ? -1 : getVarargsIndex(functionCall.get("name"), arguments);
+        var plainArguments = varargsIndex < 0 ? arguments : arguments.subList(0, varargsIndex);
+
         List<OllirExprResult> parameters = new ArrayList<>();
-        for (int i = 1; i < functionCall.getNumChildren(); i++) {
-            OllirExprResult parameter = visit(functionCall.getJmmChild(i));
+        for (var argument : plainArguments) {
+            OllirExprResult parameter = visit(argument);
             parameters.add(parameter);
             computation.append(parameter.getComputation());
         }
 
+        // the arguments of int... are passed in a single array
+        if (varargsIndex >= 0) {
+            OllirExprResult varargs = packArray(arguments.subList(varargsIndex, arguments.size()));
+            parameters.add(varargs);
+            computation.append(varargs.getComputation());
+        }
+
         if(!returnType.equals(".V")){
             String tempVar = OptUtils.getTemp();
             code.append(tempVar).append(returnType);
@@ -162,6 +348,28 @@ public class OllirExprGeneratorVisitor extends PreorderJmmVisitor<Void, OllirExp
         return new OllirExprResult(code.toString(), computation.toString());
     }
 
+    /**
+     * Index of the first argument that goes in the int... parameter of the method, or -1 if every argument is passed as
+     * it is: the method has no such parameter, or an int[] is given in its place.
+     */
+    private int getVarargsIndex(String methodName, List<JmmNode> arguments) {
+        if (!table.getMethods().contains(methodName)) {
+            return -1;
+        }
+
+        var params = table.getParameters(methodName);
+        if (params.isEmpty() || !params.get(params.size() - 1).getType().getName().equals(TypeUtils.getVarargTypeName())) {
+            return -1;
+        }
+
+        int index = params.size() - 1;
+        if (arguments.size() == params.size() && TypeUtils.getExprType(arguments.get(index), table).isArray()) {
+            return -1;
+        }
+
+        return index;
+    }
+
     /**
      * Default visitor. Visits every child node and return an empty result.
      *
@@ -52,6 +52,9 @@ public class OllirGeneratorVisitor extends AJmmVisitor<Void, String> {
         addVisit(VAR_DECL, this::visitVar);
         addVisit(IMPORT_DECLARATION, this::visitImport);
         addVisit(EXPR_STMT, this::visitExprStmt);
+        addVisit(IF, this::visitIf);
+        addVisit(WHILE, this::visitWhile);
+        addVisit(BRACKETS, this::visitBrackets);
 
         setDefaultVisit(this::defaultVisit);
     }
@@ -91,6 +94,10 @@ public class OllirGeneratorVisitor extends AJmmVisitor<Void, String> {
         }
 
 
+        if (ACCESS_ARRAY.check(node.getJmmChild(0))) {
+            return visitArrayStore(node);
+        }
+
         var lhs = exprVisitor.visit(node.getChild(0));
         var rhs = exprVisitor.visit(node.getChild(1));
         // code to compute the children
@@ -109,17 +116,6 @@ public class OllirGeneratorVisitor extends AJmmVisitor<Void, String> {
         code.append(typeString);
         code.append(SPACE);
 
-        if(node.getChild(1).getKind().equals("Not")){
-            code.append("!");
-            code.append(typeString);
-            code.append(SPACE);
-            code.append(node.getChild(1).getChild(0).get("name"));
-            code.append(typeString);
-            code.append(SPACE);
-            //code.append("t2");
-            //code.append(typeString);
-        }
-
         if(node.getChild(1).getKind().equals("ArrayDecl")){
             code.append("new(array");
             code.append(", ");
@@ -154,6 +150,25 @@ public class OllirGeneratorVisitor extends AJmmVisitor<Void, String> {
     }
 
 
+    /**
+     * a[i] = v stores in the element of the array variable, after computing the index and the value.
+     */
+    private String visitArrayStore(JmmNode node) {
+        var access = node.getJmmChild(0);
+        var array = exprVisitor.visit(access.getJmmChild(0));
+        var index = exprVisitor.visit(access.getJmmChild(1));
+        var value = exprVisitor.visit(node.getJmmChild(1));
+
+        String elementType = OptUtils.toOllirType(new Type(TypeUtils.getIntTypeName(), false));
+
+        StringBuilder code = new StringBuilder();
+        code.append(array.getComputation()).append(index.getComputation()).append(value.getComputation());
+        code.append(OptUtils.getName(array.getCode())).append("[").append(index.getCode()).append("]").append(elementType)
+                .append(SPACE).append(ASSIGN).append(elementType).append(SPACE).append(value.getCode()).append(END_STMT);
+
+        return code.toString();
+    }
+
     private String visitReturn(JmmNode node, Void unused) {
 
         String methodName = node.getAncestor(METHOD_DECL).map(method -> method.get("name")).orElseThrow();
@@ -200,10 +215,14 @@ public class OllirGeneratorVisitor extends AJmmVisitor<Void, String> {
 
     private String visitParam(JmmNode node, Void unused) {
 
-        var tipo = node.getJmmChild(0).get("name");
+        var typeNode = node.getJmmChild(0);
         var id = node.get("name");
 
-        return id + OptUtils.toOllirType2(tipo);
+        // int... is received as an int[]
+        boolean isArray = NodeUtils.getBooleanAttribute(typeNode, "isArray", "false")
+                || NodeUtils.getBooleanAttribute(typeNode, "isVarargs", "false");
+
+        return id + OptUtils.toOllirType(new Type(typeNode.get("name"), isArray));
     }
 
 
@@ -270,20 +289,10 @@ public class OllirGeneratorVisitor extends AJmmVisitor<Void, String> {
             code.append(visit(node.getChild(0), unused));
         }
 
-        List<JmmNode> assigns = node.getChildren("AssignStmt");
-
-        List<String> assignvars = new ArrayList<>();
-
-        for(var i : assigns){
-            assignvars.add(i.getChild(0).get("name"));
-        }
-
-
-        String a = node.getChild(0).get("name");
-
         for(int i=1;i<node.getChildren().size();i++) {
 
-            if (node.getChild(i).getKind().equals("VarDecl") && ((assignvars != null) && assignvars.contains(node.getChild(i).get("name")))) {
+            // locals need no declaration, they get their type where they are used
+            if (node.getChild(i).getKind().equals("VarDecl")) {
                 continue;
             }
 
@@ -400,6 +409,48 @@ public class OllirGeneratorVisitor extends AJmmVisitor<Void, String> {
         return computation.toString();
     }
 
+    private String visitIf(JmmNode node, Void unused) {
+        StringBuilder code = new StringBuilder();
+
+        String elseLabel = OptUtils.getLabel("if_else");
+        String endLabel = OptUtils.getLabel("if_end");
+
+        code.append(exprVisitor.generateJump(node.getJmmChild(0), false, elseLabel));
+        code.append(visit(node.getJmmChild(1)));
+        code.append("goto ").append(endLabel).append(END_STMT);
+
+        code.append(elseLabel).append(":").append(NL);
+        code.append(visit(node.getJmmChild(2)));
+        code.append(endLabel).append(":").append(NL);
+
+        return code.toString();
+    }
+
+    private String visitWhile(JmmNode node, Void unused) {
+        StringBuilder code = new StringBuilder();
+
+        String condLabel = OptUtils.getLabel("while_cond");
+        String endLabel = OptUtils.getLabel("while_end");
+
+        code.append(condLabel).append(":").append(NL);
+        code.append(exprVisitor.generateJump(node.getJmmChild(0), false, endLabel));
+        code.append(visit(node.getJmmChild(1)));
+        code.append("goto ").append(condLabel).append(END_STMT);
+        code.append(endLabel).append(":").append(NL);
+
+        return code.toString();
+    }
+
+    private String visitBrackets(JmmNode node, Void unused) {
+        StringBuilder code = new StringBuilder();
+
+        for (var stmt : node.getChildren()) {
+            code.append(visit(stmt));
+        }
+
+        return code.toString();
+    }
+
     private String buildConstructor() {
 
         return ".construct " + table.getClassName() + "().V {\n" +
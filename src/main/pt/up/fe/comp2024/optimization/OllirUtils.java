@@ -0,0 +1,493 @@
+package pt.up.fe.comp2024.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Helpers to inspect and rewrite the OLLIR model of a method in place.
+ */
+public class OllirUtils {
+
+    /**
+     * Returns true if the instruction ends a basic block (branch, goto or return).
+     */
+    public static boolean isTerminator(Instruction inst) {
+        return switch (inst.getInstType()) {
+            case BRANCH, GOTO, RETURN -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Returns true if the element is a plain variable (not a literal nor an array access).
+     */
+    public static boolean isVariable(Element element) {
+        return element instanceof Operand && !(element instanceof ArrayOperand);
+    }
+
+    /**
+     * Name of the variable written by the instruction, or null if it does not write a plain variable.
+     */
+    public static String getDefinedVariable(Instruction inst) {
+        if (inst instanceof AssignInstruction assign && isVariable(assign.getDest())) {
+            return ((Operand) assign.getDest()).getName();
+        }
+
+        return null;
+    }
+
+    /**
+     * Names of the variables read by the instruction, including arrays and indexes of array accesses.
+     */
+    public static List<String> getUsedVariables(Instruction inst) {
+        var uses = new ArrayList<String>();
+        addUses(inst, uses);
+        return uses;
+    }
+
+    private static void addUses(Instruction inst, List<String> uses) {
+        if (inst instanceof AssignInstruction assign) {
+            // a store to an array reads the array reference and the index
+            if (assign.getDest() instanceof ArrayOperand) {
+                addUses(assign.getDest(), uses);
+            }
+            addUses(assign.getRhs(), uses);
+        } else if (inst instanceof SingleOpInstruction singleOp) {
+            addUses(singleOp.getSingleOperand(), uses);
+        } else if (inst instanceof OpInstruction opInst) {
+            opInst.getOperands().forEach(operand -> addUses(operand, uses));
+        } else if (inst instanceof CallInstruction call) {
+            call.getOperands().forEach(operand -> addUses(operand, uses));
+        } else if (inst instanceof GetFieldInstruction getField) {
+            addUses(getField.getOperands().get(0), uses);
+        } else if (inst instanceof PutFieldInstruction putField) {
+            addUses(putField.getOperands().get(0), uses);
+            addUses(putField.getOperands().get(2), uses);
+        } else if (inst instanceof ReturnInstruction ret && ret.getOperand() != null) {
+            addUses(ret.getOperand(), uses);
+        } else if (inst instanceof CondBranchInstruction branch) {
+            addUses(branch.getCondition(), uses);
+        }
+    }
+
+    private static void addUses(Element element, List<String> uses) {
+        if (element instanceof ArrayOperand arrayOperand) {
+            uses.add(arrayOperand.getName());
+            arrayOperand.getIndexOperands().forEach(index -> addUses(index, uses));
+        } else if (element instanceof Operand operand) {
+            uses.add(operand.getName());
+        }
+    }
+
+    /**
+     * Returns an instruction equivalent to the given one, where each variable it reads is replaced by the element
+     * returned by the function (or kept, if the function returns null). The written variable is never replaced.
+     * Returns the same instruction if nothing was replaced.
+     * <p>
+     * Array references and indexes are only replaced by other variables, and the class of static calls and
+     * object creations is never replaced.
+     */
+    public static Instruction substituteUses(Instruction inst, Function<Operand, Element> substitution) {
+        var result = new Substitution(substitution);
+        var newInst = result.rebuild(inst);
+        return result.changed ? newInst : inst;
+    }
+
+    /**
+     * Like {@link #substituteUses}, but always returns a new instruction, so that it can be placed in another method.
+     */
+    public static Instruction copy(Instruction inst, Function<Operand, Element> substitution) {
+        var newInst = new Substitution(substitution).rebuild(inst);
+
+        if (newInst == inst) {
+            throw new RuntimeException("Can not copy instruction of type " + inst.getInstType());
+        }
+
+        return newInst;
+    }
+
+    /**
+     * Builds "dest := rhs" with the right hand side of the given assignment.
+     */
+    public static AssignInstruction withDest(AssignInstruction assign, Element dest) {
+        return new AssignInstruction(dest, assign.getTypeOfAssign(), assign.getRhs());
+    }
+
+    private static class Substitution {
+
+        private final Function<Operand, Element> substitution;
+        private boolean changed;
+
+        private Substitution(Function<Operand, Element> substitution) {
+            this.substitution = substitution;
+            this.changed = false;
+        }
+
+        private Instruction rebuild(Instruction inst) {
+            if (inst instanceof AssignInstruction assign) {
+                var dest = assign.getDest() instanceof ArrayOperand ? element(assign.getDest()) : assign.getDest();
+                return new AssignInstruction(dest, assign.getTypeOfAssign(), rebuild(assign.getRhs()));
+            }
+
+            if (inst instanceof SingleOpInstruction singleOp) {
+                return new SingleOpInstruction(element(singleOp.getSingleOperand()));
+            }
+
+            if (inst instanceof BinaryOpInstruction binaryOp) {
+                return new BinaryOpInstruction(element(binaryOp.getLeftOperand()), binaryOp.getOperation(),
+                        element(binaryOp.getRightOperand()));
+            }
+
+            if (inst instanceof UnaryOpInstruction unaryOp) {
+                return new UnaryOpInstruction(unaryOp.getOperation(), element(unaryOp.getOperand()));
+            }
+
+            if (inst instanceof CallInstruction call) {
+                var keepsCaller = call.getInvocationType() == CallType.invokestatic
+                        || call.getInvocationType() == CallType.NEW;
+                var caller = keepsCaller ? call.getCaller() : variable(call.getCaller());
+
+                var arguments = new ArrayList<Element>();
+                if (call.getArguments() != null) {
+                    call.getArguments().forEach(argument -> arguments.add(element(argument)));
+                }
+
+                return new CallInstruction(call.getInvocationType(), caller, call.getMethodName(), arguments,
+                        call.getReturnType());
+            }
+
+            if (inst instanceof GetFieldInstruction getField) {
+                return new GetFieldInstruction(variable(getField.getObject()), getField.getField(),
+                        getField.getFieldType());
+            }
+
+            if (inst instanceof PutFieldInstruction putField) {
+                return new PutFieldInstruction(variable(putField.getObject()), putField.getField(),
+                        element(putField.getValue()));
+            }
+
+            if (inst instanceof ReturnInstruction ret) {
+                return ret.getOperand() == null ? new ReturnInstruction() : new ReturnInstruction(element(ret.getOperand()));
+            }
+
+            if (inst instanceof CondBranchInstruction branch) {
+                return newBranch(rebuild(branch.getCondition()), branch.getLabel());
+            }
+
+            if (inst instanceof GotoInstruction gotoInst) {
+                return new GotoInstruction(gotoInst.getLabel());
+            }
+
+            return inst;
+        }
+
+        private Element element(Element element) {
+            if (element instanceof ArrayOperand arrayOperand) {
+                var indexes = new ArrayList<Element>();
+                arrayOperand.getIndexOperands().forEach(index -> indexes.add(variable(index)));
+
+                var array = variable(arrayOperand);
+                return new ArrayOperand(((Operand) array).getName(), indexes, arrayOperand.getType());
+            }
+
+            if (element instanceof Operand operand) {
+                var replacement = substitution.apply(operand);
+                if (replacement != null) {
+                    changed = true;
+                    return replacement;
+                }
+            }
+
+            return element;
+        }
+
+        /**
+         * Like {@link #element}, but only accepts a variable as the replacement.
+         */
+        private Element variable(Element element) {
+            if (!(element instanceof Operand operand)) {
+                return element;
+            }
+
+            var plain = element instanceof ArrayOperand ? new Operand(operand.getName(), operand.getType()) : operand;
+            var replacement = substitution.apply(plain);
+            if (replacement == null || !isVariable(replacement)) {
+                return element;
+            }
+
+            changed = true;
+            return replacement;
+        }
+    }
+
+    /**
+     * Label the instruction jumps to, or null if it is not a goto or a branch.
+     */
+    public static String getJumpLabel(Instruction inst) {
+        if (inst instanceof GotoInstruction gotoInst) {
+            return gotoInst.getLabel();
+        }
+
+        if (inst instanceof CondBranchInstruction branch) {
+            return branch.getLabel();
+        }
+
+        return null;
+    }
+
+    /**
+     * Labels that point to the instruction.
+     */
+    public static List<String> getLabels(Method method, Instruction inst) {
+        return method.getLabels().entrySet().stream()
+                .filter(label -> label.getValue() == inst)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    /**
+     * True if a subclass may override the method, so a call to it on this or on an object of the class must keep its
+     * virtual dispatch. Private and final methods, and methods of a final class, can not be overridden. In a closed
+     * world (see {@link pt.up.fe.comp2024.CompilerConfig#isClosedWorld}) no class extends the class being compiled.
+     */
+    public static boolean isOverridable(Method method, boolean closedWorld) {
+        return !closedWorld && !method.getOllirClass().isFinalClass() && !method.isFinalMethod()
+                && method.getMethodAccessModifier() != AccessModifier.PRIVATE;
+    }
+
+    public static Operand newOperand(String name, Type type) {
+        return new Operand(name, type);
+    }
+
+    public static LiteralElement newIntLiteral(int value) {
+        return new LiteralElement(String.valueOf(value), new Type(ElementType.INT32));
+    }
+
+    public static LiteralElement newBoolLiteral(boolean value) {
+        return new LiteralElement(value ? "1" : "0", new Type(ElementType.BOOLEAN));
+    }
+
+    /**
+     * Returns the value of an integer or boolean literal, or null if the element is not a literal.
+     */
+    public static Integer getLiteralValue(Element element) {
+        if (!(element instanceof LiteralElement literal)) {
+            return null;
+        }
+
+        try {
+            return Integer.parseInt(literal.getLiteral());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new local variable in the method, with a register that is not used yet.
+     */
+    public static Operand newTemp(Method method, String prefix, Type type) {
+        var varTable = method.getVarTable();
+
+        int number = 0;
+        while (varTable.containsKey(prefix + number)) {
+            number++;
+        }
+
+        int reg = varTable.values().stream().mapToInt(Descriptor::getVirtualReg).max().orElse(-1) + 1;
+        varTable.put(prefix + number, new Descriptor(VarScope.LOCAL, reg, type));
+
+        return newOperand(prefix + number, type);
+    }
+
+    /**
+     * Builds "dest := source", a copy of a single element into a variable.
+     */
+    public static AssignInstruction newCopy(Element dest, Element source) {
+        return new AssignInstruction(dest, dest.getType(), new SingleOpInstruction(source));
+    }
+
+    /**
+     * Builds "if (condition) goto label", the condition being an operation or a single operand.
+     */
+    public static CondBranchInstruction newBranch(Instruction condition, String label) {
+        if (condition instanceof OpInstruction opInst) {
+            return new OpCondInstruction(opInst, label);
+        }
+
+        return new SingleOpCondInstruction((SingleOpInstruction) condition, label);
+    }
+
+    /**
+     * Condition that is true when the given one is false: comparisons are inverted, and a NOTB is added or removed.
+     * Returns null for operations that have no inverse, such as &amp;&amp;.
+     */
+    public static Instruction negate(Instruction condition) {
+        if (condition instanceof BinaryOpInstruction binaryOp) {
+            var operation = binaryOp.getOperation();
+            var inverse = switch (operation.getOpType()) {
+                case LTH -> OperationType.GTE;
+                case GTE -> OperationType.LTH;
+                case GTH -> OperationType.LTE;
+                case LTE -> OperationType.GTH;
+                case EQ -> OperationType.NEQ;
+                case NEQ -> OperationType.EQ;
+                default -> null;
+            };
+
+            if (inverse == null) {
+                return null;
+            }
+
+            return new BinaryOpInstruction(binaryOp.getLeftOperand(), new Operation(inverse, operation.getTypeInfo()),
+                    binaryOp.getRightOperand());
+        }
+
+        if (condition instanceof UnaryOpInstruction unaryOp && unaryOp.getOperation().getOpType() == OperationType.NOTB) {
+            return new SingleOpInstruction(unaryOp.getOperand());
+        }
+
+        if (!(condition instanceof SingleOpInstruction singleOp)) {
+            return null;
+        }
+
+        var operand = singleOp.getSingleOperand();
+        return new UnaryOpInstruction(new Operation(OperationType.NOTB, new Type(ElementType.BOOLEAN)), operand);
+    }
+
+    /**
+     * Creates a label that is not used by the method yet.
+     */
+    public static String newLabel(Method method, String prefix) {
+        int number = 0;
+        while (method.getLabels().containsKey(prefix + "_" + number)) {
+            number++;
+        }
+
+        return prefix + "_" + number;
+    }
+
+    /**
+     * Replaces an instruction of the method by another, moving the labels that pointed to it.
+     */
+    public static void replace(Method method, Instruction oldInst, Instruction newInst) {
+        var instructions = method.getInstructions();
+
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i) == oldInst) {
+                instructions.set(i, newInst);
+                break;
+            }
+        }
+
+        moveLabels(method, oldInst, newInst);
+    }
+
+    /**
+     * Replaces many instructions at once, in a single pass over the method. The map must compare instructions
+     * by identity.
+     */
+    public static void replaceAll(Method method, Map<Instruction, Instruction> replacements) {
+        if (replacements.isEmpty()) {
+            return;
+        }
+
+        var instructions = method.getInstructions();
+        instructions.replaceAll(inst -> replacements.getOrDefault(inst, inst));
+
+        for (var label : method.getLabels().entrySet()) {
+            var newInst = replacements.get(label.getValue());
+            if (newInst != null) {
+                label.setValue(newInst);
+            }
+        }
+    }
+
+    /**
+     * Removes an instruction from the method. Its labels move to the instruction that followed it.
+     */
+    public static void remove(Method method, Instruction inst) {
+        var instructions = method.getInstructions();
+
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i) == inst) {
+                instructions.remove(i);
+
+                if (i < instructions.size()) {
+                    moveLabels(method, inst, instructions.get(i));
+                } else {
+                    method.getLabels().values().removeIf(target -> target == inst);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes many instructions at once, in a single pass over the method. Labels move to the first instruction
+     * that follows them and is kept. The set must compare instructions by identity.
+     */
+    public static void removeAll(Method method, Set<Instruction> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+
+        var instructions = method.getInstructions();
+        var nextKept = new IdentityHashMap<Instruction, Instruction>();
+        var kept = new ArrayList<Instruction>();
+        var pending = new ArrayList<Instruction>();
+
+        for (var inst : instructions) {
+            if (removed.contains(inst)) {
+                pending.add(inst);
+                continue;
+            }
+
+            pending.forEach(removedInst -> nextKept.put(removedInst, inst));
+            pending.clear();
+            kept.add(inst);
+        }
+
+        instructions.clear();
+        instructions.addAll(kept);
+
+        method.getLabels().values().removeIf(target -> removed.contains(target) && !nextKept.containsKey(target));
+        for (var label : method.getLabels().entrySet()) {
+            var target = nextKept.get(label.getValue());
+            if (target != null) {
+                label.setValue(target);
+            }
+        }
+    }
+
+    /**
+     * Replaces a goto or a branch by an equivalent one that jumps to another label.
+     */
+    public static Instruction retarget(Method method, Instruction jump, String label) {
+        Instruction newJump;
+
+        if (jump instanceof GotoInstruction) {
+            newJump = new GotoInstruction(label);
+        } else {
+            newJump = newBranch(((CondBranchInstruction) jump).getCondition(), label);
+        }
+
+        replace(method, jump, newJump);
+
+        return newJump;
+    }
+
+    private static void moveLabels(Method method, Instruction from, Instruction to) {
+        for (var label : method.getLabels().entrySet()) {
+            if (label.getValue() == from) {
+                label.setValue(to);
+            }
+        }
+    }
+
+}
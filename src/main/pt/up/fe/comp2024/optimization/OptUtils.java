@@ -19,6 +19,13 @@ public class OptUtils {
         return symbol.getName() + toOllirType(symbol.getType());
     }
 
+    /**
+     * Name of the variable in OLLIR code such as "a.array.i32", without its type.
+     */
+    public static String getName(String code) {
+        return code.substring(0, code.indexOf('.'));
+    }
+
 
     private static int tempNumber = -1;
 
@@ -39,6 +46,14 @@ public class OptUtils {
         return prefix + getNextTempNum();
     }
 
+    /**
+     * A label that is not used yet, such as "while_end_3".
+     */
+    public static String getLabel(String prefix) {
+
+        return prefix + "_" + getNextTempNum();
+    }
+
     public static String getCurrentTemp(String prefix) {
 
         return prefix + getCurrentTempNum();
@@ -77,7 +92,7 @@ public class OptUtils {
             code.append("array.");
         String tipo = type.getName();
         switch (tipo) {
-            case "int":
+            case "int", "int...":
                 code.append("i32");
                 break;
             case "boolean":
@@ -0,0 +1,414 @@
+package pt.up.fe.comp2024.optimization.cfg;
+
+import org.specs.comp.ollir.CondBranchInstruction;
+import org.specs.comp.ollir.GotoInstruction;
+import org.specs.comp.ollir.Instruction;
+import org.specs.comp.ollir.InstructionType;
+import org.specs.comp.ollir.Method;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+
+import java.util.*;
+
+/**
+ * Control-flow graph of an OLLIR method, with its basic blocks, dominators and natural loops.
+ * Dataflow analyses over the graph extend {@link DataflowAnalysis}.
+ * <p>
+ * A new block starts at the first instruction, at every instruction that has a label and after every
+ * branch, goto or return. The graph is a snapshot: it must be built again after the method changes.
+ */
+public class ControlFlowGraph {
+
+    private final Method method;
+    private final List<BasicBlock> blocks;
+    private final Map<Instruction, BasicBlock> blockOf;
+
+    // blocks reachable from the entry, in reverse postorder
+    private List<BasicBlock> reversePostorder;
+    private BasicBlock[] idom;
+    private List<List<BasicBlock>> dominatorTreeChildren;
+    private List<Set<BasicBlock>> dominanceFrontiers;
+
+    private List<Loop> loops;
+    private Map<BasicBlock, Loop> innermostLoop;
+
+    private ControlFlowGraph(Method method) {
+        this.method = method;
+        this.blocks = new ArrayList<>();
+        this.blockOf = new IdentityHashMap<>();
+        this.loops = null;
+        this.innermostLoop = null;
+        this.dominanceFrontiers = null;
+    }
+
+    public static ControlFlowGraph build(Method method) {
+        var cfg = new ControlFlowGraph(method);
+        cfg.buildBlocks();
+        cfg.buildEdges();
+        cfg.buildDominators();
+        return cfg;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.isEmpty() ? null : blocks.get(0);
+    }
+
+    public BasicBlock getBlock(Instruction inst) {
+        return blockOf.get(inst);
+    }
+
+    public BasicBlock getBlock(String label) {
+        return blockOf.get(method.getLabels().get(label));
+    }
+
+    /**
+     * The block placed right after the given one in the instruction list, or null if it is the last.
+     */
+    public BasicBlock getNextInLayout(BasicBlock block) {
+        // block ids follow the layout order
+        int next = block.getId() + 1;
+        return next < blocks.size() ? blocks.get(next) : null;
+    }
+
+    /**
+     * Returns true if control can flow from the end of the block into the block placed after it.
+     */
+    public boolean fallsThrough(BasicBlock block) {
+        var type = block.getLast().getInstType();
+        return type != InstructionType.GOTO && type != InstructionType.RETURN && getNextInLayout(block) != null;
+    }
+
+    public List<BasicBlock> getReversePostorder() {
+        return reversePostorder;
+    }
+
+    public boolean isReachable(BasicBlock block) {
+        return idom[block.getId()] != null;
+    }
+
+    public BasicBlock getImmediateDominator(BasicBlock block) {
+        var dominator = idom[block.getId()];
+        return dominator == block ? null : dominator;
+    }
+
+    /**
+     * Blocks immediately dominated by the given block, in layout order.
+     */
+    public List<BasicBlock> getDominatorTreeChildren(BasicBlock block) {
+        return dominatorTreeChildren.get(block.getId());
+    }
+
+    /**
+     * Returns true if every path from the entry to b goes through a.
+     */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        if (!isReachable(b)) {
+            return false;
+        }
+
+        var current = b;
+        while (current != a) {
+            var next = idom[current.getId()];
+            if (next == current) {
+                return false;
+            }
+            current = next;
+        }
+
+        return true;
+    }
+
+    /**
+     * Blocks where the dominance of the given block ends: those that have a predecessor dominated by it, but are
+     * not strictly dominated by it.
+     */
+    public Set<BasicBlock> getDominanceFrontier(BasicBlock block) {
+        if (dominanceFrontiers == null) {
+            computeDominanceFrontiers();
+        }
+
+        return dominanceFrontiers.get(block.getId());
+    }
+
+    /**
+     * Replaces an instruction both in the method and in its block. Only instructions that do not change the
+     * edges of the graph can be replaced this way.
+     */
+    public void replace(Instruction oldInst, Instruction newInst) {
+        replaceAll(Map.of(oldInst, newInst));
+    }
+
+    /**
+     * Replaces many instructions at once, see {@link #replace}. The map must compare instructions by identity.
+     */
+    public void replaceAll(Map<Instruction, Instruction> replacements) {
+        for (var replacement : replacements.entrySet()) {
+            var block = blockOf.remove(replacement.getKey());
+            var instructions = block.getInstructions();
+            instructions.set(instructions.indexOf(replacement.getKey()), replacement.getValue());
+            blockOf.put(replacement.getValue(), block);
+        }
+
+        OllirUtils.replaceAll(method, replacements);
+    }
+
+    /**
+     * Natural loops of the method, innermost loops first. Back edges that share a header form a single loop.
+     */
+    public List<Loop> getLoops() {
+        if (loops == null) {
+            loops = findLoops();
+        }
+
+        return loops;
+    }
+
+    /**
+     * The innermost loop that contains the block, or null if the block is not inside a loop.
+     */
+    public Loop getLoop(BasicBlock block) {
+        getLoops();
+        return innermostLoop.get(block);
+    }
+
+    /**
+     * Number of loops that contain the block.
+     */
+    public int getLoopDepth(BasicBlock block) {
+        var loop = getLoop(block);
+        return loop == null ? 0 : loop.getDepth();
+    }
+
+    private void buildBlocks() {
+        Set<Instruction> labeled = Collections.newSetFromMap(new IdentityHashMap<>());
+        labeled.addAll(method.getLabels().values());
+
+        BasicBlock current = null;
+
+        for (var inst : method.getInstructions()) {
+            if (current == null || labeled.contains(inst)) {
+                current = new BasicBlock(blocks.size());
+                blocks.add(current);
+            }
+
+            current.getInstructions().add(inst);
+            blockOf.put(inst, current);
+
+            if (OllirUtils.isTerminator(inst)) {
+                current = null;
+            }
+        }
+    }
+
+    private void buildEdges() {
+        for (var block : blocks) {
+            var last = block.getLast();
+
+            if (last instanceof GotoInstruction gotoInst) {
+                addJump(block, gotoInst.getLabel());
+                continue;
+            }
+
+            if (last instanceof CondBranchInstruction branch) {
+                addJump(block, branch.getLabel());
+            }
+
+            if (fallsThrough(block)) {
+                block.addSuccessor(getNextInLayout(block));
+            }
+        }
+    }
+
+    private void addJump(BasicBlock block, String label) {
+        var target = getBlock(label);
+
+        if (target == null) {
+            throw new RuntimeException("Label '" + label + "' of method '" + method.getMethodName() + "' does not point to an instruction");
+        }
+
+        block.addSuccessor(target);
+    }
+
+    private void buildDominators() {
+        idom = new BasicBlock[blocks.size()];
+        reversePostorder = new ArrayList<>();
+        dominatorTreeChildren = new ArrayList<>();
+        blocks.forEach(block -> dominatorTreeChildren.add(new ArrayList<>()));
+
+        if (blocks.isEmpty()) {
+            return;
+        }
+
+        computeReversePostorder();
+
+        var order = new int[blocks.size()];
+        for (int i = 0; i < reversePostorder.size(); i++) {
+            order[reversePostorder.get(i).getId()] = i;
+        }
+
+        // Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm"
+        var entry = getEntry();
+        idom[entry.getId()] = entry;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            for (var block : reversePostorder) {
+                if (block == entry) {
+                    continue;
+                }
+
+                BasicBlock newIdom = null;
+                for (var pred : block.getPredecessors()) {
+                    if (idom[pred.getId()] == null) {
+                        continue;
+                    }
+                    newIdom = newIdom == null ? pred : intersect(pred, newIdom, order);
+                }
+
+                if (idom[block.getId()] != newIdom) {
+                    idom[block.getId()] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        for (var block : blocks) {
+            var dominator = getImmediateDominator(block);
+            if (dominator != null) {
+                dominatorTreeChildren.get(dominator.getId()).add(block);
+            }
+        }
+    }
+
+    private BasicBlock intersect(BasicBlock a, BasicBlock b, int[] order) {
+        while (a != b) {
+            while (order[a.getId()] > order[b.getId()]) {
+                a = idom[a.getId()];
+            }
+            while (order[b.getId()] > order[a.getId()]) {
+                b = idom[b.getId()];
+            }
+        }
+        return a;
+    }
+
+    private void computeDominanceFrontiers() {
+        dominanceFrontiers = new ArrayList<>();
+        blocks.forEach(block -> dominanceFrontiers.add(new LinkedHashSet<>()));
+
+        // Cooper, Harvey and Kennedy: walk up from each predecessor of a join point until its dominator
+        for (var block : reversePostorder) {
+            if (block.getPredecessors().size() < 2) {
+                continue;
+            }
+
+            // the entry has no dominator, so the walk also adds it to the frontiers when it is a loop header
+            var dominator = getImmediateDominator(block);
+            for (var pred : block.getPredecessors()) {
+                var runner = pred;
+                while (isReachable(runner) && runner != dominator) {
+                    dominanceFrontiers.get(runner.getId()).add(block);
+                    var next = idom[runner.getId()];
+                    if (next == runner) {
+                        break;
+                    }
+                    runner = next;
+                }
+            }
+        }
+    }
+
+    private void computeReversePostorder() {
+        var visited = new boolean[blocks.size()];
+        var postorder = new ArrayList<BasicBlock>();
+
+        // iterative depth-first search, each stack entry keeps the index of the next successor to visit
+        var stack = new ArrayDeque<Map.Entry<BasicBlock, Integer>>();
+        stack.push(new AbstractMap.SimpleEntry<>(getEntry(), 0));
+        visited[getEntry().getId()] = true;
+
+        while (!stack.isEmpty()) {
+            var top = stack.peek();
+            var block = top.getKey();
+            int next = top.getValue();
+
+            if (next < block.getSuccessors().size()) {
+                top.setValue(next + 1);
+                var succ = block.getSuccessors().get(next);
+                if (!visited[succ.getId()]) {
+                    visited[succ.getId()] = true;
+                    stack.push(new AbstractMap.SimpleEntry<>(succ, 0));
+                }
+            } else {
+                stack.pop();
+                postorder.add(block);
+            }
+        }
+
+        Collections.reverse(postorder);
+        reversePostorder.addAll(postorder);
+    }
+
+    private List<Loop> findLoops() {
+        var loopOfHeader = new LinkedHashMap<BasicBlock, Loop>();
+
+        for (var block : reversePostorder) {
+            for (var succ : block.getSuccessors()) {
+                if (!dominates(succ, block)) {
+                    continue;
+                }
+
+                var loop = loopOfHeader.computeIfAbsent(succ, Loop::new);
+                loop.getLatches().add(block);
+
+                // walk backwards from the latch until the header
+                var worklist = new ArrayDeque<BasicBlock>();
+                if (loop.getBlocks().add(block)) {
+                    worklist.push(block);
+                }
+
+                while (!worklist.isEmpty()) {
+                    for (var pred : worklist.pop().getPredecessors()) {
+                        if (isReachable(pred) && loop.getBlocks().add(pred)) {
+                            worklist.push(pred);
+                        }
+                    }
+                }
+            }
+        }
+
+        var result = new ArrayList<>(loopOfHeader.values());
+        result.sort(Comparator.comparingInt(loop -> loop.getBlocks().size()));
+
+        // natural loops with different headers are either disjoint or nested, so the parent of a loop is the
+        // smallest larger loop that contains its header
+        innermostLoop = new HashMap<>();
+
+        for (int i = 0; i < result.size(); i++) {
+            var loop = result.get(i);
+
+            for (var block : loop.getBlocks()) {
+                innermostLoop.putIfAbsent(block, loop);
+            }
+
+            for (int j = i + 1; j < result.size(); j++) {
+                if (result.get(j).contains(loop.getHeader())) {
+                    loop.setParent(result.get(j));
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+}
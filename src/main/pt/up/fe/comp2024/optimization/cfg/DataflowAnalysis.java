@@ -0,0 +1,141 @@
+package pt.up.fe.comp2024.optimization.cfg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Iterative, worklist-based dataflow analysis over the blocks of a {@link ControlFlowGraph}.
+ * <p>
+ * Subclasses define the lattice (the boundary and initial values, and how values meet) and the transfer
+ * function of a block. Values must implement equals, which is used to detect the fixed point. Blocks that can
+ * not be reached from the entry keep the initial value.
+ *
+ * @param <T> the type of the values computed for each block
+ */
+public abstract class DataflowAnalysis<T> {
+
+    public enum Direction {
+        FORWARD,
+        BACKWARD
+    }
+
+    private final Direction direction;
+
+    private ControlFlowGraph cfg;
+    private List<T> in;
+    private List<T> out;
+
+    protected DataflowAnalysis(Direction direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * Value at the entry of the method (forward) or at the exits of the method (backward).
+     */
+    protected abstract T boundary();
+
+    /**
+     * Value every block starts with, the identity of {@link #meet}.
+     */
+    protected abstract T initial();
+
+    /**
+     * Combines the values that reach a block from its predecessors (forward) or successors (backward).
+     */
+    protected abstract T meet(T a, T b);
+
+    /**
+     * Computes the value after the block (forward) or before the block (backward), from the value on the other
+     * side of the block.
+     */
+    protected abstract T transfer(BasicBlock block, T value);
+
+    public DataflowAnalysis<T> run(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+
+        var blocks = cfg.getBlocks();
+        in = new ArrayList<>(Collections.nCopies(blocks.size(), null));
+        out = new ArrayList<>(Collections.nCopies(blocks.size(), null));
+
+        for (var block : blocks) {
+            in.set(block.getId(), initial());
+            out.set(block.getId(), initial());
+        }
+
+        var order = new ArrayList<>(cfg.getReversePostorder());
+        if (direction == Direction.BACKWARD) {
+            Collections.reverse(order);
+        }
+
+        var worklist = new ArrayDeque<>(order);
+        var queued = new boolean[blocks.size()];
+        order.forEach(block -> queued[block.getId()] = true);
+
+        while (!worklist.isEmpty()) {
+            var block = worklist.poll();
+            queued[block.getId()] = false;
+
+            var forward = direction == Direction.FORWARD;
+            var sources = forward ? block.getPredecessors() : block.getSuccessors();
+            var targets = forward ? block.getSuccessors() : block.getPredecessors();
+
+            var isBoundary = forward ? block == cfg.getEntry() : block.getSuccessors().isEmpty();
+            var value = isBoundary ? boundary() : initial();
+
+            for (var source : sources) {
+                if (cfg.isReachable(source)) {
+                    value = meet(value, forward ? out.get(source.getId()) : in.get(source.getId()));
+                }
+            }
+
+            var result = transfer(block, value);
+
+            if (forward) {
+                in.set(block.getId(), value);
+            } else {
+                out.set(block.getId(), value);
+            }
+
+            var previous = forward ? out.get(block.getId()) : in.get(block.getId());
+            if (result.equals(previous)) {
+                continue;
+            }
+
+            if (forward) {
+                out.set(block.getId(), result);
+            } else {
+                in.set(block.getId(), result);
+            }
+
+            for (var target : targets) {
+                if (cfg.isReachable(target) && !queued[target.getId()]) {
+                    queued[target.getId()] = true;
+                    worklist.add(target);
+                }
+            }
+        }
+
+        return this;
+    }
+
+    public ControlFlowGraph getCfg() {
+        return cfg;
+    }
+
+    /**
+     * Value at the start of the block.
+     */
+    public T getIn(BasicBlock block) {
+        return in.get(block.getId());
+    }
+
+    /**
+     * Value at the end of the block.
+     */
+    public T getOut(BasicBlock block) {
+        return out.get(block.getId());
+    }
+
+}
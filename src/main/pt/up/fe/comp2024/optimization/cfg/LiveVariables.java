@@ -0,0 +1,79 @@
+package pt.up.fe.comp2024.optimization.cfg;
+
+import org.specs.comp.ollir.Instruction;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Backward analysis of the variables whose current value may still be read.
+ */
+public class LiveVariables extends DataflowAnalysis<Set<String>> {
+
+    public LiveVariables() {
+        super(Direction.BACKWARD);
+    }
+
+    public static LiveVariables compute(ControlFlowGraph cfg) {
+        var liveness = new LiveVariables();
+        liveness.run(cfg);
+        return liveness;
+    }
+
+    @Override
+    protected Set<String> boundary() {
+        return Set.of();
+    }
+
+    @Override
+    protected Set<String> initial() {
+        return Set.of();
+    }
+
+    @Override
+    protected Set<String> meet(Set<String> a, Set<String> b) {
+        var union = new HashSet<>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    @Override
+    protected Set<String> transfer(BasicBlock block, Set<String> liveOut) {
+        var live = new HashSet<>(liveOut);
+
+        var instructions = block.getInstructions();
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            stepBackwards(instructions.get(i), live);
+        }
+
+        return live;
+    }
+
+    /**
+     * Variables live right after the given instruction.
+     */
+    public Set<String> getLiveAfter(Instruction inst) {
+        var block = getCfg().getBlock(inst);
+        var live = new HashSet<>(getOut(block));
+
+        var instructions = block.getInstructions();
+        for (int i = instructions.size() - 1; instructions.get(i) != inst; i--) {
+            stepBackwards(instructions.get(i), live);
+        }
+
+        return live;
+    }
+
+    /**
+     * Updates the variables live after the instruction into the variables live before it.
+     */
+    public static void stepBackwards(Instruction inst, Set<String> live) {
+        var def = OllirUtils.getDefinedVariable(inst);
+        if (def != null) {
+            live.remove(def);
+        }
+        live.addAll(OllirUtils.getUsedVariables(inst));
+    }
+
+}
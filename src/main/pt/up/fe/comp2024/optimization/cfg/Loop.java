@@ -0,0 +1,94 @@
+package pt.up.fe.comp2024.optimization.cfg;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A natural loop: a header that dominates every block of the loop, and the blocks that can reach a back
+ * edge to the header without going through it.
+ */
+public class Loop {
+
+    private final BasicBlock header;
+    private final Set<BasicBlock> blocks;
+    private final List<BasicBlock> latches;
+
+    private Loop parent;
+    private final List<Loop> children;
+
+    public Loop(BasicBlock header) {
+        this.header = header;
+        this.blocks = new LinkedHashSet<>();
+        this.latches = new ArrayList<>();
+        this.parent = null;
+        this.children = new ArrayList<>();
+        blocks.add(header);
+    }
+
+    public BasicBlock getHeader() {
+        return header;
+    }
+
+    public Set<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Blocks of the loop with a back edge to the header.
+     */
+    public List<BasicBlock> getLatches() {
+        return latches;
+    }
+
+    /**
+     * The innermost loop that contains this one, or null if this is an outermost loop.
+     */
+    public Loop getParent() {
+        return parent;
+    }
+
+    public List<Loop> getChildren() {
+        return children;
+    }
+
+    void setParent(Loop parent) {
+        this.parent = parent;
+        parent.children.add(this);
+    }
+
+    /**
+     * Nesting depth of the loop, 1 for outermost loops.
+     */
+    public int getDepth() {
+        return parent == null ? 1 : parent.getDepth() + 1;
+    }
+
+    public boolean contains(BasicBlock block) {
+        return blocks.contains(block);
+    }
+
+    /**
+     * Blocks of the loop with at least one successor outside of it.
+     */
+    public List<BasicBlock> getExitingBlocks() {
+        return blocks.stream()
+                .filter(block -> block.getSuccessors().stream().anyMatch(succ -> !contains(succ)))
+                .toList();
+    }
+
+    /**
+     * Predecessors of the header that are not part of the loop.
+     */
+    public List<BasicBlock> getEntries() {
+        return header.getPredecessors().stream()
+                .filter(pred -> !contains(pred))
+                .toList();
+    }
+
+    @Override
+    public String toString() {
+        return "Loop" + blocks;
+    }
+}
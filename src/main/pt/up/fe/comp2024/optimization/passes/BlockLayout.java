@@ -0,0 +1,156 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+import pt.up.fe.comp2024.optimization.cfg.ControlFlowGraph;
+import pt.up.fe.comp2024.optimization.cfg.Loop;
+
+import java.util.*;
+
+/**
+ * Orders the code so the path most likely taken falls through, instead of going through a goto or a taken branch.
+ * <p>
+ * Without profile data, the likely path is decided statically: a loop runs again more often than it is left.
+ * A loop whose header tests the condition and exits, with a latch that jumps back to it, is rotated into a guarded
+ * do-while: the header stays before the loop as its guard, and the latch gets a copy of it that branches back to the
+ * body while the condition holds. Each iteration then runs a single branch, taken, instead of a goto and a branch.
+ * <p>
+ * A block only reached by a goto, which itself ends in a jump or a return, is moved right after the goto, which
+ * is then removed.
+ */
+public class BlockLayout implements OllirPass {
+
+    // copying bigger headers makes the method grow more than the saved goto is worth
+    private static final int MAX_HEADER_SIZE = 8;
+
+    private static final String BODY_LABEL = "loop_body";
+
+    private Method method;
+    private ControlFlowGraph cfg;
+
+    @Override
+    public int optimize(Method method) {
+        this.method = method;
+
+        int changed = 0;
+
+        // the graph is built again after each change, since the instructions and the layout change
+        while (rotateLoop()) {
+            changed++;
+        }
+
+        while (placeBlock()) {
+            changed++;
+        }
+
+        return changed;
+    }
+
+    private boolean rotateLoop() {
+        cfg = ControlFlowGraph.build(method);
+
+        for (var loop : cfg.getLoops()) {
+            if (rotate(loop)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces the goto at the end of the loop by a copy of the header that jumps to the start of the body.
+     */
+    private boolean rotate(Loop loop) {
+        var header = loop.getHeader();
+        var latches = loop.getLatches();
+
+        if (latches.size() != 1 || header.getInstructions().size() > MAX_HEADER_SIZE
+                || !(header.getLast() instanceof CondBranchInstruction exitBranch)) {
+            return false;
+        }
+
+        var latch = latches.get(0);
+        var body = cfg.getNextInLayout(header);
+        var exit = cfg.getBlock(exitBranch.getLabel());
+
+        // the header must leave the loop when the branch is taken and go on with the body otherwise
+        if (!(latch.getLast() instanceof GotoInstruction backEdge) || body == null || !loop.contains(body)
+                || loop.contains(exit)) {
+            return false;
+        }
+
+        var condition = OllirUtils.negate(exitBranch.getCondition());
+        if (condition == null) {
+            return false;
+        }
+
+        var bodyLabel = OllirUtils.newLabel(method, BODY_LABEL);
+        method.getLabels().put(bodyLabel, body.getFirst());
+
+        var guard = new ArrayList<Instruction>();
+        for (var inst : header.getInstructions().subList(0, header.getInstructions().size() - 1)) {
+            guard.add(OllirUtils.copy(inst, operand -> null));
+        }
+        guard.add(OllirUtils.newBranch(condition, bodyLabel));
+
+        if (cfg.getNextInLayout(latch) != exit) {
+            guard.add(new GotoInstruction(exitBranch.getLabel()));
+        }
+
+        OllirUtils.replace(method, backEdge, guard.get(0));
+
+        var instructions = method.getInstructions();
+        instructions.addAll(instructions.indexOf(guard.get(0)) + 1, guard.subList(1, guard.size()));
+
+        return true;
+    }
+
+    private boolean placeBlock() {
+        cfg = ControlFlowGraph.build(method);
+
+        for (var block : cfg.getBlocks()) {
+            if (place(block)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Moves the block right after the goto that is its only way in.
+     */
+    private boolean place(BasicBlock block) {
+        if (block == cfg.getEntry() || block.getPredecessors().size() != 1) {
+            return false;
+        }
+
+        var pred = block.getPredecessors().get(0);
+        var type = block.getLast().getInstType();
+
+        if (pred == block || !(pred.getLast() instanceof GotoInstruction jump)
+                || cfg.getBlock(jump.getLabel()) != block
+                || (type != InstructionType.GOTO && type != InstructionType.RETURN)) {
+            return false;
+        }
+
+        var instructions = method.getInstructions();
+
+        if (cfg.getNextInLayout(pred) != block) {
+            var moved = block.getInstructions();
+            var movedSet = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+            movedSet.addAll(moved);
+
+            instructions.removeIf(movedSet::contains);
+            instructions.addAll(instructions.indexOf(jump) + 1, moved);
+        }
+
+        // the block now follows the goto, which has nothing left to jump over
+        OllirUtils.remove(method, jump);
+
+        return true;
+    }
+}
@@ -0,0 +1,222 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+
+import java.util.*;
+
+/**
+ * Moves the computation of boolean temporaries that are only used by a branch into the branch itself.
+ * <p>
+ * "t := a &lt; b; if (t) goto L" becomes "if (a &lt; b) goto L", so the backend can emit a single compare and
+ * jump instead of materializing the boolean. A condition that is a chain of &amp;&amp; becomes a sequence of
+ * branches, one per operand: all but the last jump past the others when their operand is false.
+ * <p>
+ * Only assignments right before the branch (with no label in between) are folded, and only if nothing they read
+ * is assigned again before the branch.
+ */
+public class ConditionFusion implements OllirPass {
+
+    private Method method;
+    private Map<String, Integer> useCounts;
+    private Set<Instruction> labeled;
+
+    // assignments right before the current branch, and the ones folded into it
+    private List<Instruction> run;
+    private Set<Instruction> folded;
+
+    @Override
+    public int optimize(Method method) {
+        this.method = method;
+
+        int fused = 0;
+        var instructions = method.getInstructions();
+
+        useCounts = new HashMap<>();
+        instructions.forEach(inst -> countUses(inst, 1));
+        findLabeled();
+
+        for (int i = 0; i < instructions.size(); i++) {
+            if (!(instructions.get(i) instanceof CondBranchInstruction branch)) {
+                continue;
+            }
+
+            var chain = fuse(branch, i);
+            if (chain.isEmpty()) {
+                continue;
+            }
+
+            // the counts follow the instructions removed and added, instead of being counted again
+            countUses(branch, -1);
+            folded.forEach(inst -> countUses(inst, -1));
+            chain.forEach(inst -> countUses(inst, 1));
+
+            OllirUtils.replace(method, branch, chain.get(0));
+            instructions.addAll(i + 1, chain.subList(1, chain.size()));
+            OllirUtils.removeAll(method, folded);
+            i = instructions.indexOf(chain.get(chain.size() - 1));
+            fused++;
+
+            // labels of the folded assignments moved to the instructions after them, and there may be a new one
+            findLabeled();
+        }
+
+        return fused;
+    }
+
+    private void countUses(Instruction inst, int delta) {
+        for (var name : OllirUtils.getUsedVariables(inst)) {
+            useCounts.merge(name, delta, Integer::sum);
+        }
+    }
+
+    private void findLabeled() {
+        labeled = Collections.newSetFromMap(new IdentityHashMap<>());
+        labeled.addAll(method.getLabels().values());
+    }
+
+    /**
+     * Returns the branches that replace the given one, or an empty list if nothing can be folded into it.
+     */
+    private List<Instruction> fuse(CondBranchInstruction branch, int index) {
+        var instructions = method.getInstructions();
+
+        // jumps to the branch would skip the assignments
+        if (labeled.contains(branch) || index + 1 >= instructions.size()) {
+            return List.of();
+        }
+
+        run = new ArrayList<>();
+        for (int i = index - 1; i >= 0 && instructions.get(i) instanceof AssignInstruction; i--) {
+            run.add(0, instructions.get(i));
+            if (labeled.contains(instructions.get(i))) {
+                break;
+            }
+        }
+
+        folded = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        var conjuncts = new ArrayList<Instruction>();
+        var condition = branch.getCondition();
+
+        if (condition instanceof SingleOpInstruction singleOp) {
+            expand(singleOp.getSingleOperand(), conjuncts);
+        } else if (condition instanceof BinaryOpInstruction binaryOp && binaryOp.getOperation().getOpType() == OperationType.ANDB) {
+            expand(binaryOp.getLeftOperand(), conjuncts);
+            expand(binaryOp.getRightOperand(), conjuncts);
+        } else {
+            return List.of();
+        }
+
+        if (folded.isEmpty() && conjuncts.size() < 2) {
+            return List.of();
+        }
+
+        var chain = new ArrayList<Instruction>();
+        String skip = null;
+
+        for (int i = 0; i < conjuncts.size() - 1; i++) {
+            if (skip == null) {
+                skip = OllirUtils.newLabel(method, "and_skip");
+                method.getLabels().put(skip, instructions.get(index + 1));
+            }
+            chain.add(OllirUtils.newBranch(OllirUtils.negate(conjuncts.get(i)), skip));
+        }
+        chain.add(OllirUtils.newBranch(conjuncts.get(conjuncts.size() - 1), branch.getLabel()));
+
+        return chain;
+    }
+
+    /**
+     * Adds the conditions that must all be true for the element to be true.
+     */
+    private void expand(Element element, List<Instruction> conjuncts) {
+        var def = findFoldable(element);
+        if (def == null) {
+            conjuncts.add(new SingleOpInstruction(element));
+            return;
+        }
+
+        var rhs = def.getRhs();
+        folded.add(def);
+
+        if (rhs instanceof BinaryOpInstruction binaryOp && isComparison(binaryOp.getOperation().getOpType())) {
+            conjuncts.add(rhs);
+        } else if (rhs instanceof BinaryOpInstruction binaryOp) {
+            // ANDB, checked by findFoldable
+            expand(binaryOp.getLeftOperand(), conjuncts);
+            expand(binaryOp.getRightOperand(), conjuncts);
+        } else if (rhs instanceof SingleOpInstruction singleOp) {
+            expand(singleOp.getSingleOperand(), conjuncts);
+        } else {
+            // NOTB
+            conjuncts.add(rhs);
+        }
+    }
+
+    /**
+     * The assignment of the run that computes the element, if it can be moved into the branch.
+     */
+    private AssignInstruction findFoldable(Element element) {
+        if (!OllirUtils.isVariable(element)) {
+            return null;
+        }
+
+        var name = ((Operand) element).getName();
+        if (useCounts.getOrDefault(name, 0) != 1 || isParameter(name)) {
+            return null;
+        }
+
+        for (int i = run.size() - 1; i >= 0; i--) {
+            var inst = (AssignInstruction) run.get(i);
+            if (!name.equals(OllirUtils.getDefinedVariable(inst))) {
+                continue;
+            }
+
+            if (!isFoldableRhs(inst.getRhs())) {
+                return null;
+            }
+
+            // the values it reads must not change before the branch
+            var reads = OllirUtils.getUsedVariables(inst);
+            for (var later : run.subList(i + 1, run.size())) {
+                var laterDef = OllirUtils.getDefinedVariable(later);
+                if (laterDef != null && reads.contains(laterDef)) {
+                    return null;
+                }
+            }
+
+            return inst;
+        }
+
+        return null;
+    }
+
+    private boolean isParameter(String name) {
+        var descriptor = method.getVarTable().get(name);
+        return descriptor == null || descriptor.getScope() != VarScope.LOCAL;
+    }
+
+    private static boolean isFoldableRhs(Instruction rhs) {
+        if (rhs instanceof BinaryOpInstruction binaryOp) {
+            var opType = binaryOp.getOperation().getOpType();
+            return isComparison(opType) || opType == OperationType.ANDB;
+        }
+
+        if (rhs instanceof UnaryOpInstruction unaryOp) {
+            return unaryOp.getOperation().getOpType() == OperationType.NOTB
+                    && !(unaryOp.getOperand() instanceof ArrayOperand);
+        }
+
+        return rhs instanceof SingleOpInstruction singleOp && !(singleOp.getSingleOperand() instanceof ArrayOperand);
+    }
+
+    private static boolean isComparison(OperationType opType) {
+        return switch (opType) {
+            case LTH, GTH, LTE, GTE, EQ, NEQ -> true;
+            default -> false;
+        };
+    }
+
+}
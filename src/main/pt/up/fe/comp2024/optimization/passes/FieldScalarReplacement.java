@@ -0,0 +1,287 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+import pt.up.fe.comp2024.optimization.cfg.ControlFlowGraph;
+import pt.up.fe.comp2024.optimization.cfg.Loop;
+
+import java.util.*;
+
+/**
+ * Keeps the fields of this in locals while a loop without calls runs.
+ * <p>
+ * The fields the loop reads or writes are loaded into new locals in a preheader before the loop, and every access
+ * in the loop becomes a copy from or to the local. Fields the loop writes are stored back on every edge that leaves
+ * the loop and before every return inside it. No other code can see the fields while the loop runs, since it makes
+ * no calls, so the values only need to be in the object once the loop is left.
+ */
+public class FieldScalarReplacement implements OllirPass {
+
+    private static final String PREHEADER_LABEL = "fields";
+    private static final String EXIT_LABEL = "fields_exit";
+    private static final String CACHE_PREFIX = "cached_";
+
+    private Method method;
+    private ControlFlowGraph cfg;
+    private Loop loop;
+
+    // field accesses of the loop, by field name
+    private Map<String, List<Instruction>> accesses;
+    private Set<String> storedFields;
+
+    @Override
+    public int optimize(Method method) {
+        if (method.isStaticMethod()) {
+            return 0;
+        }
+
+        this.method = method;
+
+        int replaced = 0;
+        boolean changed = true;
+
+        // the instructions change with each loop, so the graph is built again after each one
+        while (changed) {
+            changed = false;
+            cfg = ControlFlowGraph.build(method);
+
+            for (var loop : cfg.getLoops()) {
+                int count = replace(loop);
+                if (count > 0) {
+                    replaced += count;
+                    changed = true;
+                    break;
+                }
+            }
+        }
+
+        return replaced;
+    }
+
+    private int replace(Loop loop) {
+        this.loop = loop;
+
+        var header = loop.getHeader();
+        var prev = header.getId() > 0 ? cfg.getBlocks().get(header.getId() - 1) : null;
+
+        // the preheader goes right before the header, so no block of the loop may fall through into it
+        if (prev != null && loop.contains(prev) && cfg.fallsThrough(prev)) {
+            return 0;
+        }
+
+        if (loop.getEntries().isEmpty() && header != cfg.getEntry()) {
+            return 0;
+        }
+
+        var instructions = method.getInstructions();
+        if (!OllirUtils.isTerminator(instructions.get(instructions.size() - 1))) {
+            return 0;
+        }
+
+        var loopInsts = getLoopInstructions();
+        if (!collectAccesses(loopInsts) || accesses.isEmpty()) {
+            return 0;
+        }
+
+        var caches = new LinkedHashMap<String, Operand>();
+        for (var field : accesses.keySet()) {
+            caches.put(field, OllirUtils.newTemp(method, CACHE_PREFIX + field + "_", getFieldType(field)));
+        }
+
+        rewrite(caches, loopInsts);
+
+        return accesses.values().stream().mapToInt(List::size).sum();
+    }
+
+    private List<Instruction> getLoopInstructions() {
+        var blocks = new ArrayList<>(loop.getBlocks());
+        blocks.sort(Comparator.comparingInt(BasicBlock::getId));
+
+        var insts = new ArrayList<Instruction>();
+        blocks.forEach(block -> insts.addAll(block.getInstructions()));
+
+        return insts;
+    }
+
+    /**
+     * Finds the fields of this the loop accesses. Returns false if the loop makes calls, since the callee could
+     * access the fields too. Fields also accessed through another object are left alone.
+     */
+    private boolean collectAccesses(List<Instruction> loopInsts) {
+        accesses = new LinkedHashMap<>();
+        storedFields = new LinkedHashSet<>();
+        var excluded = new HashSet<String>();
+
+        for (var inst : loopInsts) {
+            var rhs = inst instanceof AssignInstruction assign ? assign.getRhs() : inst;
+
+            if (rhs instanceof CallInstruction call && call.getInvocationType() != CallType.arraylength) {
+                return false;
+            }
+
+            if (!(rhs instanceof FieldInstruction fieldInst)) {
+                continue;
+            }
+
+            var field = fieldInst.getField().getName();
+
+            // only "x := getfield(this, f)" and "putfield(this, f, v)" become copies
+            boolean isCopy = inst instanceof PutFieldInstruction || inst != rhs;
+            if (!isThis(fieldInst.getObject()) || !isCopy) {
+                excluded.add(field);
+                continue;
+            }
+
+            accesses.computeIfAbsent(field, name -> new ArrayList<>()).add(inst);
+            if (inst instanceof PutFieldInstruction) {
+                storedFields.add(field);
+            }
+        }
+
+        excluded.forEach(accesses::remove);
+        storedFields.removeAll(excluded);
+
+        return true;
+    }
+
+    private Type getFieldType(String field) {
+        return getFieldInstruction(field).getField().getType();
+    }
+
+    private void rewrite(Map<String, Operand> caches, List<Instruction> loopInsts) {
+        var replacements = new IdentityHashMap<Instruction, Instruction>();
+
+        for (var field : accesses.entrySet()) {
+            var cache = caches.get(field.getKey());
+
+            for (var access : field.getValue()) {
+                if (access instanceof PutFieldInstruction putField) {
+                    replacements.put(access, OllirUtils.newCopy(cache, putField.getValue()));
+                } else {
+                    replacements.put(access, OllirUtils.newCopy(((AssignInstruction) access).getDest(), cache));
+                }
+            }
+        }
+
+        var before = new IdentityHashMap<Instruction, List<Instruction>>();
+        var after = new IdentityHashMap<Instruction, List<Instruction>>();
+        var atEnd = new ArrayList<Instruction>();
+        var retargets = new IdentityHashMap<Instruction, String>();
+
+        before.put(loop.getHeader().getFirst(), getLoads(caches));
+
+        if (!storedFields.isEmpty()) {
+            for (var inst : loopInsts) {
+                if (inst instanceof ReturnInstruction) {
+                    before.put(inst, getStores(caches));
+                }
+            }
+
+            for (var block : loop.getExitingBlocks()) {
+                var last = block.getLast();
+                var target = OllirUtils.getJumpLabel(last);
+
+                if (cfg.fallsThrough(block) && !loop.contains(cfg.getNextInLayout(block))) {
+                    after.put(last, getStores(caches));
+                }
+
+                // the jump may also stay in the loop, so the stores get a block of their own at the end of the method
+                if (target != null && !loop.contains(cfg.getBlock(target))) {
+                    var label = OllirUtils.newLabel(method, EXIT_LABEL);
+                    var exit = getStores(caches);
+                    exit.add(new GotoInstruction(target));
+
+                    method.getLabels().put(label, exit.get(0));
+                    atEnd.addAll(exit);
+                    retargets.put(last, label);
+                }
+            }
+        }
+
+        var header = loop.getHeader().getFirst();
+        var instructions = method.getInstructions();
+        var newInstructions = new ArrayList<Instruction>();
+        var firstBefore = new IdentityHashMap<Instruction, Instruction>();
+
+        for (var inst : instructions) {
+            var instsBefore = before.get(inst);
+            if (instsBefore != null && !instsBefore.isEmpty()) {
+                newInstructions.addAll(instsBefore);
+                firstBefore.put(inst, instsBefore.get(0));
+            }
+
+            newInstructions.add(inst);
+            newInstructions.addAll(after.getOrDefault(inst, List.of()));
+        }
+        newInstructions.addAll(atEnd);
+
+        instructions.clear();
+        instructions.addAll(newInstructions);
+
+        // stores before a return take its labels, the loads keep the header labels on the header itself
+        for (var label : method.getLabels().entrySet()) {
+            var first = firstBefore.get(label.getValue());
+            if (first != null && label.getValue() != header) {
+                label.setValue(first);
+            }
+        }
+
+        // jumps from outside of the loop must go through the loads, back edges still go to the header
+        var headerLabels = OllirUtils.getLabels(method, header);
+        var loads = firstBefore.get(header);
+        String preheaderLabel = null;
+
+        for (var entry : loop.getEntries()) {
+            var jump = entry.getLast();
+            var target = OllirUtils.getJumpLabel(jump);
+
+            if (target == null || !headerLabels.contains(target)) {
+                continue;
+            }
+
+            if (preheaderLabel == null) {
+                preheaderLabel = OllirUtils.newLabel(method, PREHEADER_LABEL);
+                method.getLabels().put(preheaderLabel, loads);
+            }
+
+            OllirUtils.retarget(method, jump, preheaderLabel);
+        }
+
+        retargets.forEach((jump, label) -> OllirUtils.retarget(method, jump, label));
+        OllirUtils.replaceAll(method, replacements);
+    }
+
+    private List<Instruction> getLoads(Map<String, Operand> caches) {
+        var loads = new ArrayList<Instruction>();
+
+        for (var cache : caches.entrySet()) {
+            var field = getFieldInstruction(cache.getKey());
+            var load = new GetFieldInstruction(field.getObject(), field.getField(), cache.getValue().getType());
+            loads.add(new AssignInstruction(cache.getValue(), cache.getValue().getType(), load));
+        }
+
+        return loads;
+    }
+
+    private List<Instruction> getStores(Map<String, Operand> caches) {
+        var stores = new ArrayList<Instruction>();
+
+        for (var field : storedFields) {
+            var fieldInst = getFieldInstruction(field);
+            stores.add(new PutFieldInstruction(fieldInst.getObject(), fieldInst.getField(), caches.get(field)));
+        }
+
+        return stores;
+    }
+
+    private FieldInstruction getFieldInstruction(String field) {
+        var access = accesses.get(field).get(0);
+        return (FieldInstruction) (access instanceof AssignInstruction assign ? assign.getRhs() : access);
+    }
+
+    private static boolean isThis(Element element) {
+        return element.getType().getTypeOfElement() == ElementType.THIS;
+    }
+}
@@ -0,0 +1,155 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+import pt.up.fe.comp2024.optimization.cfg.ControlFlowGraph;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Common subexpression elimination inside basic blocks, using local value numbering.
+ * <p>
+ * Binary operations, array lengths and array loads whose operands have not changed since they were first
+ * computed in the block are replaced by a copy of the variable that already holds the value.
+ */
+public class LocalValueNumbering implements OllirPass {
+
+    // variable that holds a computed value, and its version when the value was stored
+    private record Holder(Element variable, int version) {
+    }
+
+    private Map<String, Integer> versions;
+    private Map<String, Holder> available;
+
+    // bumped on every array store or call, since both may change the contents of any array
+    private int memoryVersion;
+
+    @Override
+    public int optimize(Method method) {
+        int eliminated = 0;
+
+        for (var block : ControlFlowGraph.build(method).getBlocks()) {
+            eliminated += optimizeBlock(method, block);
+        }
+
+        return eliminated;
+    }
+
+    private int optimizeBlock(Method method, BasicBlock block) {
+        versions = new HashMap<>();
+        available = new HashMap<>();
+        memoryVersion = 0;
+
+        int eliminated = 0;
+
+        for (var inst : block.getInstructions()) {
+            if (!(inst instanceof AssignInstruction assign)) {
+                if (inst instanceof CallInstruction) {
+                    memoryVersion++;
+                }
+                continue;
+            }
+
+            var dest = assign.getDest();
+            var rhs = assign.getRhs();
+            var key = valueKey(rhs);
+
+            if (rhs instanceof CallInstruction call && call.getInvocationType() != CallType.arraylength) {
+                memoryVersion++;
+            }
+
+            if (!OllirUtils.isVariable(dest)) {
+                // store to an array
+                memoryVersion++;
+                continue;
+            }
+
+            var destName = ((Operand) dest).getName();
+
+            if (key != null) {
+                var holder = available.get(key);
+
+                if (holder != null && isValid(holder) && !getName(holder.variable()).equals(destName)) {
+                    OllirUtils.replace(method, inst, OllirUtils.newCopy(dest, holder.variable()));
+                    eliminated++;
+                }
+            }
+
+            var version = versions.merge(destName, 1, Integer::sum);
+
+            if (key != null) {
+                available.put(key, new Holder(dest, version));
+            }
+        }
+
+        return eliminated;
+    }
+
+    private boolean isValid(Holder holder) {
+        return versions.getOrDefault(getName(holder.variable()), 0) == holder.version();
+    }
+
+    /**
+     * Builds a key that identifies the value computed by the instruction, or null if the instruction is not
+     * a candidate for elimination.
+     */
+    private String valueKey(Instruction rhs) {
+        if (rhs instanceof BinaryOpInstruction binaryOp) {
+            var left = operandKey(binaryOp.getLeftOperand());
+            var right = operandKey(binaryOp.getRightOperand());
+            var opType = binaryOp.getOperation().getOpType();
+
+            if (isCommutative(opType) && left.compareTo(right) > 0) {
+                var tmp = left;
+                left = right;
+                right = tmp;
+            }
+
+            return opType + "(" + left + "," + right + ")";
+        }
+
+        if (rhs instanceof CallInstruction call && call.getInvocationType() == CallType.arraylength) {
+            return "arraylength(" + operandKey(call.getCaller()) + ")";
+        }
+
+        if (rhs instanceof SingleOpInstruction singleOp && singleOp.getSingleOperand() instanceof ArrayOperand) {
+            return operandKey(singleOp.getSingleOperand());
+        }
+
+        return null;
+    }
+
+    private String operandKey(Element element) {
+        if (element instanceof LiteralElement literal) {
+            return "#" + literal.getLiteral();
+        }
+
+        var operand = (Operand) element;
+        var key = operand.getName() + "@" + versions.getOrDefault(operand.getName(), 0);
+
+        if (operand instanceof ArrayOperand arrayOperand) {
+            var index = new StringBuilder();
+            for (var indexOperand : arrayOperand.getIndexOperands()) {
+                index.append("[").append(operandKey(indexOperand)).append("]");
+            }
+            key = key + index + "$" + memoryVersion;
+        }
+
+        return key;
+    }
+
+    private static String getName(Element variable) {
+        return ((Operand) variable).getName();
+    }
+
+    private static boolean isCommutative(OperationType opType) {
+        return switch (opType) {
+            case ADD, MUL, AND, OR, XOR, ANDB, ORB, EQ, NEQ -> true;
+            default -> false;
+        };
+    }
+
+}
@@ -0,0 +1,301 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+import pt.up.fe.comp2024.optimization.cfg.ControlFlowGraph;
+import pt.up.fe.comp2024.optimization.cfg.Loop;
+
+import java.util.*;
+
+/**
+ * Moves loop-invariant computations out of natural loops, into a preheader placed before the loop header.
+ * <p>
+ * An assignment "x := e" is hoisted when e is free of side effects, its operands do not change inside the
+ * loop, x is assigned only once in the loop and every use of x in the loop comes after it. Instructions that
+ * can throw (division, arraylength) are only hoisted when they run before every exit of the loop, so the
+ * exception is raised at the same point of the execution.
+ */
+public class LoopInvariantCodeMotion implements OllirPass {
+
+    private static final String PREHEADER_LABEL = "preheader";
+
+    private Method method;
+    private ControlFlowGraph cfg;
+    private Loop loop;
+
+    private Map<String, Integer> loopDefs;
+    private Map<String, Integer> methodDefs;
+    private Set<String> storedFields;
+    private boolean hasCalls;
+
+    // invariant instructions, in the order they must be placed in the preheader
+    private Set<Instruction> invariant;
+    private Set<String> invariantVars;
+
+    @Override
+    public int optimize(Method method) {
+        this.method = method;
+
+        int hoisted = 0;
+        boolean changed = true;
+
+        // hoisting changes the instructions, so the graph is built again after each loop that changes
+        while (changed) {
+            changed = false;
+            cfg = ControlFlowGraph.build(method);
+
+            for (var loop : cfg.getLoops()) {
+                int count = hoist(loop);
+                if (count > 0) {
+                    hoisted += count;
+                    changed = true;
+                    break;
+                }
+            }
+        }
+
+        return hoisted;
+    }
+
+    private int hoist(Loop loop) {
+        this.loop = loop;
+
+        var header = loop.getHeader();
+        var prev = header.getId() > 0 ? cfg.getBlocks().get(header.getId() - 1) : null;
+
+        // the preheader goes right before the header, so no block of the loop may fall through into it
+        if (prev != null && loop.contains(prev) && cfg.fallsThrough(prev)) {
+            return 0;
+        }
+
+        if (loop.getEntries().isEmpty() && header != cfg.getEntry()) {
+            return 0;
+        }
+
+        var loopInsts = getLoopInstructions();
+        collectLoopInfo(loopInsts);
+        findInvariants(loopInsts);
+
+        if (invariant.isEmpty()) {
+            return 0;
+        }
+
+        buildPreheader(new ArrayList<>(invariant));
+
+        return invariant.size();
+    }
+
+    private List<Instruction> getLoopInstructions() {
+        var blocks = new ArrayList<>(loop.getBlocks());
+        blocks.sort(Comparator.comparingInt(BasicBlock::getId));
+
+        var insts = new ArrayList<Instruction>();
+        blocks.forEach(block -> insts.addAll(block.getInstructions()));
+
+        return insts;
+    }
+
+    private void collectLoopInfo(List<Instruction> loopInsts) {
+        loopDefs = new HashMap<>();
+        methodDefs = new HashMap<>();
+        storedFields = new HashSet<>();
+        hasCalls = false;
+
+        for (var inst : method.getInstructions()) {
+            var def = OllirUtils.getDefinedVariable(inst);
+            if (def != null) {
+                methodDefs.merge(def, 1, Integer::sum);
+            }
+        }
+
+        for (var inst : loopInsts) {
+            var def = OllirUtils.getDefinedVariable(inst);
+            if (def != null) {
+                loopDefs.merge(def, 1, Integer::sum);
+            }
+
+            var rhs = inst instanceof AssignInstruction assign ? assign.getRhs() : inst;
+
+            if (rhs instanceof CallInstruction call && call.getInvocationType() != CallType.arraylength) {
+                hasCalls = true;
+            }
+
+            if (inst instanceof PutFieldInstruction putField) {
+                storedFields.add(((Operand) putField.getOperands().get(1)).getName());
+            }
+        }
+    }
+
+    private void findInvariants(List<Instruction> loopInsts) {
+        invariant = new LinkedHashSet<>();
+        invariantVars = new HashSet<>();
+
+        var exiting = loop.getExitingBlocks();
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            for (var inst : loopInsts) {
+                if (invariant.contains(inst) || !isInvariant(inst)) {
+                    continue;
+                }
+
+                var block = cfg.getBlock(inst);
+                var runsOnEveryExit = exiting.stream().allMatch(exit -> cfg.dominates(block, exit));
+                var def = OllirUtils.getDefinedVariable(inst);
+
+                // if the instruction may not run in every iteration, only hoist it when that can not be observed
+                if (!runsOnEveryExit && (mayThrow(((AssignInstruction) inst).getRhs())
+                        || methodDefs.get(def) != 1 || isParameter(def))) {
+                    continue;
+                }
+
+                if (!dominatesUsesInLoop(inst, def, loopInsts)) {
+                    continue;
+                }
+
+                invariant.add(inst);
+                invariantVars.add(def);
+                changed = true;
+            }
+        }
+    }
+
+    private boolean isInvariant(Instruction inst) {
+        var def = OllirUtils.getDefinedVariable(inst);
+        if (def == null || loopDefs.get(def) != 1) {
+            return false;
+        }
+
+        var rhs = ((AssignInstruction) inst).getRhs();
+
+        if (rhs instanceof OpInstruction opInst) {
+            return opInst.getOperands().stream().allMatch(this::isInvariant);
+        }
+
+        if (rhs instanceof SingleOpInstruction singleOp) {
+            return isInvariant(singleOp.getSingleOperand());
+        }
+
+        if (rhs instanceof CallInstruction call) {
+            return call.getInvocationType() == CallType.arraylength && isInvariant(call.getCaller());
+        }
+
+        if (rhs instanceof GetFieldInstruction getField) {
+            var object = getField.getOperands().get(0);
+            var field = (Operand) getField.getOperands().get(1);
+
+            return object.getType().getTypeOfElement() == ElementType.THIS
+                    && !hasCalls && !storedFields.contains(field.getName());
+        }
+
+        return false;
+    }
+
+    private boolean isInvariant(Element element) {
+        if (element.isLiteral()) {
+            return true;
+        }
+
+        if (!OllirUtils.isVariable(element)) {
+            return false;
+        }
+
+        var name = ((Operand) element).getName();
+
+        return !loopDefs.containsKey(name) || invariantVars.contains(name);
+    }
+
+    private boolean mayThrow(Instruction rhs) {
+        if (rhs instanceof BinaryOpInstruction binaryOp) {
+            return binaryOp.getOperation().getOpType() == OperationType.DIV;
+        }
+
+        return rhs instanceof CallInstruction;
+    }
+
+    private boolean isParameter(String name) {
+        var descriptor = method.getVarTable().get(name);
+        return descriptor != null && descriptor.getScope() == VarScope.PARAMETER;
+    }
+
+    /**
+     * Every read of the variable inside the loop must see the value of this definition.
+     */
+    private boolean dominatesUsesInLoop(Instruction def, String var, List<Instruction> loopInsts) {
+        var defBlock = cfg.getBlock(def);
+        var defIndex = defBlock.getInstructions().indexOf(def);
+
+        for (var inst : loopInsts) {
+            if (!OllirUtils.getUsedVariables(inst).contains(var)) {
+                continue;
+            }
+
+            var useBlock = cfg.getBlock(inst);
+
+            if (useBlock == defBlock) {
+                if (useBlock.getInstructions().indexOf(inst) <= defIndex) {
+                    return false;
+                }
+            } else if (!cfg.dominates(defBlock, useBlock)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void buildPreheader(List<Instruction> hoisted) {
+        var header = loop.getHeader();
+        var instructions = method.getInstructions();
+
+        // the first instruction of the header that stays in the loop, which keeps the labels of the header
+        var hoistedSet = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+        hoistedSet.addAll(hoisted);
+
+        int anchorIndex = indexOf(header.getFirst());
+        while (hoistedSet.contains(instructions.get(anchorIndex))) {
+            anchorIndex++;
+        }
+        var anchor = instructions.get(anchorIndex);
+
+        hoisted.forEach(inst -> OllirUtils.remove(method, inst));
+        instructions.addAll(indexOf(anchor), hoisted);
+
+        // jumps from outside of the loop must go through the preheader, back edges still go to the header
+        var headerLabels = OllirUtils.getLabels(method, anchor);
+        String preheaderLabel = null;
+
+        for (var entry : loop.getEntries()) {
+            var jump = entry.getLast();
+            var target = OllirUtils.getJumpLabel(jump);
+
+            if (target == null || !headerLabels.contains(target)) {
+                continue;
+            }
+
+            if (preheaderLabel == null) {
+                preheaderLabel = OllirUtils.newLabel(method, PREHEADER_LABEL);
+                method.getLabels().put(preheaderLabel, hoisted.get(0));
+            }
+
+            OllirUtils.retarget(method, jump, preheaderLabel);
+        }
+    }
+
+    private int indexOf(Instruction inst) {
+        var instructions = method.getInstructions();
+
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i) == inst) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+}
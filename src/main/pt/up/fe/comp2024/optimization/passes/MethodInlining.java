@@ -0,0 +1,242 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Replaces calls to small methods of the same class by the body of the method.
+ * <p>
+ * Only static calls to the class and calls on this to methods no subclass can override are inlined, since only those
+ * always reach the method of this class. Without the closed world option those are private or final methods, or any
+ * method of a final class (see {@link OllirUtils#isOverridable}); in a closed world every call on this is. The locals
+ * and parameters of the callee become new locals of the caller, the arguments are copied into them, and returns
+ * become a copy into the destination of the call followed by a goto past the inlined code. Recursive methods are
+ * never inlined.
+ */
+public class MethodInlining implements OllirPass {
+
+    // methods with more instructions than this are not inlined
+    private static final int MAX_CALLEE_SIZE = 16;
+
+    // inlining into a method stops once it grew this many instructions
+    private static final int MAX_GROWTH = 200;
+
+    private final boolean closedWorld;
+
+    public MethodInlining(boolean closedWorld) {
+        this.closedWorld = closedWorld;
+    }
+
+    @Override
+    public int optimize(Method method) {
+        int inlined = 0;
+        int growth = 0;
+
+        for (var inst : new ArrayList<>(method.getInstructions())) {
+            var call = getCall(inst);
+            if (call == null) {
+                continue;
+            }
+
+            var callee = findCallee(method, call);
+            if (callee == null) {
+                continue;
+            }
+
+            growth += callee.getInstructions().size();
+            if (growth > MAX_GROWTH) {
+                break;
+            }
+
+            inline(method, inst, call, callee);
+            inlined++;
+        }
+
+        return inlined;
+    }
+
+    private static CallInstruction getCall(Instruction inst) {
+        if (inst instanceof CallInstruction call) {
+            return call;
+        }
+
+        if (inst instanceof AssignInstruction assign && assign.getRhs() instanceof CallInstruction call) {
+            return call;
+        }
+
+        return null;
+    }
+
+    /**
+     * The method of the class the call reaches, if it can be inlined, or null otherwise.
+     */
+    private Method findCallee(Method method, CallInstruction call) {
+        var classUnit = method.getOllirClass();
+        var isStatic = call.getInvocationType() == CallType.invokestatic;
+
+        if (!isStatic && call.getInvocationType() != CallType.invokevirtual) {
+            return null;
+        }
+
+        if (!(call.getCaller() instanceof Operand caller)) {
+            return null;
+        }
+
+        var expectedCaller = isStatic ? classUnit.getClassName() : "this";
+        if (!caller.getName().equals(expectedCaller)) {
+            return null;
+        }
+
+        var name = getName(call);
+        int numArgs = call.getArguments() == null ? 0 : call.getArguments().size();
+
+        for (var candidate : classUnit.getMethods()) {
+            if (candidate.isConstructMethod() || !candidate.getMethodName().equals(name)
+                    || candidate.isStaticMethod() != isStatic || candidate.getParams().size() != numArgs) {
+                continue;
+            }
+
+            if (candidate == method || candidate.getInstructions().size() > MAX_CALLEE_SIZE || isRecursive(candidate)
+                    || (!isStatic && OllirUtils.isOverridable(candidate, closedWorld))) {
+                return null;
+            }
+
+            return candidate;
+        }
+
+        return null;
+    }
+
+    private static boolean isRecursive(Method method) {
+        var name = method.getMethodName();
+        var className = method.getOllirClass().getClassName();
+
+        for (var inst : method.getInstructions()) {
+            var call = getCall(inst);
+            if (call == null || !getName(call).equals(name)) {
+                continue;
+            }
+
+            if (call.getCaller() instanceof Operand caller
+                    && (caller.getName().equals("this") || caller.getName().equals(className))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String getName(CallInstruction call) {
+        return ((LiteralElement) call.getMethodName()).getLiteral().replace("\"", "");
+    }
+
+    private static void inline(Method method, Instruction site, CallInstruction call, Method callee) {
+        var prefix = callee.getMethodName() + "_";
+
+        // locals and parameters of the callee get new names in the caller
+        var renamed = new HashMap<String, String>();
+        for (var variable : callee.getVarTable().entrySet()) {
+            var scope = variable.getValue().getScope();
+            if (!variable.getKey().equals("this") && scope != VarScope.FIELD) {
+                var temp = OllirUtils.newTemp(method, prefix + variable.getKey() + "_", variable.getValue().getVarType());
+                renamed.put(variable.getKey(), temp.getName());
+            }
+        }
+
+        var instructions = method.getInstructions();
+        int index = instructions.indexOf(site);
+        if (index + 1 >= instructions.size()) {
+            throw new RuntimeException("Call to '" + callee.getMethodName() + "' is the last instruction of '" + method.getMethodName() + "'");
+        }
+        var next = instructions.get(index + 1);
+
+        // labels are reserved right away, so that each new one gets a different name
+        var newLabels = new HashMap<String, String>();
+        for (var label : callee.getLabels().keySet()) {
+            var newLabel = OllirUtils.newLabel(method, prefix + label);
+            method.getLabels().put(newLabel, next);
+            newLabels.put(label, newLabel);
+        }
+
+        String endLabel = null;
+        var dest = site instanceof AssignInstruction assign ? assign.getDest() : null;
+
+        var body = new ArrayList<Instruction>();
+        var params = callee.getParams();
+        for (int i = 0; i < params.size(); i++) {
+            var param = (Operand) params.get(i);
+            body.add(OllirUtils.newCopy(OllirUtils.newOperand(renamed.get(param.getName()), param.getType()),
+                    call.getArguments().get(i)));
+        }
+
+        // first instruction that replaces each instruction of the callee, missing if it was replaced by nothing
+        var firstOf = new IdentityHashMap<Instruction, Instruction>();
+        var calleeInsts = callee.getInstructions();
+
+        for (int i = 0; i < calleeInsts.size(); i++) {
+            var inst = calleeInsts.get(i);
+            int start = body.size();
+
+            if (inst instanceof ReturnInstruction ret) {
+                if (dest != null && ret.getOperand() != null) {
+                    var value = OllirUtils.copy(new SingleOpInstruction(ret.getOperand()), operand -> rename(operand, renamed));
+                    body.add(OllirUtils.newCopy(dest, ((SingleOpInstruction) value).getSingleOperand()));
+                }
+
+                if (i + 1 < calleeInsts.size()) {
+                    if (endLabel == null) {
+                        endLabel = OllirUtils.newLabel(method, prefix + "end");
+                        method.getLabels().put(endLabel, next);
+                    }
+                    body.add(new GotoInstruction(endLabel));
+                }
+            } else {
+                body.add(copy(inst, renamed, newLabels));
+            }
+
+            if (body.size() > start) {
+                firstOf.put(inst, body.get(start));
+            }
+        }
+
+        for (var label : callee.getLabels().entrySet()) {
+            method.getLabels().put(newLabels.get(label.getKey()), firstOf.getOrDefault(label.getValue(), next));
+        }
+
+        // the labels of the call move to the first inlined instruction
+        instructions.addAll(index + 1, body);
+        OllirUtils.remove(method, site);
+    }
+
+    private static Instruction copy(Instruction inst, Map<String, String> renamed, Map<String, String> newLabels) {
+        var newInst = OllirUtils.copy(inst, operand -> rename(operand, renamed));
+
+        var def = OllirUtils.getDefinedVariable(inst);
+        if (def != null && renamed.containsKey(def)) {
+            var dest = ((AssignInstruction) inst).getDest();
+            newInst = OllirUtils.withDest((AssignInstruction) newInst, OllirUtils.newOperand(renamed.get(def), dest.getType()));
+        }
+
+        if (newInst instanceof GotoInstruction gotoInst) {
+            return new GotoInstruction(newLabels.get(gotoInst.getLabel()));
+        }
+
+        if (newInst instanceof CondBranchInstruction branch) {
+            return OllirUtils.newBranch(branch.getCondition(), newLabels.get(branch.getLabel()));
+        }
+
+        return newInst;
+    }
+
+    private static Element rename(Operand operand, Map<String, String> renamed) {
+        var name = renamed.get(operand.getName());
+        return name == null ? null : OllirUtils.newOperand(name, operand.getType());
+    }
+
+}
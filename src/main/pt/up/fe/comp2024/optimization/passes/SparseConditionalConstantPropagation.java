@@ -0,0 +1,456 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+import pt.up.fe.comp2024.optimization.cfg.ControlFlowGraph;
+import pt.up.fe.comp2024.optimization.cfg.LiveVariables;
+import pt.up.fe.comp2024.optimization.ssa.Phi;
+import pt.up.fe.comp2024.optimization.ssa.SsaForm;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck), over the SSA form of the method.
+ * <p>
+ * Constants are propagated only along edges that can be executed, so a variable that is constant on every path
+ * that is actually taken is still found to be constant. Uses of constant variables are replaced by literals.
+ * Back out of SSA, branches on constant conditions become gotos (or disappear), unreachable blocks and dead
+ * assignments are removed and jumps to gotos are redirected to the final target.
+ */
+public class SparseConditionalConstantPropagation implements OllirPass {
+
+    private enum Kind {
+        UNDEFINED,
+        CONSTANT,
+        OVERDEFINED
+    }
+
+    private record LatticeValue(Kind kind, int constant) {
+
+        private static final LatticeValue TOP = new LatticeValue(Kind.UNDEFINED, 0);
+        private static final LatticeValue BOTTOM = new LatticeValue(Kind.OVERDEFINED, 0);
+
+        private static LatticeValue of(int constant) {
+            return new LatticeValue(Kind.CONSTANT, constant);
+        }
+
+        private boolean isConstant() {
+            return kind == Kind.CONSTANT;
+        }
+
+        private LatticeValue meet(LatticeValue other) {
+            if (kind == Kind.UNDEFINED) return other;
+            if (other.kind == Kind.UNDEFINED) return this;
+            if (kind == Kind.OVERDEFINED || other.kind == Kind.OVERDEFINED) return BOTTOM;
+            return constant == other.constant ? this : BOTTOM;
+        }
+    }
+
+    private SsaForm ssa;
+    private ControlFlowGraph cfg;
+
+    // variables assigned in the method (versions and phis), the others are not known to be constant
+    private Set<String> defined;
+    private Map<String, LatticeValue> values;
+
+    // instructions and phis that read each variable
+    private Map<String, List<Object>> uses;
+
+    // predecessors from which each block can be executed, null standing for the start of the method
+    private Map<BasicBlock, Set<BasicBlock>> executableFrom;
+    private Set<BasicBlock> visited;
+
+    private Deque<BasicBlock> flowWorklist;
+    private Deque<String> ssaWorklist;
+
+    @Override
+    public int optimize(Method method) {
+        ssa = SsaForm.construct(method);
+        cfg = ssa.getCfg();
+
+        if (cfg.getEntry() == null) {
+            return 0;
+        }
+
+        propagate();
+        int changed = replaceConstants();
+
+        ssa.destruct();
+
+        int removed;
+        do {
+            removed = foldBranches(method) + foldJumps(method) + removeUnreachableCode(method)
+                    + removeDeadAssignments(method);
+            changed += removed;
+        } while (removed > 0);
+
+        return changed;
+    }
+
+    private void propagate() {
+        defined = new HashSet<>();
+        values = new HashMap<>();
+        uses = new HashMap<>();
+        executableFrom = new HashMap<>();
+        visited = new HashSet<>();
+        flowWorklist = new ArrayDeque<>();
+        ssaWorklist = new ArrayDeque<>();
+
+        for (var block : cfg.getReversePostorder()) {
+            for (var phi : ssa.getPhis(block)) {
+                defined.add(phi.getDest().getName());
+                for (var argument : phi.getArguments().values()) {
+                    if (OllirUtils.isVariable(argument)) {
+                        addUse(((Operand) argument).getName(), phi);
+                    }
+                }
+            }
+
+            for (var inst : block.getInstructions()) {
+                var def = OllirUtils.getDefinedVariable(inst);
+                if (def != null) {
+                    defined.add(def);
+                }
+                OllirUtils.getUsedVariables(inst).forEach(name -> addUse(name, inst));
+            }
+        }
+
+        addEdge(null, cfg.getEntry());
+
+        while (!flowWorklist.isEmpty() || !ssaWorklist.isEmpty()) {
+            while (!flowWorklist.isEmpty()) {
+                var block = flowWorklist.poll();
+
+                ssa.getPhis(block).forEach(this::visitPhi);
+
+                if (visited.add(block)) {
+                    block.getInstructions().forEach(inst -> visitInstruction(inst, block));
+                }
+            }
+
+            while (!ssaWorklist.isEmpty()) {
+                for (var use : uses.getOrDefault(ssaWorklist.poll(), List.of())) {
+                    if (use instanceof Phi phi) {
+                        if (visited.contains(phi.getBlock())) {
+                            visitPhi(phi);
+                        }
+                    } else {
+                        var inst = (Instruction) use;
+                        var block = cfg.getBlock(inst);
+                        if (visited.contains(block)) {
+                            visitInstruction(inst, block);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addUse(String name, Object use) {
+        uses.computeIfAbsent(name, n -> new ArrayList<>()).add(use);
+    }
+
+    private void addEdge(BasicBlock from, BasicBlock to) {
+        if (executableFrom.computeIfAbsent(to, block -> new HashSet<>()).add(from)) {
+            flowWorklist.add(to);
+        }
+    }
+
+    private void setValue(String name, LatticeValue value) {
+        var old = values.getOrDefault(name, LatticeValue.TOP);
+        var lowered = old.meet(value);
+
+        if (!lowered.equals(old)) {
+            values.put(name, lowered);
+            ssaWorklist.add(name);
+        }
+    }
+
+    private void visitPhi(Phi phi) {
+        var executable = executableFrom.getOrDefault(phi.getBlock(), Set.of());
+        var value = LatticeValue.TOP;
+
+        for (var argument : phi.getArguments().entrySet()) {
+            if (executable.contains(argument.getKey())) {
+                value = value.meet(valueOf(argument.getValue()));
+            }
+        }
+
+        setValue(phi.getDest().getName(), value);
+    }
+
+    private void visitInstruction(Instruction inst, BasicBlock block) {
+        var def = OllirUtils.getDefinedVariable(inst);
+        if (def != null) {
+            setValue(def, evaluate(((AssignInstruction) inst).getRhs(), this::valueOf));
+        }
+
+        if (inst instanceof GotoInstruction gotoInst) {
+            addEdge(block, cfg.getBlock(gotoInst.getLabel()));
+            return;
+        }
+
+        var next = cfg.fallsThrough(block) ? cfg.getNextInLayout(block) : null;
+
+        if (inst instanceof CondBranchInstruction branch) {
+            var condition = evaluate(branch.getCondition(), this::valueOf);
+
+            if (condition.kind() == Kind.OVERDEFINED || (condition.isConstant() && condition.constant() != 0)) {
+                addEdge(block, cfg.getBlock(branch.getLabel()));
+            }
+            if (next != null && (condition.kind() == Kind.OVERDEFINED || (condition.isConstant() && condition.constant() == 0))) {
+                addEdge(block, next);
+            }
+            return;
+        }
+
+        if (inst == block.getLast() && next != null) {
+            addEdge(block, next);
+        }
+    }
+
+    private LatticeValue valueOf(Element element) {
+        if (element instanceof LiteralElement) {
+            var literal = OllirUtils.getLiteralValue(element);
+            return literal == null ? LatticeValue.BOTTOM : LatticeValue.of(literal);
+        }
+
+        if (!OllirUtils.isVariable(element)) {
+            return LatticeValue.BOTTOM;
+        }
+
+        var name = ((Operand) element).getName();
+        return defined.contains(name) ? values.getOrDefault(name, LatticeValue.TOP) : LatticeValue.BOTTOM;
+    }
+
+    private static LatticeValue evaluate(Instruction inst, Function<Element, LatticeValue> valueOf) {
+        if (inst instanceof SingleOpInstruction singleOp) {
+            return valueOf.apply(singleOp.getSingleOperand());
+        }
+
+        if (inst instanceof UnaryOpInstruction unaryOp) {
+            var opType = unaryOp.getOperation().getOpType();
+            if (opType != OperationType.NOTB && opType != OperationType.NOT) {
+                return LatticeValue.BOTTOM;
+            }
+
+            var operand = valueOf.apply(unaryOp.getOperand());
+            return operand.isConstant() ? LatticeValue.of(operand.constant() == 0 ? 1 : 0) : operand;
+        }
+
+        if (inst instanceof BinaryOpInstruction binaryOp) {
+            var left = valueOf.apply(binaryOp.getLeftOperand());
+            var right = valueOf.apply(binaryOp.getRightOperand());
+
+            if (left.kind() == Kind.OVERDEFINED || right.kind() == Kind.OVERDEFINED) {
+                return LatticeValue.BOTTOM;
+            }
+            if (!left.isConstant() || !right.isConstant()) {
+                return LatticeValue.TOP;
+            }
+
+            var result = fold(binaryOp.getOperation().getOpType(), left.constant(), right.constant());
+            return result == null ? LatticeValue.BOTTOM : LatticeValue.of(result);
+        }
+
+        return LatticeValue.BOTTOM;
+    }
+
+    /**
+     * Result of the operation on two constants, or null if it can not be computed at compile time.
+     */
+    private static Integer fold(OperationType opType, int left, int right) {
+        return switch (opType) {
+            case ADD -> left + right;
+            case SUB -> left - right;
+            case MUL -> left * right;
+            // a division by zero must still throw when the program runs
+            case DIV -> right == 0 ? null : left / right;
+            case SHL -> left << right;
+            case SHR -> left >> right;
+            case SHRR -> left >>> right;
+            case AND, ANDB -> left & right;
+            case OR, ORB -> left | right;
+            case XOR -> left ^ right;
+            case LTH -> left < right ? 1 : 0;
+            case GTH -> left > right ? 1 : 0;
+            case LTE -> left <= right ? 1 : 0;
+            case GTE -> left >= right ? 1 : 0;
+            case EQ -> left == right ? 1 : 0;
+            case NEQ -> left != right ? 1 : 0;
+            default -> null;
+        };
+    }
+
+    /**
+     * Replaces the uses of constant variables by literals, in the instructions and phis that can be executed.
+     */
+    private int replaceConstants() {
+        var replacements = new IdentityHashMap<Instruction, Instruction>();
+
+        Function<Operand, Element> constantOf = operand -> {
+            var value = valueOf(operand);
+            return value.isConstant() ? new LiteralElement(String.valueOf(value.constant()), operand.getType()) : null;
+        };
+
+        for (var block : visited) {
+            for (var inst : block.getInstructions()) {
+                var newInst = OllirUtils.substituteUses(inst, constantOf);
+                if (newInst != inst) {
+                    replacements.put(inst, newInst);
+                }
+            }
+
+            for (var phi : ssa.getPhis(block)) {
+                for (var argument : phi.getArguments().entrySet()) {
+                    if (OllirUtils.isVariable(argument.getValue())) {
+                        var literal = constantOf.apply((Operand) argument.getValue());
+                        if (literal != null) {
+                            argument.setValue(literal);
+                        }
+                    }
+                }
+            }
+        }
+
+        cfg.replaceAll(replacements);
+
+        return replacements.size();
+    }
+
+    /**
+     * Branches whose condition only has literals become a goto if they are always taken, and are removed if they
+     * are never taken.
+     */
+    private static int foldBranches(Method method) {
+        var replacements = new IdentityHashMap<Instruction, Instruction>();
+        var removed = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+
+        for (var inst : method.getInstructions()) {
+            if (!(inst instanceof CondBranchInstruction branch)) {
+                continue;
+            }
+
+            var condition = evaluate(branch.getCondition(), element -> {
+                var literal = OllirUtils.getLiteralValue(element);
+                return literal == null ? LatticeValue.BOTTOM : LatticeValue.of(literal);
+            });
+
+            if (!condition.isConstant()) {
+                continue;
+            }
+
+            if (condition.constant() != 0) {
+                replacements.put(inst, new GotoInstruction(branch.getLabel()));
+            } else {
+                removed.add(inst);
+            }
+        }
+
+        OllirUtils.replaceAll(method, replacements);
+        OllirUtils.removeAll(method, removed);
+
+        return replacements.size() + removed.size();
+    }
+
+    /**
+     * Jumps to a goto go straight to its target, and jumps to the next instruction are removed.
+     */
+    private static int foldJumps(Method method) {
+        var instructions = method.getInstructions();
+        var labels = method.getLabels();
+        int changed = 0;
+
+        for (var inst : new ArrayList<>(instructions)) {
+            var label = OllirUtils.getJumpLabel(inst);
+            if (label == null) {
+                continue;
+            }
+
+            var target = label;
+            var seen = new HashSet<String>();
+            while (seen.add(target) && labels.get(target) instanceof GotoInstruction next && next != inst) {
+                target = next.getLabel();
+            }
+
+            if (!target.equals(label)) {
+                OllirUtils.retarget(method, inst, target);
+                changed++;
+            }
+        }
+
+        var removed = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+        for (int i = 0; i + 1 < instructions.size(); i++) {
+            var label = OllirUtils.getJumpLabel(instructions.get(i));
+            if (label != null && labels.get(label) == instructions.get(i + 1)) {
+                removed.add(instructions.get(i));
+            }
+        }
+
+        OllirUtils.removeAll(method, removed);
+
+        return changed + removed.size();
+    }
+
+    private static int removeUnreachableCode(Method method) {
+        var cfg = ControlFlowGraph.build(method);
+        var removed = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+
+        for (var block : cfg.getBlocks()) {
+            if (!cfg.isReachable(block)) {
+                removed.addAll(block.getInstructions());
+            }
+        }
+
+        OllirUtils.removeAll(method, removed);
+
+        return removed.size();
+    }
+
+    /**
+     * Removes assignments of values that are never read, when computing the value has no side effects.
+     */
+    private static int removeDeadAssignments(Method method) {
+        var cfg = ControlFlowGraph.build(method);
+        var liveness = LiveVariables.compute(cfg);
+        var removed = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+
+        for (var block : cfg.getReversePostorder()) {
+            var live = new HashSet<>(liveness.getOut(block));
+            var instructions = block.getInstructions();
+
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                var inst = instructions.get(i);
+                var def = OllirUtils.getDefinedVariable(inst);
+
+                if (def != null && !live.contains(def) && isPure(((AssignInstruction) inst).getRhs())) {
+                    removed.add(inst);
+                    continue;
+                }
+
+                LiveVariables.stepBackwards(inst, live);
+            }
+        }
+
+        OllirUtils.removeAll(method, removed);
+
+        return removed.size();
+    }
+
+    private static boolean isPure(Instruction rhs) {
+        if (rhs instanceof SingleOpInstruction singleOp) {
+            return !(singleOp.getSingleOperand() instanceof ArrayOperand);
+        }
+
+        if (rhs instanceof BinaryOpInstruction binaryOp) {
+            return binaryOp.getOperation().getOpType() != OperationType.DIV
+                    && binaryOp.getOperands().stream().noneMatch(operand -> operand instanceof ArrayOperand);
+        }
+
+        return rhs instanceof UnaryOpInstruction;
+    }
+
+}
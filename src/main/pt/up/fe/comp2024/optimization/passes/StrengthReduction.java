@@ -0,0 +1,177 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+import pt.up.fe.comp2024.optimization.cfg.ControlFlowGraph;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rewrites operations into cheaper equivalents.
+ * <p>
+ * Identities (x*1, x+0, x-0, x/1, true && x) become copies, x*0 and false && x become constants, multiplications
+ * by a power of two become left shifts and !!x becomes x.
+ * <p>
+ * Divisions by a power of two are kept: rounding negative dividends towards zero takes a shift, an unsigned shift,
+ * an add and another shift, which is no cheaper than the idiv the JIT already turns into the same sequence.
+ */
+public class StrengthReduction implements OllirPass {
+
+    private Method method;
+
+    // variables assigned with "v := !x" in the current block, and the negated element
+    private Map<String, Element> negations;
+
+    @Override
+    public int optimize(Method method) {
+        this.method = method;
+
+        int rewritten = 0;
+
+        for (var block : ControlFlowGraph.build(method).getBlocks()) {
+            rewritten += optimizeBlock(block);
+        }
+
+        return rewritten;
+    }
+
+    private int optimizeBlock(BasicBlock block) {
+        negations = new HashMap<>();
+        int rewritten = 0;
+
+        for (var inst : block.getInstructions()) {
+            if (inst instanceof CondBranchInstruction branch) {
+                var condition = simplify(branch.getCondition());
+                if (condition != null) {
+                    OllirUtils.replace(method, inst, OllirUtils.newBranch(condition, branch.getLabel()));
+                    rewritten++;
+                }
+                continue;
+            }
+
+            if (!(inst instanceof AssignInstruction assign)) {
+                continue;
+            }
+
+            var newInst = rewrite(assign);
+            var def = OllirUtils.getDefinedVariable(assign);
+
+            // a new value for a variable invalidates the negations that read or wrote it
+            if (def != null) {
+                negations.remove(def);
+                negations.values().removeIf(negated -> OllirUtils.isVariable(negated)
+                        && ((Operand) negated).getName().equals(def));
+            }
+
+            var result = newInst == null ? assign : newInst;
+            if (def != null && result.getRhs() instanceof UnaryOpInstruction unaryOp
+                    && unaryOp.getOperation().getOpType() == OperationType.NOTB
+                    && !isSameVariable(unaryOp.getOperand(), def)) {
+                negations.put(def, unaryOp.getOperand());
+            }
+
+            if (newInst != null) {
+                OllirUtils.replace(method, inst, newInst);
+                rewritten++;
+            }
+        }
+
+        return rewritten;
+    }
+
+    /**
+     * Returns the assignment that replaces this one, or null if it can not be improved.
+     */
+    private AssignInstruction rewrite(AssignInstruction assign) {
+        var newRhs = simplify(assign.getRhs());
+        if (newRhs == null) {
+            return null;
+        }
+
+        return new AssignInstruction(assign.getDest(), assign.getTypeOfAssign(), newRhs);
+    }
+
+    /**
+     * Returns a cheaper instruction that computes the same value, or null if there is none.
+     */
+    private Instruction simplify(Instruction inst) {
+        if (inst instanceof UnaryOpInstruction unaryOp && unaryOp.getOperation().getOpType() == OperationType.NOTB) {
+            var operand = unaryOp.getOperand();
+            if (OllirUtils.isVariable(operand) && negations.containsKey(((Operand) operand).getName())) {
+                return new SingleOpInstruction(negations.get(((Operand) operand).getName()));
+            }
+            return null;
+        }
+
+        if (!(inst instanceof BinaryOpInstruction binaryOp)) {
+            return null;
+        }
+
+        var left = binaryOp.getLeftOperand();
+        var right = binaryOp.getRightOperand();
+        var leftValue = OllirUtils.getLiteralValue(left);
+        var rightValue = OllirUtils.getLiteralValue(right);
+        var operation = binaryOp.getOperation();
+
+        switch (operation.getOpType()) {
+            case ADD:
+                if (isValue(rightValue, 0)) return new SingleOpInstruction(left);
+                if (isValue(leftValue, 0)) return new SingleOpInstruction(right);
+                break;
+            case SUB:
+                if (isValue(rightValue, 0)) return new SingleOpInstruction(left);
+                break;
+            case MUL:
+                if (isValue(rightValue, 1)) return new SingleOpInstruction(left);
+                if (isValue(leftValue, 1)) return new SingleOpInstruction(right);
+                if (isValue(rightValue, 0) || isValue(leftValue, 0)) {
+                    return new SingleOpInstruction(OllirUtils.newIntLiteral(0));
+                }
+                if (isPowerOfTwo(rightValue)) return shiftLeft(left, rightValue, operation);
+                if (isPowerOfTwo(leftValue)) return shiftLeft(right, leftValue, operation);
+                break;
+            case DIV:
+                if (isValue(rightValue, 1)) return new SingleOpInstruction(left);
+                break;
+            case ANDB:
+                if (isValue(leftValue, 1)) return new SingleOpInstruction(right);
+                if (isValue(rightValue, 1)) return new SingleOpInstruction(left);
+                if (isValue(leftValue, 0) || isValue(rightValue, 0)) {
+                    return new SingleOpInstruction(OllirUtils.newBoolLiteral(false));
+                }
+                break;
+            case ORB:
+                if (isValue(leftValue, 0)) return new SingleOpInstruction(right);
+                if (isValue(rightValue, 0)) return new SingleOpInstruction(left);
+                if (isValue(leftValue, 1) || isValue(rightValue, 1)) {
+                    return new SingleOpInstruction(OllirUtils.newBoolLiteral(true));
+                }
+                break;
+            default:
+                break;
+        }
+
+        return null;
+    }
+
+    private Instruction shiftLeft(Element operand, int factor, Operation operation) {
+        var shift = OllirUtils.newIntLiteral(Integer.numberOfTrailingZeros(factor));
+        return new BinaryOpInstruction(operand, new Operation(OperationType.SHL, operation.getTypeInfo()), shift);
+    }
+
+    private static boolean isValue(Integer literal, int value) {
+        return literal != null && literal == value;
+    }
+
+    private static boolean isPowerOfTwo(Integer literal) {
+        return literal != null && literal > 1 && Integer.bitCount(literal) == 1;
+    }
+
+    private static boolean isSameVariable(Element element, String name) {
+        return OllirUtils.isVariable(element) && ((Operand) element).getName().equals(name);
+    }
+
+}
@@ -0,0 +1,171 @@
+package pt.up.fe.comp2024.optimization.passes;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirPass;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Turns self tail calls into loops.
+ * <p>
+ * A call of the method to itself (on this, or a static call to the class) whose result is returned right away
+ * becomes an assignment of the arguments to the parameters and a goto to the start of the method. Arguments that
+ * read a parameter that is assigned by the same call go through a temporary first.
+ * <p>
+ * A call on this to a method a subclass may override reaches the override instead, so it is only turned into a loop
+ * in a closed world (see {@link OllirUtils#isOverridable}).
+ */
+public class TailCallElimination implements OllirPass {
+
+    private final boolean closedWorld;
+
+    public TailCallElimination(boolean closedWorld) {
+        this.closedWorld = closedWorld;
+    }
+
+    @Override
+    public int optimize(Method method) {
+        if (method.isConstructMethod() || method.getInstructions().isEmpty()) {
+            return 0;
+        }
+
+        String entryLabel = null;
+        int eliminated = 0;
+
+        var instructions = method.getInstructions();
+        for (int i = 0; i + 1 < instructions.size(); i++) {
+            var inst = instructions.get(i);
+            if (!isTailCall(method, inst, instructions.get(i + 1))) {
+                continue;
+            }
+
+            if (entryLabel == null) {
+                entryLabel = getEntryLabel(method);
+            }
+
+            var call = inst instanceof AssignInstruction assign ? (CallInstruction) assign.getRhs() : (CallInstruction) inst;
+            var loop = assignParams(method, call);
+            loop.add(new GotoInstruction(entryLabel));
+
+            var ret = instructions.get(i + 1);
+
+            // the call takes the place of the first new instruction, so jumps to it also execute the others
+            OllirUtils.replace(method, inst, loop.get(0));
+            instructions.addAll(i + 1, loop.subList(1, loop.size()));
+            i += loop.size() - 1;
+
+            // the return is only reached by jumps to it now
+            if (OllirUtils.getLabels(method, ret).isEmpty()) {
+                OllirUtils.remove(method, ret);
+            }
+
+            eliminated++;
+        }
+
+        return eliminated;
+    }
+
+    private boolean isTailCall(Method method, Instruction inst, Instruction next) {
+        CallInstruction call;
+        String dest = null;
+
+        if (inst instanceof CallInstruction callInst) {
+            call = callInst;
+        } else if (inst instanceof AssignInstruction assign && assign.getRhs() instanceof CallInstruction callInst
+                && OllirUtils.isVariable(assign.getDest())) {
+            call = callInst;
+            dest = ((Operand) assign.getDest()).getName();
+        } else {
+            return false;
+        }
+
+        if (!(next instanceof ReturnInstruction ret)) {
+            return false;
+        }
+
+        // the value returned must be the result of the call
+        var returned = ret.getOperand();
+        if (dest == null ? returned != null : !(OllirUtils.isVariable(returned) && ((Operand) returned).getName().equals(dest))) {
+            return false;
+        }
+
+        var isStatic = method.isStaticMethod();
+        if (!isStatic && OllirUtils.isOverridable(method, closedWorld)) {
+            return false;
+        }
+
+        var expectedType = isStatic ? CallType.invokestatic : CallType.invokevirtual;
+        var expectedCaller = isStatic ? method.getOllirClass().getClassName() : "this";
+
+        if (call.getInvocationType() != expectedType || !(call.getCaller() instanceof Operand caller)
+                || !caller.getName().equals(expectedCaller)) {
+            return false;
+        }
+
+        var name = ((LiteralElement) call.getMethodName()).getLiteral().replace("\"", "");
+        int numArgs = call.getArguments() == null ? 0 : call.getArguments().size();
+
+        return name.equals(method.getMethodName()) && numArgs == method.getParams().size();
+    }
+
+    /**
+     * Label of the first instruction of the method, created if it has none.
+     */
+    private static String getEntryLabel(Method method) {
+        var first = method.getInstructions().get(0);
+
+        var labels = OllirUtils.getLabels(method, first);
+        if (!labels.isEmpty()) {
+            return labels.get(0);
+        }
+
+        var label = OllirUtils.newLabel(method, "tailcall");
+        method.getLabels().put(label, first);
+        return label;
+    }
+
+    private static ArrayList<Instruction> assignParams(Method method, CallInstruction call) {
+        var params = method.getParams();
+        var args = call.getArguments();
+
+        var assigned = new HashSet<String>();
+        for (int i = 0; i < params.size(); i++) {
+            var name = ((Operand) params.get(i)).getName();
+            if (!isVariable(args.get(i), name)) {
+                assigned.add(name);
+            }
+        }
+
+        var saves = new ArrayList<Instruction>();
+        var assigns = new ArrayList<Instruction>();
+
+        for (int i = 0; i < params.size(); i++) {
+            var param = (Operand) params.get(i);
+            Element arg = args.get(i);
+
+            if (isVariable(arg, param.getName())) {
+                continue;
+            }
+
+            // the parameter may have been assigned already when the argument is read
+            var reads = OllirUtils.getUsedVariables(new SingleOpInstruction(arg));
+            if (reads.stream().anyMatch(assigned::contains)) {
+                var temp = OllirUtils.newTemp(method, "tc", param.getType());
+                saves.add(OllirUtils.newCopy(temp, arg));
+                arg = temp;
+            }
+
+            assigns.add(OllirUtils.newCopy(OllirUtils.newOperand(param.getName(), param.getType()), arg));
+        }
+
+        saves.addAll(assigns);
+        return saves;
+    }
+
+    private static boolean isVariable(Element element, String name) {
+        return OllirUtils.isVariable(element) && ((Operand) element).getName().equals(name);
+    }
+
+}
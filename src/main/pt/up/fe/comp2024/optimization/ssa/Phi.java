@@ -0,0 +1,65 @@
+package pt.up.fe.comp2024.optimization.ssa;
+
+import org.specs.comp.ollir.Element;
+import org.specs.comp.ollir.Operand;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * "dest := phi(...)" at the start of a block, which selects the value of a variable depending on the predecessor
+ * control came from. OLLIR has no such instruction, so phis are kept by {@link SsaForm} next to the method.
+ */
+public class Phi {
+
+    private final BasicBlock block;
+    private final String variable;
+    private Operand dest;
+
+    // the null key stands for the start of the method, when the block is the entry of the method
+    private final Map<BasicBlock, Element> arguments;
+
+    public Phi(BasicBlock block, String variable, Operand dest) {
+        this.block = block;
+        this.variable = variable;
+        this.dest = dest;
+        this.arguments = new LinkedHashMap<>();
+    }
+
+    public BasicBlock getBlock() {
+        return block;
+    }
+
+    /**
+     * Name of the variable before the conversion to SSA.
+     */
+    public String getVariable() {
+        return variable;
+    }
+
+    public Operand getDest() {
+        return dest;
+    }
+
+    public void setDest(Operand dest) {
+        this.dest = dest;
+    }
+
+    public Map<BasicBlock, Element> getArguments() {
+        return arguments;
+    }
+
+    public Element getArgument(BasicBlock pred) {
+        return arguments.get(pred);
+    }
+
+    public void setArgument(BasicBlock pred, Element argument) {
+        arguments.put(pred, argument);
+    }
+
+    @Override
+    public String toString() {
+        return dest.getName() + " := phi" + arguments;
+    }
+}
@@ -0,0 +1,450 @@
+package pt.up.fe.comp2024.optimization.ssa;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2024.optimization.OllirUtils;
+import pt.up.fe.comp2024.optimization.cfg.BasicBlock;
+import pt.up.fe.comp2024.optimization.cfg.ControlFlowGraph;
+import pt.up.fe.comp2024.optimization.cfg.LiveVariables;
+
+import java.util.*;
+
+/**
+ * Static single assignment form of an OLLIR method.
+ * <p>
+ * {@link #construct} renames every assignment of a local variable or parameter to a new version of the variable
+ * ("a" becomes "a_1", "a_2", ...) and places phis where versions meet, at the iterated dominance frontier of the
+ * assignments (only for variables that are live there). The value a variable has at the start of the method is
+ * version 0, which keeps the original name.
+ * <p>
+ * While the method is in SSA form, instructions can be replaced through {@link ControlFlowGraph#replace}, but
+ * the shape of the graph must not change. {@link #destruct} replaces the phis by copies at the end of the
+ * predecessors and then merges the versions of each variable back into it, unless two of them are live at the
+ * same time.
+ */
+public class SsaForm {
+
+    private final Method method;
+    private final ControlFlowGraph cfg;
+
+    private final Set<String> variables;
+    private final Map<BasicBlock, List<Phi>> phis;
+
+    // version name -> name of the original variable
+    private final Map<String, String> originals;
+    private final Map<String, Integer> lastVersion;
+    private int nextRegister;
+
+    private SsaForm(Method method) {
+        this.method = method;
+        this.cfg = ControlFlowGraph.build(method);
+        this.variables = new HashSet<>();
+        this.phis = new HashMap<>();
+        this.originals = new HashMap<>();
+        this.lastVersion = new HashMap<>();
+        this.nextRegister = method.getVarTable().values().stream()
+                .mapToInt(Descriptor::getVirtualReg).max().orElse(-1) + 1;
+    }
+
+    public static SsaForm construct(Method method) {
+        var ssa = new SsaForm(method);
+
+        if (ssa.cfg.getEntry() != null) {
+            ssa.findVariables();
+            ssa.placePhis();
+            ssa.rename();
+        }
+
+        return ssa;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public ControlFlowGraph getCfg() {
+        return cfg;
+    }
+
+    /**
+     * Phis at the start of the block, empty if it has none.
+     */
+    public List<Phi> getPhis(BasicBlock block) {
+        return phis.getOrDefault(block, List.of());
+    }
+
+    /**
+     * Name of the variable a version belongs to. Names that are not versions are returned unchanged.
+     */
+    public String getOriginalName(String name) {
+        return originals.getOrDefault(name, name);
+    }
+
+    private void findVariables() {
+        for (var variable : method.getVarTable().entrySet()) {
+            var scope = variable.getValue().getScope();
+            if (!variable.getKey().equals("this") && (scope == VarScope.LOCAL || scope == VarScope.PARAMETER)) {
+                variables.add(variable.getKey());
+            }
+        }
+    }
+
+    private void placePhis() {
+        var defBlocks = new LinkedHashMap<String, Set<BasicBlock>>();
+
+        for (var block : cfg.getReversePostorder()) {
+            for (var inst : block.getInstructions()) {
+                var def = OllirUtils.getDefinedVariable(inst);
+                if (def != null && variables.contains(def)) {
+                    defBlocks.computeIfAbsent(def, name -> new LinkedHashSet<>()).add(block);
+                }
+            }
+        }
+
+        var liveness = LiveVariables.compute(cfg);
+
+        for (var entry : defBlocks.entrySet()) {
+            var variable = entry.getKey();
+            var type = method.getVarTable().get(variable).getVarType();
+
+            var hasPhi = new HashSet<BasicBlock>();
+            var worklist = new ArrayDeque<>(entry.getValue());
+            var queued = new HashSet<>(entry.getValue());
+
+            while (!worklist.isEmpty()) {
+                var block = worklist.poll();
+
+                for (var frontier : cfg.getDominanceFrontier(block)) {
+                    if (hasPhi.contains(frontier) || !liveness.getIn(frontier).contains(variable)) {
+                        continue;
+                    }
+
+                    hasPhi.add(frontier);
+                    phis.computeIfAbsent(frontier, b -> new ArrayList<>())
+                            .add(new Phi(frontier, variable, OllirUtils.newOperand(variable, type)));
+
+                    // the phi is a new assignment of the variable
+                    if (queued.add(frontier)) {
+                        worklist.add(frontier);
+                    }
+                }
+            }
+        }
+
+        // coming from the start of the method, a phi in the entry block takes the initial value
+        for (var phi : getPhis(cfg.getEntry())) {
+            phi.setArgument(null, phi.getDest());
+        }
+    }
+
+    /**
+     * Renames the variables in a preorder walk of the dominator tree, keeping a stack with the current version
+     * of each variable.
+     */
+    private void rename() {
+        var stacks = new HashMap<String, Deque<String>>();
+        var replacements = new IdentityHashMap<Instruction, Instruction>();
+
+        // each entry keeps the block and the versions it pushed, which are popped after visiting its children
+        var walk = new ArrayDeque<Map.Entry<BasicBlock, List<String>>>();
+        walk.push(new AbstractMap.SimpleEntry<>(cfg.getEntry(), null));
+
+        while (!walk.isEmpty()) {
+            var top = walk.peek();
+            var block = top.getKey();
+
+            if (top.getValue() != null) {
+                walk.pop();
+                top.getValue().forEach(name -> stacks.get(getOriginalName(name)).pop());
+                continue;
+            }
+
+            var pushed = new ArrayList<String>();
+            top.setValue(pushed);
+
+            for (var phi : getPhis(block)) {
+                var version = newVersion(phi.getVariable(), phi.getDest().getType());
+                phi.setDest(version);
+                stacks.computeIfAbsent(phi.getVariable(), name -> new ArrayDeque<>()).push(version.getName());
+                pushed.add(version.getName());
+            }
+
+            for (var inst : block.getInstructions()) {
+                var newInst = OllirUtils.substituteUses(inst, operand -> {
+                    var stack = stacks.get(operand.getName());
+                    return stack == null || stack.isEmpty() ? null : OllirUtils.newOperand(stack.peek(), operand.getType());
+                });
+
+                var def = OllirUtils.getDefinedVariable(inst);
+                if (def != null && variables.contains(def)) {
+                    var version = newVersion(def, ((AssignInstruction) inst).getDest().getType());
+                    newInst = OllirUtils.withDest((AssignInstruction) newInst, version);
+                    stacks.computeIfAbsent(def, name -> new ArrayDeque<>()).push(version.getName());
+                    pushed.add(version.getName());
+                }
+
+                if (newInst != inst) {
+                    replacements.put(inst, newInst);
+                }
+            }
+
+            for (var succ : block.getSuccessors()) {
+                for (var phi : getPhis(succ)) {
+                    var stack = stacks.get(phi.getVariable());
+                    var current = stack == null || stack.isEmpty() ? phi.getVariable() : stack.peek();
+                    phi.setArgument(block, OllirUtils.newOperand(current, phi.getDest().getType()));
+                }
+            }
+
+            var children = cfg.getDominatorTreeChildren(block);
+            for (int i = children.size() - 1; i >= 0; i--) {
+                walk.push(new AbstractMap.SimpleEntry<>(children.get(i), null));
+            }
+        }
+
+        cfg.replaceAll(replacements);
+    }
+
+    private Operand newVersion(String variable, Type type) {
+        int version = lastVersion.getOrDefault(variable, 0);
+        String name;
+        do {
+            version++;
+            name = variable + "_" + version;
+        } while (method.getVarTable().containsKey(name));
+
+        lastVersion.put(variable, version);
+        originals.put(name, variable);
+        method.getVarTable().put(name, new Descriptor(VarScope.LOCAL, nextRegister++, type));
+
+        return OllirUtils.newOperand(name, type);
+    }
+
+    /**
+     * Translates the method out of SSA form. The phis are removed and this object must not be used afterwards.
+     */
+    public void destruct() {
+        insertCopies();
+        phis.clear();
+        coalesceVersions();
+    }
+
+    private void insertCopies() {
+        var before = new IdentityHashMap<Instruction, List<Instruction>>();
+        var after = new IdentityHashMap<Instruction, List<Instruction>>();
+        var atStart = new ArrayList<Instruction>();
+        var atEnd = new ArrayList<Instruction>();
+        var retargets = new IdentityHashMap<Instruction, String>();
+
+        for (var block : cfg.getBlocks()) {
+            var blockPhis = getPhis(block);
+            if (blockPhis.isEmpty()) {
+                continue;
+            }
+
+            var preds = new LinkedHashSet<BasicBlock>();
+            blockPhis.forEach(phi -> preds.addAll(phi.getArguments().keySet()));
+
+            for (var pred : preds) {
+                var copies = new ArrayList<Map.Entry<Operand, Element>>();
+                for (var phi : blockPhis) {
+                    var argument = phi.getArgument(pred);
+                    if (argument != null) {
+                        copies.add(new AbstractMap.SimpleEntry<>(phi.getDest(), argument));
+                    }
+                }
+
+                if (pred == null) {
+                    atStart.addAll(sequentialize(copies));
+                    continue;
+                }
+
+                var last = pred.getLast();
+                var jumpsToBlock = OllirUtils.getJumpLabel(last) != null
+                        && cfg.getBlock(OllirUtils.getJumpLabel(last)) == block;
+                var fallsToBlock = cfg.fallsThrough(pred) && cfg.getNextInLayout(pred) == block;
+
+                if (last instanceof GotoInstruction) {
+                    before.computeIfAbsent(last, inst -> new ArrayList<>()).addAll(sequentialize(copies));
+                    continue;
+                }
+
+                if (fallsToBlock) {
+                    after.computeIfAbsent(last, inst -> new ArrayList<>()).addAll(sequentialize(copies));
+                }
+
+                // the branch may also go elsewhere, so the copies get a block of their own at the end of the method
+                if (jumpsToBlock) {
+                    var label = OllirUtils.newLabel(method, "ssa");
+                    var edgeCopies = sequentialize(copies);
+                    edgeCopies.add(new GotoInstruction(OllirUtils.getJumpLabel(last)));
+
+                    method.getLabels().put(label, edgeCopies.get(0));
+                    atEnd.addAll(edgeCopies);
+                    retargets.put(last, label);
+                }
+            }
+        }
+
+        var instructions = method.getInstructions();
+        if (!atEnd.isEmpty() && !OllirUtils.isTerminator(instructions.get(instructions.size() - 1))) {
+            throw new RuntimeException("Method '" + method.getMethodName() + "' does not end with a return or a goto");
+        }
+
+        var firstBefore = new IdentityHashMap<Instruction, Instruction>();
+        var newInstructions = new ArrayList<Instruction>(atStart);
+
+        for (var inst : instructions) {
+            var instsBefore = before.get(inst);
+            if (instsBefore != null && !instsBefore.isEmpty()) {
+                newInstructions.addAll(instsBefore);
+                firstBefore.put(inst, instsBefore.get(0));
+            }
+
+            newInstructions.add(inst);
+            newInstructions.addAll(after.getOrDefault(inst, List.of()));
+        }
+
+        newInstructions.addAll(atEnd);
+
+        instructions.clear();
+        instructions.addAll(newInstructions);
+
+        // copies placed before a goto take its labels, so jumps to the goto also execute them
+        for (var label : method.getLabels().entrySet()) {
+            var first = firstBefore.get(label.getValue());
+            if (first != null) {
+                label.setValue(first);
+            }
+        }
+
+        retargets.forEach((jump, label) -> OllirUtils.retarget(method, jump, label));
+    }
+
+    /**
+     * Orders a parallel copy (all sources are read before any destination is written) into sequential copies,
+     * breaking cycles with temporary variables.
+     */
+    private List<Instruction> sequentialize(List<Map.Entry<Operand, Element>> copies) {
+        var pending = new ArrayList<Map.Entry<Operand, Element>>();
+        for (var copy : copies) {
+            if (!isVariable(copy.getValue(), copy.getKey().getName())) {
+                pending.add(new AbstractMap.SimpleEntry<>(copy));
+            }
+        }
+
+        var result = new ArrayList<Instruction>();
+
+        while (!pending.isEmpty()) {
+            Map.Entry<Operand, Element> ready = null;
+            for (var copy : pending) {
+                var dest = copy.getKey().getName();
+                if (pending.stream().noneMatch(other -> isVariable(other.getValue(), dest))) {
+                    ready = copy;
+                    break;
+                }
+            }
+
+            if (ready != null) {
+                result.add(OllirUtils.newCopy(ready.getKey(), ready.getValue()));
+                pending.remove(ready);
+                continue;
+            }
+
+            // every destination is still read by another copy: save one of them and read the saved value instead
+            var saved = pending.get(0).getKey();
+            var temp = OllirUtils.newTemp(method, "ssa", saved.getType());
+            result.add(OllirUtils.newCopy(temp, saved));
+
+            for (var copy : pending) {
+                if (isVariable(copy.getValue(), saved.getName())) {
+                    copy.setValue(temp);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Renames the versions of each variable back to the variable, unless two of them are live at the same time.
+     */
+    private void coalesceVersions() {
+        if (originals.isEmpty()) {
+            return;
+        }
+
+        var newCfg = ControlFlowGraph.build(method);
+        var liveness = LiveVariables.compute(newCfg);
+        var interfering = new HashSet<String>();
+
+        // if two versions are live at the same point, one of them is live right after an assignment of the other
+        for (var block : newCfg.getReversePostorder()) {
+            var live = new HashSet<>(liveness.getOut(block));
+            var instructions = block.getInstructions();
+
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                var inst = instructions.get(i);
+                var def = OllirUtils.getDefinedVariable(inst);
+
+                if (def != null) {
+                    var variable = getOriginalName(def);
+                    for (var name : live) {
+                        if (!name.equals(def) && getOriginalName(name).equals(variable)) {
+                            interfering.add(variable);
+                            break;
+                        }
+                    }
+                }
+
+                LiveVariables.stepBackwards(inst, live);
+            }
+        }
+
+        var renamed = new HashMap<String, String>();
+        originals.forEach((version, variable) -> {
+            if (!interfering.contains(variable)) {
+                renamed.put(version, variable);
+            }
+        });
+
+        if (renamed.isEmpty()) {
+            return;
+        }
+
+        var replacements = new IdentityHashMap<Instruction, Instruction>();
+        var removed = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+
+        for (var inst : method.getInstructions()) {
+            var newInst = OllirUtils.substituteUses(inst, operand -> {
+                var variable = renamed.get(operand.getName());
+                return variable == null ? null : OllirUtils.newOperand(variable, operand.getType());
+            });
+
+            var def = OllirUtils.getDefinedVariable(inst);
+            if (def != null && renamed.containsKey(def)) {
+                var dest = ((AssignInstruction) inst).getDest();
+                newInst = OllirUtils.withDest((AssignInstruction) newInst, OllirUtils.newOperand(renamed.get(def), dest.getType()));
+            }
+
+            // a copy between two versions of the same variable is now "a := a"
+            var newDef = OllirUtils.getDefinedVariable(newInst);
+            if (newDef != null && ((AssignInstruction) newInst).getRhs() instanceof SingleOpInstruction singleOp
+                    && isVariable(singleOp.getSingleOperand(), newDef)) {
+                removed.add(newInst);
+            }
+
+            if (newInst != inst) {
+                replacements.put(inst, newInst);
+            }
+        }
+
+        OllirUtils.replaceAll(method, replacements);
+        OllirUtils.removeAll(method, removed);
+        renamed.keySet().forEach(method.getVarTable()::remove);
+    }
+
+    private static boolean isVariable(Element element, String name) {
+        return OllirUtils.isVariable(element) && ((Operand) element).getName().equals(name);
+    }
+
+}
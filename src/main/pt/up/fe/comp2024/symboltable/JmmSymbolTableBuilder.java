@@ -72,8 +72,9 @@ public class JmmSymbolTableBuilder {
                         String type = parameterNode.getJmmChild(0).get("name");
                         boolean isArray = Boolean.parseBoolean(parameterNode.getJmmChild(0).get("isArray"));
                         boolean isVarargs = Boolean.parseBoolean(parameterNode.getJmmChild(0).get("isVarargs"));
+                        // int... is an int[] inside the method
                         if(isVarargs){
-                            return new Symbol(new Type ("int...", isArray), parameterNode.get("name"));
+                            return new Symbol(new Type ("int...", true), parameterNode.get("name"));
                         }
 
                         return new Symbol(new Type (type, isArray), parameterNode.get("name"));
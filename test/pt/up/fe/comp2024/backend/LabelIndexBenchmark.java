@@ -0,0 +1,108 @@
+package pt.up.fe.comp2024.backend;
+
+import org.junit.Assume;
+import org.junit.Test;
+import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Jasmin code for a method with many if and while statements, each with its own labels.
+ * <p>
+ * The time it takes to generate it, and how it grows with their number, is only measured when the benchmarks
+ * property is set (-Dbenchmarks=true), since timings depend on the machine and on what else it is running.
+ */
+public class LabelIndexBenchmark {
+
+    private static final int SMALL = 1000;
+    private static final int LARGE = 4000;
+
+    /**
+     * A method with the given number of ifs and whiles, each with its own labels.
+     */
+    private static String generateOllir(int statements) {
+        var code = new StringBuilder();
+
+        code.append("Bench {\n");
+        code.append(".construct Bench().V {\ninvokespecial(this, \"<init>\").V;\n}\n");
+        code.append(".method public static run(a.i32).i32 {\n");
+        code.append("x.i32 :=.i32 0.i32;\n");
+
+        for (int i = 0; i < statements; i++) {
+            if (i % 2 == 0) {
+                // if (a < i) x = x + 1;
+                code.append("if (a.i32 >=.bool ").append(i).append(".i32) goto ENDIF_").append(i).append(";\n");
+                code.append("x.i32 :=.i32 x.i32 +.i32 1.i32;\n");
+                code.append("ENDIF_").append(i).append(":\n");
+            } else {
+                // while (x < i) x = x + 1;
+                code.append("WHILE_").append(i).append(":\n");
+                code.append("if (x.i32 >=.bool ").append(i).append(".i32) goto ENDWHILE_").append(i).append(";\n");
+                code.append("x.i32 :=.i32 x.i32 +.i32 1.i32;\n");
+                code.append("goto WHILE_").append(i).append(";\n");
+                code.append("ENDWHILE_").append(i).append(":\n");
+            }
+        }
+
+        code.append("ret.i32 x.i32;\n");
+        code.append("}\n");
+        code.append(".method public static main(args.array.String).V {\nret.V;\n}\n");
+        code.append("}\n");
+
+        return code.toString();
+    }
+
+    private static long timeGeneration(String ollirCode, int repetitions) {
+        long best = Long.MAX_VALUE;
+
+        for (int i = 0; i < repetitions; i++) {
+            var ollirResult = new OllirResult(ollirCode, Collections.emptyMap());
+
+            long start = System.nanoTime();
+            var result = new JasminBackendImpl().toJasmin(ollirResult);
+            best = Math.min(best, System.nanoTime() - start);
+
+            TestUtils.noErrors(result.getReports());
+        }
+
+        return best;
+    }
+
+    @Test
+    public void eachLabelIsEmittedOnce() {
+        var ollirResult = new OllirResult(generateOllir(SMALL), Collections.emptyMap());
+        var result = new JasminBackendImpl().toJasmin(ollirResult);
+        TestUtils.noErrors(result.getReports());
+
+        var lines = result.getJasminCode().lines().map(String::trim).toList();
+
+        for (int i = 0; i < SMALL; i++) {
+            var names = i % 2 == 0 ? new String[]{"ENDIF_" + i} : new String[]{"WHILE_" + i, "ENDWHILE_" + i};
+
+            for (var name : names) {
+                assertEquals("Label " + name, 1, Collections.frequency(lines, name + ":"));
+            }
+        }
+    }
+
+    @Test
+    public void generationTime() {
+        Assume.assumeTrue("benchmarks are not enabled", Boolean.getBoolean("benchmarks"));
+
+        var small = generateOllir(SMALL);
+        var large = generateOllir(LARGE);
+
+        // warm up the JIT
+        timeGeneration(small, 3);
+
+        long smallTime = timeGeneration(small, 5);
+        long largeTime = timeGeneration(large, 5);
+        double ratio = (double) largeTime / smallTime;
+
+        System.out.printf("%d statements: %.1f ms, %d statements: %.1f ms (x%.1f)%n",
+                SMALL, smallTime / 1e6, LARGE, largeTime / 1e6, ratio);
+    }
+}
@@ -0,0 +1,152 @@
+package pt.up.fe.comp2024.backend;
+
+import org.junit.Test;
+import pt.up.fe.comp2024.CompilerConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Each peephole rule applied on its own to a few instructions, then the rules together until nothing changes, and the
+ * rules selected by the peephole option (-p).
+ */
+public class PeepholeRuleTest {
+
+    private static List<JasminInstruction> code(JasminInstruction... instructions) {
+        return new ArrayList<>(List.of(instructions));
+    }
+
+    private static JasminInstruction inst(Opcode opcode, String... args) {
+        return JasminInstruction.of(opcode, args);
+    }
+
+    private static JasminInstruction label(String name) {
+        return JasminInstruction.label(name);
+    }
+
+    @Test
+    public void storeLoadBecomesDupStore() {
+        var code = code(inst(Opcode.ISTORE, "5"), inst(Opcode.ILOAD, "5"), inst(Opcode.IRETURN));
+
+        assertTrue(PeepholeRule.STORE_LOAD.apply(code, 0));
+        assertEquals("[dup, istore 5, ireturn]", code.toString());
+    }
+
+    @Test
+    public void storeLoadShortForm() {
+        var code = code(inst(Opcode.ASTORE_1), inst(Opcode.ALOAD_1));
+
+        assertTrue(PeepholeRule.STORE_LOAD.apply(code, 0));
+        assertEquals("[dup, astore_1]", code.toString());
+    }
+
+    @Test
+    public void storeLoadOtherSlotIsKept() {
+        var code = code(inst(Opcode.ISTORE, "5"), inst(Opcode.ILOAD, "4"));
+
+        assertFalse(PeepholeRule.STORE_LOAD.apply(code, 0));
+        assertEquals("[istore 5, iload 4]", code.toString());
+    }
+
+    @Test
+    public void invertedBranch() {
+        var code = code(inst(Opcode.IF_ICMPLT, "L1"), inst(Opcode.GOTO, "L2"), label("L1"), inst(Opcode.RETURN));
+
+        assertTrue(PeepholeRule.INVERTED_BRANCH.apply(code, 0));
+        assertEquals("[if_icmpge L2, L1:, return]", code.toString());
+    }
+
+    @Test
+    public void invertedBranchNeedsItsLabelNext() {
+        var code = code(inst(Opcode.IF_ICMPLT, "L1"), inst(Opcode.GOTO, "L2"), label("L3"), label("L1"));
+
+        assertFalse(PeepholeRule.INVERTED_BRANCH.apply(code, 0));
+    }
+
+    @Test
+    public void jumpChainGoesToTheEnd() {
+        var code = code(inst(Opcode.GOTO, "A"), label("A"), inst(Opcode.GOTO, "B"), label("B"), inst(Opcode.RETURN));
+
+        assertTrue(PeepholeRule.JUMP_CHAIN.apply(code, 0));
+        assertEquals("goto B", code.get(0).toString());
+    }
+
+    @Test
+    public void cyclicJumpChainIsKept() {
+        var code = code(inst(Opcode.GOTO, "A"), label("A"), inst(Opcode.GOTO, "B"), label("B"), inst(Opcode.GOTO, "A"));
+        var expected = code.toString();
+
+        for (int i = 0; i < code.size(); i++) {
+            assertFalse(PeepholeRule.JUMP_CHAIN.apply(code, i));
+        }
+
+        // the fixpoint must end as well
+        var peephole = new JasminPeephole(EnumSet.of(PeepholeRule.JUMP_CHAIN));
+        peephole.optimize(code);
+
+        assertEquals(expected, code.toString());
+        assertTrue(peephole.getStatistics().isEmpty());
+    }
+
+    @Test
+    public void rulesApplyUntilNothingChanges() {
+        // the branch is always taken, which makes the first return dead and the gotos useless
+        var code = code(
+                inst(Opcode.ICONST_0), inst(Opcode.IFEQ, "L1"),
+                inst(Opcode.ICONST_5), inst(Opcode.IRETURN),
+                label("L1"), inst(Opcode.GOTO, "L2"),
+                label("L2"), inst(Opcode.ICONST_1), inst(Opcode.IRETURN));
+
+        var peephole = new JasminPeephole(EnumSet.allOf(PeepholeRule.class));
+        peephole.optimize(code);
+
+        assertEquals("[L1:, L2:, iconst_1, ireturn]", code.toString());
+
+        var statistics = peephole.getStatistics();
+        assertEquals(Integer.valueOf(1), statistics.get(PeepholeRule.CONSTANT_BRANCH));
+        assertEquals(Integer.valueOf(1), statistics.get(PeepholeRule.DEAD_CODE));
+        assertNull(statistics.get(PeepholeRule.STORE_LOAD));
+    }
+
+    @Test
+    public void peepholeOption() throws IOException {
+        var input = File.createTempFile("PeepholeRuleTest", ".jmm");
+        input.deleteOnExit();
+
+        var config = CompilerConfig.parseArgs(new String[]{"-i=" + input.getPath(), "-o", "-p=store_load, goto_next"});
+        var peephole = JasminPeephole.fromConfig(config);
+
+        var code = code(
+                inst(Opcode.ISTORE_1), inst(Opcode.ILOAD_1), inst(Opcode.GOTO, "L1"), label("L1"),
+                inst(Opcode.ICONST_0), inst(Opcode.IFEQ, "L2"), label("L2"), inst(Opcode.IRETURN));
+        peephole.optimize(code);
+
+        // the constant branch is left, since its rule was not selected
+        assertEquals("[dup, istore_1, L1:, iconst_0, ifeq L2, L2:, ireturn]", code.toString());
+        assertEquals(Map.of(PeepholeRule.STORE_LOAD, 1, PeepholeRule.GOTO_NEXT, 1), peephole.getStatistics());
+    }
+
+    @Test
+    public void peepholeDefaults() {
+        assertTrue(JasminPeephole.fromConfig(Map.of("optimize", "true")).isEnabled());
+        assertFalse(JasminPeephole.fromConfig(Map.of()).isEnabled());
+        assertFalse(JasminPeephole.fromConfig(Map.of("optimize", "true", "peephole", "none")).isEnabled());
+        assertTrue(JasminPeephole.fromConfig(Map.of("peephole", "all")).isEnabled());
+    }
+
+    @Test
+    public void unknownPeepholeRule() {
+        try {
+            JasminPeephole.fromConfig(Map.of("peephole", "store_load,fold"));
+            fail("Expected an unknown rule to be rejected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unknown peephole rule 'fold'"));
+        }
+    }
+}
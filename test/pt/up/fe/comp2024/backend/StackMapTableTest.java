@@ -0,0 +1,102 @@
+package pt.up.fe.comp2024.backend;
+
+import org.junit.Test;
+import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp2024.optimization.JmmOptimizationImpl;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Programs assembled by the class file backend (-b class) and run, so the JVM checks their StackMapTable frames.
+ * <p>
+ * The class files are version 52, which the JVM always checks with the type checking verifier: a missing or wrong
+ * frame is a VerifyError when the class is loaded, and there is no fallback to inferring the types.
+ */
+public class StackMapTableTest {
+
+    private static final String RESOURCES = "pt/up/fe/comp2024/backend/";
+
+    private static String run(String ollirCode, boolean optimize) {
+        var config = Map.of("backend", "class", "optimize", String.valueOf(optimize));
+        var ollirResult = new OllirResult(ollirCode, config);
+
+        if (optimize) {
+            ollirResult = new JmmOptimizationImpl().optimize(ollirResult);
+            TestUtils.noErrors(ollirResult.getReports());
+        }
+
+        var classFile = new ClassFileBackend().toClassFile(ollirResult);
+        TestUtils.noErrors(classFile.getReports());
+
+        var result = new InProcessRunner().run(classFile);
+        assertTrue("Run failed: " + result, result.isSuccess());
+        return result.output().strip();
+    }
+
+    private static String run(String resource) {
+        return run(SpecsIo.getResource(RESOURCES + resource), false);
+    }
+
+    @Test
+    public void loop() {
+        assertEquals("55", run("Loop.ollir"));
+    }
+
+    @Test
+    public void objectLocalsMerged() {
+        // o is set on both paths, the array only on one of them
+        assertEquals("2\n1", run("MergedObjects.ollir"));
+    }
+
+    @Test
+    public void newInLoop() {
+        assertEquals("4", run("NewInLoop.ollir"));
+    }
+
+    @Test
+    public void branchlessLessThan() {
+        // the subtraction overflows as an int, so it is done on longs
+        assertEquals("1\n0\n0", run("LessThan.ollir"));
+    }
+
+    @Test
+    public void loopAtEntry() {
+        assertEquals("55", run("EntryLoop.ollir"));
+    }
+
+    @Test
+    public void tailCallJumpsToEntry() {
+        var code = SpecsIo.getResource("pt/up/fe/comp2024/optimization/TailCall.ollir");
+        assertEquals("55\n705082704", run(code, true));
+    }
+
+    @Test
+    public void frameAtOffsetZero() {
+        // countDown(n, acc) of EntryLoop.ollir, whose loop starts at the first instruction
+        var assembler = new MethodAssembler(new ConstantPool(), "EntryLoop", "countDown", "(II)I", true, Map.of());
+        assembler.assemble(List.of(
+                JasminInstruction.label("loop_0"),
+                JasminInstruction.of(Opcode.ILOAD_0),
+                JasminInstruction.of(Opcode.IFLE, "endloop_0"),
+                JasminInstruction.of(Opcode.ILOAD_1),
+                JasminInstruction.of(Opcode.ILOAD_0),
+                JasminInstruction.of(Opcode.IADD),
+                JasminInstruction.of(Opcode.ISTORE_1),
+                JasminInstruction.of(Opcode.IINC, "0", "-1"),
+                JasminInstruction.of(Opcode.GOTO, "loop_0"),
+                JasminInstruction.label("endloop_0"),
+                JasminInstruction.of(Opcode.ILOAD_1),
+                JasminInstruction.of(Opcode.IRETURN)));
+
+        var frames = assembler.getStackMapTable();
+
+        // two frames, the first a same_frame whose offset delta is its offset, 0
+        assertEquals(2, (frames[0] << 8) | frames[1]);
+        assertEquals(0, frames[2]);
+    }
+}
@@ -0,0 +1,244 @@
+package pt.up.fe.comp2024.optimization;
+
+import org.junit.Test;
+import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp2024.backend.ClassFileBackend;
+import pt.up.fe.comp2024.backend.InProcessRunner;
+import pt.up.fe.comp2024.backend.JasminBackendImpl;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Small programs compiled with optimizations (-o), run with both backends: Jasmin and the class file writer (-b class).
+ * Some are also compiled in a closed world (-c), where calls on the class may skip virtual dispatch.
+ * <p>
+ * Each test checks what the program prints and the instructions the optimizations it exercises should leave.
+ */
+public class OptimizedProgramsTest {
+
+    private static final String RESOURCES = "pt/up/fe/comp2024/optimization/";
+
+    private static Map<String, String> getConfig(String backend, boolean closedWorld) {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("backend", backend);
+        config.put("closedWorld", String.valueOf(closedWorld));
+        return config;
+    }
+
+    private static OllirResult optimize(String resource, String backend, boolean closedWorld) {
+        var ollirResult = new OllirResult(SpecsIo.getResource(RESOURCES + resource), getConfig(backend, closedWorld));
+        var optimized = new JmmOptimizationImpl().optimize(ollirResult);
+        TestUtils.noErrors(optimized.getReports());
+        return optimized;
+    }
+
+    /**
+     * Runs the program with both backends and checks they print the expected lines. Returns the Jasmin code.
+     */
+    private static String compileAndRun(String resource, String expectedOutput) {
+        return compileAndRun(resource, expectedOutput, false);
+    }
+
+    private static String compileAndRun(String resource, String expectedOutput, boolean closedWorld) {
+        var jasminResult = new JasminBackendImpl().toJasmin(optimize(resource, "jasmin", closedWorld));
+        TestUtils.noErrors(jasminResult.getReports());
+
+        var jasminRun = new InProcessRunner().runJasmin(jasminResult.getJasminCode());
+        assertTrue("Jasmin run failed: " + jasminRun, jasminRun.isSuccess());
+        assertEquals(expectedOutput, jasminRun.output().strip());
+
+        var classFile = new ClassFileBackend().toClassFile(optimize(resource, "class", closedWorld));
+        TestUtils.noErrors(classFile.getReports());
+
+        var classRun = new InProcessRunner().run(classFile);
+        assertTrue("Class file run failed: " + classRun, classRun.isSuccess());
+        assertEquals(expectedOutput, classRun.output().strip());
+
+        return jasminResult.getJasminCode();
+    }
+
+    /**
+     * Instructions of a method in the Jasmin code, without its header.
+     */
+    private static String getMethodBody(String jasminCode, String methodName) {
+        var lines = jasminCode.lines().toList();
+        var body = new StringBuilder();
+        boolean inMethod = false;
+
+        for (var line : lines) {
+            var trimmed = line.trim();
+
+            if (trimmed.startsWith(".method") && trimmed.contains(" " + methodName + "(")) {
+                inMethod = true;
+            } else if (inMethod && trimmed.startsWith(".end method")) {
+                return body.toString();
+            } else if (inMethod) {
+                body.append(trimmed).append("\n");
+            }
+        }
+
+        fail("Method " + methodName + " not found in:\n" + jasminCode);
+        return null;
+    }
+
+    private static int count(String code, String instruction) {
+        return (int) code.lines().filter(line -> line.trim().startsWith(instruction)).count();
+    }
+
+    @Test
+    public void nestedLoopsAreRotated() {
+        var code = compileAndRun("NestedLoops.ollir", "10\n120");
+        var sum = getMethodBody(code, "sum");
+
+        // each loop keeps its test at the end of the body, so no iteration goes through a goto
+        assertEquals(2, count(sum, "loop_body"));
+        assertEquals(0, count(sum, "goto"));
+    }
+
+    @Test
+    public void andConditionBecomesBranches() {
+        var code = compileAndRun("AndCondition.ollir", "0\n1\n0");
+        var inRange = getMethodBody(code, "inRange");
+
+        assertEquals(0, count(inRange, "iand"));
+        assertEquals(2, count(inRange, "if_icmp"));
+    }
+
+    @Test
+    public void returnInsideLoop() {
+        var code = compileAndRun("ReturnInLoop.ollir", "4\n5\n0");
+        var find = getMethodBody(code, "find");
+
+        assertEquals(2, count(find, "ireturn"));
+    }
+
+    @Test
+    public void recursiveTailCallBecomesLoop() {
+        // without the loop, 100000 nested calls overflow the stack
+        var code = compileAndRun("TailCall.ollir", "55\n705082704");
+        var sumTo = getMethodBody(code, "sumTo");
+
+        assertEquals(0, count(sumTo, "invoke"));
+    }
+
+    @Test
+    public void overridableTailCallKeepsCall() {
+        var code = compileAndRun("VirtualTailCall.ollir", "55");
+        var sumTo = getMethodBody(code, "sumTo");
+
+        // a subclass overriding sumTo must be reached by the recursive call
+        assertEquals(1, count(sumTo, "invokevirtual VirtualTailCall/sumTo"));
+    }
+
+    @Test
+    public void closedWorldTailCallBecomesLoop() {
+        var code = compileAndRun("VirtualTailCall.ollir", "55", true);
+        var sumTo = getMethodBody(code, "sumTo");
+
+        assertEquals(0, count(sumTo, "invoke"));
+    }
+
+    @Test
+    public void overridableCallIsNotInlined() {
+        var code = compileAndRun("Inline.ollir", "10\n5050");
+        var total = getMethodBody(code, "total");
+
+        assertEquals(1, count(total, "invokevirtual Inline/add"));
+    }
+
+    @Test
+    public void closedWorldInlinesCallOnThis() {
+        var code = compileAndRun("Inline.ollir", "10\n5050", true);
+        var total = getMethodBody(code, "total");
+
+        assertEquals(0, count(total, "invoke"));
+    }
+
+    @Test
+    public void arrayForOverridableCallIsNew() {
+        var code = compileAndRun("ArrayArgument.ollir", "6");
+        var main = getMethodBody(code, "main");
+
+        // an override of sum could change the array, so every call gets its own
+        assertEquals(0, count(main, "getstatic"));
+        assertEquals(1, count(main, "newarray"));
+    }
+
+    @Test
+    public void closedWorldSharesReadOnlyArray() {
+        var code = compileAndRun("ArrayArgument.ollir", "6", true);
+        var main = getMethodBody(code, "main");
+
+        assertEquals(1, count(main, "getstatic ArrayArgument/array_constant_0"));
+        assertEquals(0, count(main, "newarray"));
+    }
+
+    @Test
+    public void limitsAreComputed() {
+        var code = compileAndRun("ArrayArgument.ollir", "6", true);
+        assertFalse(code.contains(" 99"));
+
+        // the array, its copy for dup, the index and the value
+        var staticInitializer = getMethodBody(code, "<clinit>");
+        assertEquals(1, count(staticInitializer, ".limit stack 4"));
+        assertEquals(1, count(staticInitializer, ".limit locals 0"));
+    }
+
+    @Test
+    public void constantBranchIsFolded() {
+        var code = compileAndRun("ConstantBranch.ollir", "6");
+        var main = getMethodBody(code, "main");
+
+        assertEquals(0, count(main, "if"));
+        assertEquals(0, count(main, "imul"));
+        assertEquals(1, count(main, "bipush 6"));
+    }
+
+    @Test
+    public void comparisonsAndNotAsValues() {
+        // for each pair: <, >=, >, <=, !(<) and x < 0, the last pair overflowing x - y as an int
+        var expected = String.join("\n",
+                "1", "0", "0", "1", "0", "0",
+                "0", "1", "1", "0", "1", "0",
+                "0", "1", "0", "1", "1", "0",
+                "1", "0", "0", "1", "0", "1");
+        var code = compileAndRun("Comparisons.ollir", expected);
+        var compare = getMethodBody(code, "compare");
+
+        assertEquals(0, count(compare, "if"));
+        assertEquals(0, count(compare, "goto"));
+
+        // >= and <= are the negations of < and >, and ! is the third
+        assertEquals(3, count(compare, "ixor"));
+    }
+
+    @Test
+    public void callsKeepVirtualDispatch() {
+        var code = compileAndRun("Devirtualize.ollir", "49\n18\n1");
+        var main = getMethodBody(code, "main");
+
+        // a subclass could override any of them
+        assertEquals(3, count(main, "invokevirtual Devirtualize/"));
+        assertFalse(code.contains(".class public final"));
+    }
+
+    @Test
+    public void closedWorldDevirtualizesCalls() {
+        var code = compileAndRun("Devirtualize.ollir", "49\n18\n1", true);
+        var main = getMethodBody(code, "main");
+
+        assertTrue(code.contains(".class public final Devirtualize"));
+        assertEquals(0, count(main, "invokevirtual"));
+
+        // square and twice never use this, next reads a field
+        assertEquals(1, count(main, "invokestatic Devirtualize/square"));
+        assertEquals(1, count(main, "invokestatic Devirtualize/twice"));
+        assertEquals(1, count(main, "invokespecial Devirtualize/next"));
+    }
+}
@@ -0,0 +1,87 @@
+package pt.up.fe.comp2024.optimization;
+
+import org.junit.Test;
+import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp2024.analysis.JmmAnalysisImpl;
+import pt.up.fe.comp2024.backend.InProcessRunner;
+import pt.up.fe.comp2024.backend.JasminBackendImpl;
+import pt.up.fe.comp2024.parser.JmmParserImpl;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Java-- programs compiled from source, through the parser, the semantic analysis and the OLLIR generator, and run.
+ * <p>
+ * Each program is compiled without and with optimizations (-o), and both must print the expected lines.
+ */
+public class SourceProgramsTest {
+
+    private static final String RESOURCES = "pt/up/fe/comp2024/optimization/";
+
+    private static String toJasmin(String resource, boolean optimize) {
+        Map<String, String> config = Map.of("optimize", String.valueOf(optimize));
+
+        var parserResult = new JmmParserImpl().parse(SpecsIo.getResource(RESOURCES + resource), config);
+        TestUtils.noErrors(parserResult.getReports());
+
+        var semanticsResult = new JmmAnalysisImpl().semanticAnalysis(parserResult);
+        TestUtils.noErrors(semanticsResult.getReports());
+
+        var optimization = new JmmOptimizationImpl();
+        var ollirResult = optimization.optimize(optimization.toOllir(semanticsResult));
+        TestUtils.noErrors(ollirResult.getReports());
+
+        var jasminResult = new JasminBackendImpl().toJasmin(ollirResult);
+        TestUtils.noErrors(jasminResult.getReports());
+        return jasminResult.getJasminCode();
+    }
+
+    private static void compileAndRun(String resource, String expectedOutput) {
+        for (var optimize : List.of(false, true)) {
+            var run = new InProcessRunner().runJasmin(toJasmin(resource, optimize));
+            assertTrue("Run failed: " + run, run.isSuccess());
+            assertEquals(expectedOutput, run.output().strip());
+        }
+    }
+
+    @Test
+    public void nestedIfElse() {
+        compileAndRun("IfElse.jmm", "1\n2\n3\n4");
+    }
+
+    @Test
+    public void whileLoops() {
+        compileAndRun("Loops.jmm", "55\n0\n6");
+    }
+
+    @Test
+    public void andSkipsRightOperand() {
+        // check prints its argument, so the output shows which calls were made
+        compileAndRun("ShortCircuit.jmm", "1\n2\n20\n5\n20\n0\n1\n30\n3\n40");
+    }
+
+    @Test
+    public void not() {
+        compileAndRun("Negation.jmm", "121\n111\n122");
+    }
+
+    @Test
+    public void varargs() {
+        // zero, one and many arguments, an int[] in place of the arguments, and int... after another parameter
+        compileAndRun("Varargs.jmm", "0\n7\n10\n18\n100\n102");
+    }
+
+    @Test
+    public void largeArrayLiteral() {
+        compileAndRun("ArrayLiteral.jmm", "9\n9\n4\n20");
+
+        // with -o both literals are cloned from a single static field
+        var code = toJasmin("ArrayLiteral.jmm", true);
+        assertEquals(2, code.lines().filter(line -> line.trim().startsWith("getstatic ArrayLiteral/array_constant_0")).count());
+        assertFalse(code.contains("array_constant_1"));
+    }
+}
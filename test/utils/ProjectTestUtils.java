@@ -3,6 +3,8 @@ package utils;
 import org.specs.comp.ollir.*;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp2024.backend.ClassFileResult;
+import pt.up.fe.comp2024.backend.InProcessRunner;
 import pt.up.fe.specs.util.SpecsCollections;
 import pt.up.fe.specs.util.SpecsIo;
 import pt.up.fe.specs.util.SpecsStrings;
@@ -324,7 +326,12 @@ public class ProjectTestUtils {
     }
 
     public static void runJasmin(JasminResult jasminResult, String expected) {
-        var output = SpecsStrings.normalizeFileContents(jasminResult.run(), true);
+        var result = runInProcess(jasminResult.getJasminCode());
+        assertTrue("Jasmin execution failed: " + result.exception() + "\n" + jasminResult.getJasminCode(),
+                result.exception() == null);
+        assertTrue("Jasmin execution timed out:\n" + jasminResult.getJasminCode(), !result.timedOut());
+
+        var output = SpecsStrings.normalizeFileContents(result.output(), true);
 
         // No expected output, just run test
         if (expected == null) {
@@ -336,6 +343,17 @@ public class ProjectTestUtils {
                 expected, output);
     }
 
+    /**
+     * Assembles and runs the Jasmin code in this JVM, which is much faster than starting a new one.
+     */
+    public static InProcessRunner.Result runInProcess(String jasminCode, String... args) {
+        return new InProcessRunner().runJasmin(jasminCode, args);
+    }
+
+    public static InProcessRunner.Result runInProcess(ClassFileResult classFile, String... args) {
+        return new InProcessRunner().run(classFile, args);
+    }
+
     public static List<Node> getOllirNodes(ClassUnit classUnit, Predicate<Node> filter) {
         var nodes = new ArrayList<Node>();
 